@@ -8,4 +8,16 @@ public interface QabelContentProviderConstants {
 
     String[] CONTACT_COLUMN_NAMES = new String[]{"name", "owner_id", "id"};
     String[] IDENTITIES_COLUMN_NAMES = new String[]{"name", "id"};
+
+    /** Selects the row with the id given as selection argument */
+    String SELECTION_ID = "id = ?";
+    /** Selects rows by name prefix, the selection argument is the prefix followed by '%' */
+    String SELECTION_NAME_PREFIX = "name LIKE ?";
+    /** Sort orders, rows are sorted by name if no sort order is given */
+    String SORT_NAME_ASC = "name ASC";
+    String SORT_NAME_DESC = "name DESC";
+
+    /** Query parameters for paging through the rows */
+    String QUERY_PARAMETER_LIMIT = "limit";
+    String QUERY_PARAMETER_OFFSET = "offset";
 }
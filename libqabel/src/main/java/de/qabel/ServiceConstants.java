@@ -11,12 +11,28 @@ public interface ServiceConstants {
 
     int MSG_REGISTER_ON_TYPE = 0;
     int MSG_DROP_MESSAGE = 1;
+    /** Requests an immediate poll of the drops */
+    int MSG_POLL_DROPS = 2;
+    /**
+     * Several DropMessages as a list of bundles in {@link #DROP_MESSAGES}, used for the delivery
+     * to clients and for sending. Bundles sent to the service may name several recipients in
+     * {@link #DROP_RECIPIENT_IDS} instead of {@link #DROP_RECIPIENT_ID}.
+     */
+    int MSG_DROP_MESSAGE_BATCH = 3;
+    int MSG_UNREGISTER_ON_TYPE = 4;
 
     String DROP_MESSAGE_TYPE = "DropMessageType";
     String DROP_MESSAGE = "DropMessage";
+    String DROP_MESSAGES = "DropMessages";
+    /**
+     * Optional maximum number of messages per delivery when registering on a type.
+     * Clients with a batch size above 1 receive {@link #MSG_DROP_MESSAGE_BATCH} messages.
+     */
+    String DROP_BATCH_SIZE = "DropBatchSize";
 
     String DROP_PAYLOAD_TYPE = "DropPayloadType";
     String DROP_PAYLOAD = "DropPayload";
     String DROP_RECIPIENT_ID = "DropRecipientId";
+    String DROP_RECIPIENT_IDS = "DropRecipientIds";
     String DROP_SENDER_ID = "DropSenderID";
 }
@@ -0,0 +1,80 @@
+package de.qabel.qabelbox;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.FileNotFoundException;
+import java.util.List;
+
+import de.qabel.qabelbox.providers.DocumentId;
+import de.qabel.qabelbox.providers.DocumentIdParser;
+
+/**
+ * Rough timing of the document id parsing with ids as the provider sees them.
+ * Results are only logged, the assertions just keep the work from being optimized away.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DocumentIdParserBenchmark extends TestCase {
+
+    private static final String TAG = "DocumentIdParserBench";
+    private static final int ITERATIONS = 100000;
+    private static final String ROOT = "8520f0098930a754748b7ddcb43ef75a0dbf3a0d26381af4eba4a98eaa9b4e6a"
+            + "::::qabel::::D7A75A70-8D28-11E5-A8EB-280369A460B9::::";
+    private static final String[] IDS = {
+            ROOT + "/",
+            ROOT + "/Documents/",
+            ROOT + "/Documents/Taxes/2015/receipt-0042.pdf",
+            ROOT + "/Pictures/Holiday/IMG_20150812_184512.jpg",
+            ROOT + "/Music/Some Artist/Some Album/07 - A rather long track title.mp3",
+    };
+
+    @Test
+    public void testParseCachedIds() throws FileNotFoundException {
+        DocumentIdParser parser = new DocumentIdParser();
+        int length = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            DocumentId id = parser.parse(IDS[i % IDS.length]);
+            length += id.getIdentity().length() + id.getBucket().length()
+                    + id.getPrefix().length() + id.getFilePath().length();
+        }
+        report("parse (cached)", start);
+        assertTrue(length > 0);
+    }
+
+    @Test
+    public void testParseUniqueIds() throws FileNotFoundException {
+        DocumentIdParser parser = new DocumentIdParser();
+        int length = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            length += parser.getFilePath(IDS[i % IDS.length] + i).length();
+        }
+        report("parse (uncached)", start);
+        assertTrue(length > 0);
+    }
+
+    @Test
+    public void testSplitPath() throws FileNotFoundException {
+        DocumentIdParser parser = new DocumentIdParser();
+        String path = parser.getFilePath(IDS[4]);
+        int segments = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            List<String> split = parser.splitPath(path);
+            segments += split.size();
+        }
+        report("splitPath", start);
+        assertTrue(segments > 0);
+    }
+
+    private static void report(String name, long start) {
+        long elapsed = System.nanoTime() - start;
+        Log.i(TAG, name + ": " + (elapsed / ITERATIONS) + " ns/op");
+    }
+}
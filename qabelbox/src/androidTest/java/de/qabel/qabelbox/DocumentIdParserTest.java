@@ -10,8 +10,10 @@ import org.junit.runner.RunWith;
 import org.spongycastle.util.encoders.Hex;
 
 import java.io.FileNotFoundException;
+import java.util.Arrays;
 
 import de.qabel.core.crypto.QblECKeyPair;
+import de.qabel.qabelbox.providers.DocumentId;
 import de.qabel.qabelbox.providers.DocumentIdParser;
 
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -89,6 +91,25 @@ public class DocumentIdParserTest extends TestCase {
         p.getFilePath(rootId);
     }
 
+    @Test
+    public void testParse() throws FileNotFoundException {
+        DocumentId id = p.parse(rootId + "::::" + filePath + fileName);
+        assertThat(id.getIdentity(), is(pub));
+        assertThat(id.getBucket(), is(bucket));
+        assertThat(id.getPrefix(), is(prefix));
+        assertThat(id.getFilePath(), is(filePath + fileName));
+        assertThat(id.getBaseName(), is(fileName));
+    }
+
+    @Test
+    public void testSplitPath() {
+        assertThat(p.splitPath("/foo/bar/"), is(Arrays.asList("", "foo", "bar")));
+        assertThat(p.splitPath("/foo//bar"), is(Arrays.asList("", "foo", "", "bar")));
+        assertThat(p.splitPath("foo"), is(Arrays.asList("foo")));
+        assertThat(p.splitPath(""), is(Arrays.asList("")));
+        assertThat(p.splitPath("/").size(), is(0));
+    }
+
     @Test
     public void testBuildId() {
         assertThat(p.buildId(pub, bucket, prefix, filePath), is(rootId + "::::" + filePath));
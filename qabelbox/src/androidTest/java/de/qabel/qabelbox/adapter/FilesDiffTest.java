@@ -0,0 +1,122 @@
+package de.qabel.qabelbox.adapter;
+
+import android.support.v7.widget.RecyclerView;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import de.qabel.qabelbox.storage.BoxFile;
+import de.qabel.qabelbox.storage.BoxFolder;
+import de.qabel.qabelbox.storage.BoxObject;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class FilesDiffTest extends TestCase {
+
+	private List<String> notifications;
+	private FilesAdapter adapter;
+	private List<BoxObject> shown;
+
+	public void setUp() throws Exception {
+		notifications = new ArrayList<>();
+		shown = new ArrayList<>();
+		adapter = new FilesAdapter(shown);
+		adapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+			@Override
+			public void onChanged() {
+				notifications.add("all");
+			}
+
+			@Override
+			public void onItemRangeChanged(int positionStart, int itemCount) {
+				notifications.add("change " + positionStart + " " + itemCount);
+			}
+
+			@Override
+			public void onItemRangeInserted(int positionStart, int itemCount) {
+				notifications.add("insert " + positionStart + " " + itemCount);
+			}
+
+			@Override
+			public void onItemRangeRemoved(int positionStart, int itemCount) {
+				notifications.add("remove " + positionStart + " " + itemCount);
+			}
+		});
+	}
+
+	private static BoxFile file(String name, String block) {
+		return new BoxFile(block, name, 1L, 1L, new byte[] {1});
+	}
+
+	private static BoxFolder folder(String name) {
+		return new BoxFolder("ref-" + name, name, new byte[] {1});
+	}
+
+	private void show(BoxObject... boxObjects) {
+		adapter.update(Arrays.asList(boxObjects));
+		notifications.clear();
+	}
+
+	private void apply(BoxObject... boxObjects) {
+		List<BoxObject> newBoxObjects = new ArrayList<>(Arrays.asList(boxObjects));
+		Collections.sort(newBoxObjects);
+		adapter.apply(FilesDiff.compute(adapter.snapshot(), newBoxObjects));
+		assertThat(shown, is(newBoxObjects));
+	}
+
+	@Test
+	public void testNoChanges() {
+		show(folder("a"), file("b", "1"));
+		FilesDiff diff = FilesDiff.compute(adapter.snapshot(),
+				Arrays.<BoxObject>asList(folder("a"), file("b", "1")));
+		assertThat(diff.isEmpty(), is(true));
+		adapter.apply(diff);
+		assertThat(notifications.isEmpty(), is(true));
+	}
+
+	@Test
+	public void testInsertAndRemove() {
+		show(folder("a"), file("b", "1"), file("d", "2"));
+		apply(folder("a"), file("c", "3"), file("d", "2"), file("e", "4"));
+		assertThat(notifications, is(Arrays.asList("remove 1 1", "insert 1 1", "insert 3 1")));
+	}
+
+	@Test
+	public void testChangedBlockKeepsRow() {
+		show(file("a", "1"), file("b", "2"), file("c", "3"));
+		apply(file("a", "1"), file("b", "5"), file("c", "3"));
+		assertThat(notifications, is(Collections.singletonList("change 1 1")));
+	}
+
+	@Test
+	public void testRunsAreCoalesced() {
+		show(file("a", "1"));
+		apply(file("a", "1"), file("b", "2"), file("c", "3"), file("d", "4"));
+		assertThat(notifications, is(Collections.singletonList("insert 1 3")));
+	}
+
+	@Test
+	public void testFolderAndFileWithSameName() {
+		show(folder("a"));
+		apply(file("a", "1"));
+		assertThat(notifications, is(Arrays.asList("remove 0 1", "insert 0 1")));
+	}
+
+	@Test
+	public void testStaleSnapshotReplacesAll() {
+		show(file("a", "1"));
+		FilesDiff diff = FilesDiff.compute(adapter.snapshot(),
+				Arrays.<BoxObject>asList(file("a", "1"), file("b", "2")));
+		show(file("c", "3"));
+		adapter.apply(diff);
+		assertThat(notifications, is(Collections.singletonList("all")));
+		assertThat(shown, is(Arrays.<BoxObject>asList(file("a", "1"), file("b", "2"))));
+	}
+}
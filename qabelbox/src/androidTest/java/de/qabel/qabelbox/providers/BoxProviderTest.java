@@ -35,6 +35,7 @@ import java.util.UUID;
 import de.qabel.core.crypto.CryptoUtils;
 import de.qabel.core.crypto.QblECKeyPair;
 import de.qabel.qabelbox.exceptions.QblStorageException;
+import de.qabel.qabelbox.storage.BoxFile;
 import de.qabel.qabelbox.storage.BoxFolder;
 import de.qabel.qabelbox.storage.BoxNavigation;
 import de.qabel.qabelbox.storage.BoxVolume;
@@ -73,9 +74,9 @@ public class BoxProviderTest extends ProviderTestCase2<BoxProvider>{
                 + BoxProvider.DOCID_SEPARATOR + prefix + BoxProvider.DOCID_SEPARATOR
                 + BoxProvider.PATH_SEP;
         BoxProvider provider = getProvider();
-        provider.transferUtility = new TransferUtility(provider.amazonS3Client, getContext());
+        TransferUtility transferUtility = new TransferUtility(provider.getAmazonS3Client(), getContext());
 
-        volume = new BoxVolume(provider.transferUtility, provider.awsCredentials,
+        volume = new BoxVolume(transferUtility, provider.getAwsCredentials(),
                 keyPair, bucket, prefix, deviceID, getContext());
         volume.createIndex(bucket, prefix);
 
@@ -98,7 +99,7 @@ public class BoxProviderTest extends ProviderTestCase2<BoxProvider>{
     public void tearDown() throws Exception {
         super.tearDown();
         Log.d(TAG, "tearDown");
-        ObjectListing listing = getProvider().amazonS3Client.listObjects(bucket, prefix);
+        ObjectListing listing = getProvider().getAmazonS3Client().listObjects(bucket, prefix);
         List<DeleteObjectsRequest.KeyVersion> keys = new ArrayList<>();
         for (S3ObjectSummary summary : listing.getObjectSummaries()) {
             keys.add(new DeleteObjectsRequest.KeyVersion(summary.getKey()));
@@ -108,7 +109,7 @@ public class BoxProviderTest extends ProviderTestCase2<BoxProvider>{
         }
         DeleteObjectsRequest deleteObjectsRequest = new DeleteObjectsRequest(bucket);
         deleteObjectsRequest.setKeys(keys);
-        getProvider().amazonS3Client.deleteObjects(deleteObjectsRequest);
+        getProvider().getAmazonS3Client().deleteObjects(deleteObjectsRequest);
     }
 
     public void testTraverseToFolder() throws QblStorageException {
@@ -133,6 +134,15 @@ public class BoxProviderTest extends ProviderTestCase2<BoxProvider>{
 
     }
 
+    public void testParentDocumentId() {
+        assertThat(BoxProvider.getParentDocumentId(ROOT_DOC_ID + "foo"), is(ROOT_DOC_ID));
+        assertThat(BoxProvider.getParentDocumentId(ROOT_DOC_ID + "foo/"), is(ROOT_DOC_ID));
+        assertThat(BoxProvider.getParentDocumentId(ROOT_DOC_ID + "foo/bar"),
+                is(ROOT_DOC_ID + "foo/"));
+        assertThat(BoxProvider.getParentDocumentId(ROOT_DOC_ID + "foo/bar/"),
+                is(ROOT_DOC_ID + "foo/"));
+    }
+
     public void testQueryRoots() throws FileNotFoundException {
         Cursor cursor = getProvider().queryRoots(BoxProvider.DEFAULT_ROOT_PROJECTION);
         assertThat(cursor.getCount(), is(1));
@@ -160,6 +170,58 @@ public class BoxProviderTest extends ProviderTestCase2<BoxProvider>{
         assertThat(dl, is(content));
     }
 
+    public void testOpenRandomAccessDocumentIsSeekable() throws IOException, QblStorageException {
+        BoxNavigation rootNav = volume.navigate();
+        rootNav.uploadSeekable("testfile.pdf", new FileInputStream(new File(testFileName)), null);
+        rootNav.commit();
+        Uri documentUri = DocumentsContract.buildDocumentUri(BoxProvider.AUTHORITY,
+                ROOT_DOC_ID + "testfile.pdf");
+        byte[] content = IOUtils.toByteArray(new FileInputStream(testFileName));
+
+        ParcelFileDescriptor descriptor = mContentResolver.openFileDescriptor(documentUri, "r");
+        assertNotNull(descriptor);
+        assertThat(descriptor.getStatSize(), is((long) content.length));
+        FileInputStream in = new FileInputStream(descriptor.getFileDescriptor());
+        try {
+            in.getChannel().position(content.length - 10);
+            assertThat(IOUtils.toByteArray(in),
+                    is(Arrays.copyOfRange(content, content.length - 10, content.length)));
+        } finally {
+            in.close();
+            descriptor.close();
+        }
+    }
+
+    public void testQueryDocumentSizeAndLastModified() throws IOException, QblStorageException {
+        BoxNavigation rootNav = volume.navigate();
+        rootNav.upload("testfile", new FileInputStream(new File(testFileName)), null);
+        rootNav.commit();
+        BoxFile file = rootNav.listFiles().get(0);
+        Uri documentUri = DocumentsContract.buildDocumentUri(BoxProvider.AUTHORITY,
+                ROOT_DOC_ID + "testfile");
+        Cursor query = mContentResolver.query(documentUri, null, null, null, null);
+        assertNotNull(query);
+        assertTrue(query.moveToFirst());
+        // the size of the content, not of the encrypted block
+        assertThat(query.getLong(query.getColumnIndex(DocumentsContract.Document.COLUMN_SIZE)),
+                is(new File(testFileName).length()));
+        assertThat(query.getLong(query.getColumnIndex(DocumentsContract.Document.COLUMN_LAST_MODIFIED)),
+                is(file.mtime * 1000));
+    }
+
+    public void testQueryDocumentSizeOfSeekableUpload() throws IOException, QblStorageException {
+        BoxNavigation rootNav = volume.navigate();
+        rootNav.uploadSeekable("testfile", new FileInputStream(new File(testFileName)), null);
+        rootNav.commit();
+        Uri documentUri = DocumentsContract.buildDocumentUri(BoxProvider.AUTHORITY,
+                ROOT_DOC_ID + "testfile");
+        Cursor query = mContentResolver.query(documentUri, null, null, null, null);
+        assertNotNull(query);
+        assertTrue(query.moveToFirst());
+        assertThat(query.getLong(query.getColumnIndex(DocumentsContract.Document.COLUMN_SIZE)),
+                is(new File(testFileName).length()));
+    }
+
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
     public void testOpenDocumentForWrite() throws IOException, QblStorageException, InterruptedException {
         Uri parentUri = DocumentsContract.buildDocumentUri(BoxProvider.AUTHORITY, ROOT_DOC_ID);
@@ -223,6 +285,12 @@ public class BoxProviderTest extends ProviderTestCase2<BoxProvider>{
         assertThat("Changes to the uploaded file not found", downloaded, is(updatedContent));
     }
 
+    public void testBatchUploadNumberedNames() {
+        assertThat(BatchUploader.numberedName("photo.jpg", 2), is("photo (2).jpg"));
+        assertThat(BatchUploader.numberedName("archive.tar.gz", 3), is("archive.tar (3).gz"));
+        assertThat(BatchUploader.numberedName("README", 2), is("README (2)"));
+    }
+
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
     public void testCreateFile() {
         String testDocId = ROOT_DOC_ID + "testfile.png";
@@ -0,0 +1,79 @@
+package de.qabel.qabelbox.providers;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class FolderListingCacheTest extends TestCase {
+
+    private static final int MAX_ENTRIES = 100;
+
+    private FolderListingCache cache;
+
+    public void setUp() throws Exception {
+        cache = new FolderListingCache(MAX_ENTRIES);
+    }
+
+    private static FolderListing listing(int size) {
+        List<FolderListing.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            entries.add(new FolderListing.Entry("file" + i, false, 0, 0, false));
+        }
+        return new FolderListing(new byte[] {1}, entries, null);
+    }
+
+    public void testSmallListing() {
+        FolderListing listing = listing(10);
+        assertTrue(cache.put("folder/", listing));
+        assertThat(cache.get("folder/"), is(listing));
+    }
+
+    public void testCurrentListingHeavierThanTheBound() {
+        FolderListing large = listing(MAX_ENTRIES * 2);
+        cache.setCurrentFolder("large/");
+        assertTrue(cache.put("large/", large));
+        assertThat(cache.get("large/"), is(large));
+
+        // other listings do not evict it
+        for (int i = 0; i < 20; i++) {
+            cache.put("folder" + i + "/", listing(10));
+        }
+        assertThat(cache.get("large/"), is(large));
+    }
+
+    public void testLargeListingOfOtherFolderIsNotKept() {
+        cache.setCurrentFolder("current/");
+        assertFalse(cache.put("large/", listing(MAX_ENTRIES * 2)));
+        assertNull(cache.get("large/"));
+    }
+
+    public void testLeavingTheFolderDropsTheLargeListing() {
+        cache.setCurrentFolder("large/");
+        cache.put("large/", listing(MAX_ENTRIES * 2));
+        cache.setCurrentFolder("other/");
+        assertNull(cache.get("large/"));
+    }
+
+    public void testSmallerListingReplacesLargeOne() {
+        cache.setCurrentFolder("folder/");
+        cache.put("folder/", listing(MAX_ENTRIES * 2));
+        FolderListing small = listing(10);
+        cache.put("folder/", small);
+        assertThat(cache.get("folder/"), is(small));
+    }
+
+    public void testRemoveTree() {
+        cache.setCurrentFolder("folder/sub/");
+        cache.put("folder/sub/", listing(MAX_ENTRIES * 2));
+        cache.put("folder/", listing(10));
+        cache.put("other/", listing(10));
+        cache.removeTree("folder/");
+        assertNull(cache.get("folder/sub/"));
+        assertNull(cache.get("folder/"));
+        assertNotNull(cache.get("other/"));
+    }
+}
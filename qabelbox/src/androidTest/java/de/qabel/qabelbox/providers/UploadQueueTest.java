@@ -0,0 +1,141 @@
+package de.qabel.qabelbox.providers;
+
+import android.test.AndroidTestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class UploadQueueTest extends AndroidTestCase {
+
+    private UploadQueue queue;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        queue = UploadQueue.getInstance(getContext());
+        clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        clear();
+        super.tearDown();
+    }
+
+    private void clear() {
+        queue.recover();
+        UploadQueue.Upload upload;
+        while ((upload = queue.take(Long.MAX_VALUE, true)) != null) {
+            queue.remove(upload);
+        }
+    }
+
+    private UploadQueue.Upload enqueue(String documentId, int size) throws IOException {
+        UploadQueue.Upload upload = queue.open(documentId);
+        FileUtils.writeByteArrayToFile(upload.file, new byte[size]);
+        queue.enqueue(upload);
+        return upload;
+    }
+
+    @Test
+    public void testTakeInOrder() throws IOException {
+        File first = enqueue("first", 10).file;
+        enqueue("second", 10);
+        assertThat(queue.size(), is(2L));
+
+        UploadQueue.Upload upload = queue.take(0L, true);
+        assertThat(upload.documentId, is("first"));
+        assertThat(upload.file, is(first));
+        queue.remove(upload);
+        assertThat(first.exists(), is(false));
+        assertThat(queue.take(0L, true).documentId, is("second"));
+        // running uploads are not taken twice
+        assertNull(queue.take(0L, true));
+    }
+
+    @Test
+    public void testRetryWithBackoff() throws IOException {
+        enqueue("doc", 10);
+        UploadQueue.Upload upload = queue.take(0L, true);
+        long nextAttempt = queue.retry(upload, 1000L);
+        assertThat(nextAttempt, is(1000L + UploadQueue.MIN_BACKOFF));
+        assertThat(queue.nextAttempt(true), is(nextAttempt));
+        assertNull(queue.take(nextAttempt - 1, true));
+
+        upload = queue.take(nextAttempt, true);
+        assertThat(upload.attempts, is(1));
+        assertThat(queue.retry(upload, 1000L), is(1000L + 2 * UploadQueue.MIN_BACKOFF));
+    }
+
+    @Test
+    public void testBackoffIsCapped() {
+        assertThat(UploadQueue.backoff(1), is(UploadQueue.MIN_BACKOFF));
+        assertThat(UploadQueue.backoff(UploadQueue.MAX_ATTEMPTS), is(UploadQueue.MAX_BACKOFF));
+        assertThat(UploadQueue.backoff(100), is(UploadQueue.MAX_BACKOFF));
+    }
+
+    @Test
+    public void testGiveUpAfterMaxAttempts() throws IOException {
+        File file = enqueue("doc", 10).file;
+        long now = 0L;
+        for (int i = 1; i < UploadQueue.MAX_ATTEMPTS; i++) {
+            now = queue.retry(queue.take(now, true), now);
+        }
+        assertThat(queue.retry(queue.take(now, true), now), is(-1L));
+        assertThat(queue.size(), is(0L));
+        assertThat(file.exists(), is(false));
+    }
+
+    @Test
+    public void testLargeUploadsWaitForUnmeteredNetwork() throws IOException {
+        enqueue("large", (int) UploadQueue.LARGE_UPLOAD_SIZE + 1);
+        assertNull(queue.take(0L, false));
+        assertThat(queue.nextAttempt(false), is(-1L));
+        assertThat(queue.take(0L, true).documentId, is("large"));
+    }
+
+    @Test
+    public void testResume() throws IOException {
+        enqueue("doc", 10);
+        assertNotNull(queue.take(0L, true));
+
+        queue.resume();
+        assertThat(queue.take(0L, true).documentId, is("doc"));
+    }
+
+    @Test
+    public void testResumeKeepsUploadsBeingWritten() throws IOException {
+        UploadQueue.Upload writing = queue.open("doc");
+        assertThat(queue.size(), is(0L));
+
+        queue.resume();
+        assertThat(writing.file.exists(), is(true));
+        assertNull(queue.take(0L, true));
+
+        FileUtils.writeByteArrayToFile(writing.file, new byte[10]);
+        queue.enqueue(writing);
+        assertThat(queue.take(0L, true).documentId, is("doc"));
+    }
+
+    @Test
+    public void testRecover() throws IOException {
+        UploadQueue.Upload writing = queue.open("writing");
+        File orphan = new File(writing.file.getParentFile(), "orphan");
+        FileUtils.writeByteArrayToFile(orphan, new byte[10]);
+        File running = enqueue("running", 10).file;
+        assertNotNull(queue.take(0L, true));
+
+        queue.recover();
+        assertThat(writing.file.exists(), is(false));
+        assertThat(orphan.exists(), is(false));
+        assertThat(running.exists(), is(true));
+        assertThat(queue.take(0L, true).documentId, is("running"));
+        assertThat(queue.size(), is(1L));
+    }
+}
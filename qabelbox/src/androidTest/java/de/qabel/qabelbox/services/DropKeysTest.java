@@ -0,0 +1,79 @@
+package de.qabel.qabelbox.services;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class DropKeysTest extends TestCase {
+
+    private DropPollScheduler.DropKeys dropKeys;
+
+    public void setUp() throws Exception {
+        dropKeys = new DropPollScheduler.DropKeys();
+    }
+
+    public void testNewKeys() {
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")),
+                dropKeys.update("drop", Arrays.asList("a", "b")));
+        assertEquals(Collections.singleton("c"),
+                dropKeys.update("drop", Arrays.asList("a", "b", "c")));
+        assertTrue(dropKeys.update("drop", Arrays.asList("a", "b", "c")).isEmpty());
+    }
+
+    public void testLargeDropIsNotNewAgain() {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            keys.add("key" + i);
+        }
+        assertThat(dropKeys.update("drop", keys).size(), is(5000));
+        assertTrue(dropKeys.update("drop", keys).isEmpty());
+    }
+
+    public void testDropsAreSeparate() {
+        dropKeys.update("drop", Collections.singletonList("a"));
+        assertEquals(Collections.singleton("a"),
+                dropKeys.update("other", Collections.singletonList("a")));
+    }
+
+    public void testEmptyResponseKeepsKeys() {
+        dropKeys.update("drop", Collections.singletonList("a"));
+        assertTrue(dropKeys.update("drop", Collections.<String>emptyList()).isEmpty());
+        assertTrue(dropKeys.update("drop", Collections.singletonList("a")).isEmpty());
+    }
+
+    public void testDeliveredUntilRemovedFromDrop() {
+        dropKeys.update("drop", Arrays.asList("a", "b"));
+        assertTrue(dropKeys.deliver("a"));
+        assertFalse(dropKeys.deliver("a"));
+
+        dropKeys.update("drop", Collections.singletonList("b"));
+        assertTrue(dropKeys.deliver("a"));
+    }
+
+    public void testDeliveredWhileInAnotherDrop() {
+        dropKeys.update("drop", Collections.singletonList("a"));
+        dropKeys.update("other", Collections.singletonList("a"));
+        assertTrue(dropKeys.deliver("a"));
+
+        dropKeys.update("drop", Collections.singletonList("b"));
+        assertFalse(dropKeys.deliver("a"));
+    }
+
+    public void testRetainDrops() {
+        dropKeys.update("drop", Collections.singletonList("a"));
+        dropKeys.update("other", Collections.singletonList("b"));
+        assertTrue(dropKeys.deliver("a"));
+
+        dropKeys.retainDrops(Collections.singletonList("other"));
+        assertTrue(dropKeys.deliver("a"));
+        assertEquals(Collections.singleton("a"),
+                dropKeys.update("drop", Collections.singletonList("a")));
+    }
+}
@@ -0,0 +1,106 @@
+package de.qabel.qabelbox.services;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class DropPollSchedulerTest extends TestCase {
+
+    private final BlockingQueue<Long> polls = new LinkedBlockingQueue<>();
+    // interval at the start of each poll, it is updated when the poll is finished
+    private final BlockingQueue<Long> intervals = new LinkedBlockingQueue<>();
+    private volatile int received;
+    private DropPollScheduler scheduler;
+
+    public void setUp() throws Exception {
+        scheduler = new DropPollScheduler(new DropPollScheduler.Poller() {
+            @Override
+            public int poll() {
+                intervals.add(scheduler.getInterval());
+                polls.add(System.currentTimeMillis());
+                return received;
+            }
+        });
+    }
+
+    public void tearDown() throws Exception {
+        scheduler.stop();
+    }
+
+    private long nextPoll(long timeout) throws InterruptedException {
+        Long time = polls.poll(timeout, TimeUnit.MILLISECONDS);
+        assertNotNull("No poll within " + timeout + " ms", time);
+        return time;
+    }
+
+    public void testFirstPollImmediately() throws InterruptedException {
+        scheduler.start();
+        nextPoll(1000);
+    }
+
+    public void testBackOffWithoutMessages() throws InterruptedException {
+        scheduler.start();
+        long first = nextPoll(1000);
+        long second = nextPoll(DropPollScheduler.MIN_INTERVAL * 2 + 1000);
+        assertTrue(second - first >= DropPollScheduler.MIN_INTERVAL * 2 - 100);
+        intervals.take();
+        assertThat(intervals.take(), is(DropPollScheduler.MIN_INTERVAL * 2));
+    }
+
+    public void testMessagesKeepMinimumInterval() throws InterruptedException {
+        received = 1;
+        scheduler.start();
+        long first = nextPoll(1000);
+        long second = nextPoll(DropPollScheduler.MIN_INTERVAL + 1000);
+        assertTrue(second - first < DropPollScheduler.MIN_INTERVAL * 2);
+        intervals.take();
+        assertThat(intervals.take(), is(DropPollScheduler.MIN_INTERVAL));
+    }
+
+    public void testPollNow() throws InterruptedException {
+        scheduler.start();
+        nextPoll(1000);
+        scheduler.pollNow();
+        nextPoll(1000);
+    }
+
+    public void testActivityResetsInterval() throws InterruptedException {
+        scheduler.start();
+        long first = nextPoll(1000);
+        // the next poll would be due after twice the minimum interval
+        Thread.sleep(100);
+        scheduler.onActivity();
+        long second = nextPoll(DropPollScheduler.MIN_INTERVAL + 1000);
+        assertTrue(second - first < DropPollScheduler.MIN_INTERVAL * 2);
+    }
+
+    public void testFailedPollBacksOff() throws InterruptedException {
+        scheduler = new DropPollScheduler(new DropPollScheduler.Poller() {
+            @Override
+            public int poll() throws Exception {
+                intervals.add(scheduler.getInterval());
+                polls.add(System.currentTimeMillis());
+                throw new Exception("Drop server unreachable");
+            }
+        });
+        scheduler.start();
+        nextPoll(1000);
+        nextPoll(DropPollScheduler.MIN_INTERVAL * 2 + 1000);
+        intervals.take();
+        assertThat(intervals.take(), is(DropPollScheduler.MIN_INTERVAL * 2));
+    }
+
+    public void testStop() throws InterruptedException {
+        received = 1;
+        scheduler.start();
+        nextPoll(1000);
+        scheduler.stop();
+        scheduler.pollNow();
+        assertNull(polls.poll(DropPollScheduler.MIN_INTERVAL + 500, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,113 @@
+package de.qabel.qabelbox.services;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.qabel.core.config.Contact;
+import de.qabel.core.config.Identity;
+import de.qabel.core.crypto.QblECKeyPair;
+import de.qabel.core.drop.DropURL;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class ResourceRegistryTest extends TestCase {
+
+    private ResourceRegistry registry;
+    private Identity identity;
+
+    public void setUp() throws Exception {
+        registry = new ResourceRegistry();
+        identity = new Identity("identity", new ArrayList<DropURL>(), new QblECKeyPair());
+    }
+
+    /**
+     * Listener that keeps the reported entities by key identifier
+     */
+    private static class CollectingListener implements ResourceRegistry.Listener {
+        final Map<String, Contact> contacts = new HashMap<>();
+        final Map<String, Identity> identities = new HashMap<>();
+
+        @Override
+        public synchronized void onContactsChanged(Collection<Contact> changed) {
+            for (Contact contact : changed) {
+                contacts.put(contact.getKeyIdentifier(), contact);
+            }
+        }
+
+        @Override
+        public synchronized void onIdentitiesChanged(Collection<Identity> changed) {
+            for (Identity identity : changed) {
+                identities.put(identity.getKeyIdentifier(), identity);
+            }
+        }
+    }
+
+    private Contact contact(String name) {
+        return new Contact(identity, name, new ArrayList<DropURL>(), new QblECKeyPair().getPub());
+    }
+
+    public void testLookup() {
+        Contact contact = contact("contact");
+        registry.putContacts(Collections.singletonList(contact));
+        registry.putIdentities(Collections.singletonList(identity));
+        assertThat(registry.getContact(contact.getKeyIdentifier()), is(contact));
+        assertThat(registry.getIdentity(identity.getKeyIdentifier()), is(identity));
+        assertNull(registry.getContact(null));
+        assertNull(registry.getContact("unknown"));
+        assertThat(registry.getContacts().size(), is(1));
+        assertThat(registry.getIdentities().size(), is(1));
+    }
+
+    public void testAddListenerReportsLoaded() {
+        Contact contact = contact("contact");
+        registry.putContacts(Collections.singletonList(contact));
+        registry.putIdentities(Collections.singletonList(identity));
+
+        CollectingListener listener = new CollectingListener();
+        registry.addListener(listener);
+        assertThat(listener.contacts.get(contact.getKeyIdentifier()), is(contact));
+        assertThat(listener.identities.get(identity.getKeyIdentifier()), is(identity));
+    }
+
+    public void testListenerGetsUpdates() {
+        CollectingListener listener = new CollectingListener();
+        registry.addListener(listener);
+        Contact contact = contact("contact");
+        registry.putContacts(Collections.singletonList(contact));
+        assertThat(listener.contacts.get(contact.getKeyIdentifier()), is(contact));
+
+        registry.removeListener(listener);
+        registry.putContacts(Collections.singletonList(contact("other")));
+        assertThat(listener.contacts.size(), is(1));
+    }
+
+    public void testNoUpdateLostWhileAdding() throws InterruptedException {
+        final List<Contact> contacts = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            contacts.add(contact("contact" + i));
+        }
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (Contact contact : contacts) {
+                    registry.putContacts(Collections.singletonList(contact));
+                }
+            }
+        });
+        writer.start();
+        CollectingListener listener = new CollectingListener();
+        registry.addListener(listener);
+        writer.join();
+
+        synchronized (listener) {
+            assertThat(listener.contacts.size(), is(contacts.size()));
+        }
+    }
+}
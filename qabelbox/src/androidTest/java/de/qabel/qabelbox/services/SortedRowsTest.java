@@ -0,0 +1,109 @@
+package de.qabel.qabelbox.services;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class SortedRowsTest extends TestCase {
+
+    private static final int ID_COLUMN = 1;
+
+    private SortedRows rows;
+
+    public void setUp() throws Exception {
+        rows = new SortedRows(ID_COLUMN);
+    }
+
+    private static String[] row(String name, String id) {
+        return new String[]{name, id};
+    }
+
+    private List<String> names(List<String[]> list) {
+        List<String> names = new ArrayList<>();
+        for (String[] row : list) {
+            names.add(row[SortedRows.NAME_COLUMN]);
+        }
+        return names;
+    }
+
+    public void testPutSorted() {
+        rows.put(row("c", "1"));
+        rows.put(row("a", "2"));
+        rows.put(row("b", "3"));
+        assertThat(names(rows.get()), is(Arrays.asList("a", "b", "c")));
+    }
+
+    public void testPutReplacesId() {
+        rows.put(row("a", "1"));
+        rows.put(row("b", "2"));
+        rows.put(row("c", "1"));
+        assertThat(names(rows.get()), is(Arrays.asList("b", "c")));
+    }
+
+    public void testSameNameOrderedById() {
+        rows.put(row("a", "2"));
+        rows.put(row("a", "1"));
+        assertThat(rows.get().get(0)[ID_COLUMN], is("1"));
+        assertThat(rows.get().get(1)[ID_COLUMN], is("2"));
+    }
+
+    public void testNullColumns() {
+        rows.put(row(null, "1"));
+        rows.put(row("a", null));
+        assertThat(rows.get().size(), is(2));
+        assertThat(rows.get().get(0)[SortedRows.NAME_COLUMN], is(nullValue()));
+    }
+
+    public void testPutAll() {
+        rows.put(row("a", "1"));
+        rows.put(row("d", "2"));
+        rows.putAll(Arrays.asList(row("c", "1"), row("b", "3"), row("e", "3")));
+        assertThat(names(rows.get()), is(Arrays.asList("c", "d", "e")));
+    }
+
+    public void testPutAllMany() {
+        List<String[]> many = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            many.add(row("name" + (9999 - i), "id" + i));
+        }
+        rows.putAll(many);
+        rows.putAll(many);
+        List<String[]> sorted = rows.get();
+        assertThat(sorted.size(), is(10000));
+        for (int i = 1; i < sorted.size(); i++) {
+            assertTrue(sorted.get(i - 1)[0].compareTo(sorted.get(i)[0]) < 0);
+        }
+    }
+
+    public void testSnapshotIsNotChanged() {
+        rows.put(row("a", "1"));
+        List<String[]> snapshot = rows.get();
+        rows.put(row("b", "2"));
+        assertThat(snapshot.size(), is(1));
+        try {
+            snapshot.add(row("c", "3"));
+            fail("Snapshot should not be modifiable");
+        } catch (UnsupportedOperationException ignored) {
+        }
+    }
+
+    public void testSelectById() {
+        rows.putAll(Arrays.asList(row("a", "1"), row("b", "2")));
+        assertThat(names(rows.selectById("2")), is(Arrays.asList("b")));
+        assertTrue(rows.selectById("3").isEmpty());
+    }
+
+    public void testSelectByNamePrefix() {
+        rows.putAll(Arrays.asList(row("alice", "1"), row("bob", "2"), row("bobby", "3"),
+                row("carol", "4")));
+        assertThat(names(rows.selectByNamePrefix("bob")), is(Arrays.asList("bob", "bobby")));
+        assertThat(names(rows.selectByNamePrefix("")).size(), is(4));
+        assertTrue(rows.selectByNamePrefix("dave").isEmpty());
+        assertTrue(rows.selectByNamePrefix("b0").isEmpty());
+    }
+}
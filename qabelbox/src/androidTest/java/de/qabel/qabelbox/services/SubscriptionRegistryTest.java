@@ -0,0 +1,168 @@
+package de.qabel.qabelbox.services;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Messenger;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import de.qabel.ServiceConstants;
+import de.qabel.core.config.Identity;
+import de.qabel.core.crypto.QblECKeyPair;
+import de.qabel.core.drop.DropMessage;
+import de.qabel.core.drop.DropURL;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class SubscriptionRegistryTest extends TestCase {
+
+    private static final String TYPE = "test_type";
+
+    private HandlerThread deliveryThread;
+    private HandlerThread clientThread;
+    private SubscriptionRegistry registry;
+    private Identity sender;
+
+    public void setUp() throws Exception {
+        deliveryThread = new HandlerThread("DeliveryThread");
+        deliveryThread.start();
+        clientThread = new HandlerThread("ClientThread");
+        clientThread.start();
+        registry = new SubscriptionRegistry(deliveryThread.getLooper());
+        sender = new Identity("sender", new ArrayList<DropURL>(), new QblECKeyPair());
+    }
+
+    public void tearDown() throws Exception {
+        registry.clear();
+        deliveryThread.quit();
+        clientThread.quit();
+    }
+
+    /**
+     * Client that collects the payloads of the delivered DropMessages
+     */
+    private class Client {
+        final BlockingQueue<String> payloads = new LinkedBlockingQueue<>();
+        final BlockingQueue<Integer> batchSizes = new LinkedBlockingQueue<>();
+        final Messenger messenger = new Messenger(new Handler(clientThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == ServiceConstants.MSG_DROP_MESSAGE) {
+                    batchSizes.add(1);
+                    payloads.add(msg.getData().getString(ServiceConstants.DROP_PAYLOAD));
+                } else if (msg.what == ServiceConstants.MSG_DROP_MESSAGE_BATCH) {
+                    msg.getData().setClassLoader(Bundle.class.getClassLoader());
+                    List<Bundle> batch = msg.getData().getParcelableArrayList(ServiceConstants.DROP_MESSAGES);
+                    batchSizes.add(batch.size());
+                    for (Bundle bundle : batch) {
+                        payloads.add(bundle.getString(ServiceConstants.DROP_PAYLOAD));
+                    }
+                }
+            }
+        });
+
+        String next() throws InterruptedException {
+            return payloads.poll(2, TimeUnit.SECONDS);
+        }
+    }
+
+    private DropMessage message(String payload) {
+        return new DropMessage(sender, payload, TYPE);
+    }
+
+    public void testSubscribe() {
+        Client client = new Client();
+        Client other = new Client();
+        assertTrue(registry.subscribe(TYPE, client.messenger, 1));
+        assertFalse(registry.subscribe(TYPE, client.messenger, 1));
+        assertFalse(registry.subscribe(TYPE, other.messenger, 1));
+    }
+
+    public void testDeliverWithoutSubscribers() {
+        assertFalse(registry.deliver(message("payload")));
+        Client client = new Client();
+        registry.subscribe(TYPE, client.messenger, 1);
+        registry.unsubscribe(TYPE, client.messenger);
+        assertFalse(registry.deliver(message("payload")));
+    }
+
+    public void testDeliverToAllSubscribers() throws InterruptedException {
+        Client client = new Client();
+        Client other = new Client();
+        registry.subscribe(TYPE, client.messenger, 1);
+        registry.subscribe(TYPE, other.messenger, 1);
+        assertTrue(registry.deliver(message("payload")));
+        assertThat(client.next(), is("payload"));
+        assertThat(other.next(), is("payload"));
+    }
+
+    public void testDeliverInBatches() throws InterruptedException {
+        Client client = new Client();
+        registry.subscribe(TYPE, client.messenger, 10);
+        // the delivery looper is blocked, so all messages are flushed at once
+        final Object lock = new Object();
+        synchronized (lock) {
+            new Handler(deliveryThread.getLooper()).post(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (lock) {
+                    }
+                }
+            });
+            for (int i = 0; i < 25; i++) {
+                registry.deliver(message("payload" + i));
+            }
+        }
+        for (int i = 0; i < 25; i++) {
+            assertThat(client.next(), is("payload" + i));
+        }
+        assertThat(client.batchSizes.poll(2, TimeUnit.SECONDS), is(10));
+        assertThat(client.batchSizes.poll(2, TimeUnit.SECONDS), is(10));
+        assertThat(client.batchSizes.poll(2, TimeUnit.SECONDS), is(5));
+    }
+
+    public void testDropOldestBeyondMaxPending() throws InterruptedException {
+        Client client = new Client();
+        registry.subscribe(TYPE, client.messenger, SubscriptionRegistry.MAX_BATCH_SIZE);
+        final Object lock = new Object();
+        synchronized (lock) {
+            new Handler(deliveryThread.getLooper()).post(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (lock) {
+                    }
+                }
+            });
+            for (int i = 0; i < SubscriptionRegistry.MAX_PENDING + 5; i++) {
+                registry.deliver(message("payload" + i));
+            }
+        }
+        for (int i = 5; i < SubscriptionRegistry.MAX_PENDING + 5; i++) {
+            assertThat(client.next(), is("payload" + i));
+        }
+        assertNull(client.payloads.poll(500, TimeUnit.MILLISECONDS));
+    }
+
+    public void testRemove() throws InterruptedException {
+        Client client = new Client();
+        Client other = new Client();
+        registry.subscribe(TYPE, client.messenger, 1);
+        registry.subscribe("other_type", client.messenger, 1);
+        registry.subscribe(TYPE, other.messenger, 1);
+        registry.remove(client.messenger);
+
+        assertTrue(registry.deliver(message("payload")));
+        assertThat(other.next(), is("payload"));
+        assertNull(client.payloads.poll(500, TimeUnit.MILLISECONDS));
+        assertFalse(registry.deliver(new DropMessage(sender, "payload", "other_type")));
+    }
+}
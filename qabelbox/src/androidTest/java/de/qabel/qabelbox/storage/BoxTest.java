@@ -19,6 +19,7 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -27,6 +28,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 
@@ -173,6 +175,95 @@ public class BoxTest extends AndroidTestCase {
         assertThat(dl, is(content));
     }
 
+    @Test
+    public void testUploadDetachedInParallel() throws Exception {
+        final BoxNavigation nav = volume.navigate();
+        final List<BoxFile> uploaded = Collections.synchronizedList(new ArrayList<BoxFile>());
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        List<Thread> threads = new ArrayList<>();
+        for (final String name : new String[] {"first", "second", "third"}) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        uploaded.add(nav.uploadDetached(name, new FileInputStream(new File(testFileName)),
+                                new ByteArrayInputStream(new byte[] {1, 2, 3}), false, null));
+                    } catch (QblStorageException | FileNotFoundException e) {
+                        errors.add(e);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(errors, is(empty()));
+        assertThat(nav.listFiles(), is(empty()));
+
+        for (BoxFile boxFile : uploaded) {
+            nav.insertUploaded(boxFile);
+        }
+        nav.commit();
+        BoxNavigation reloaded = volume.navigate();
+        assertThat(reloaded.listFiles(), hasSize(3));
+        for (BoxFile boxFile : uploaded) {
+            checkFile(boxFile, reloaded);
+            assertThat(IOUtils.toByteArray(reloaded.downloadThumbnail(boxFile)),
+                    equalTo(new byte[] {1, 2, 3}));
+        }
+    }
+
+    @Test
+    public void testVolumeSync() throws QblStorageException, IOException {
+        BoxNavigation nav = volume.navigate();
+        BoxFolder folder = nav.createFolder("folder");
+        nav.commit();
+        nav.navigate(folder);
+        nav.upload("pinned", new FileInputStream(new File(testFileName)), null);
+        nav.commit();
+
+        final List<String> changed = new ArrayList<>();
+        VolumeSync.Callback callback = new VolumeSync.Callback() {
+            @Override
+            public boolean isCancelled() {
+                return false;
+            }
+
+            @Override
+            public boolean isPinned(String path) {
+                return path.equals("/folder/pinned");
+            }
+
+            @Override
+            public void onFolderChanged(String path) {
+                changed.add(path);
+            }
+        };
+        VolumeSync.Stats stats = new VolumeSync.Stats();
+        new VolumeSync(volume).sync(callback, stats);
+        assertThat(stats.foldersChecked, is(2));
+        assertThat(stats.foldersChanged, is(2));
+        assertThat(changed, contains("/", "/folder/"));
+        assertThat(stats.errors, is(0));
+
+        // nothing changed, only the ETags are requested
+        changed.clear();
+        stats = new VolumeSync.Stats();
+        new VolumeSync(volume).sync(callback, stats);
+        assertThat(stats.foldersChecked, is(2));
+        assertThat(stats.foldersChanged, is(0));
+        assertThat(stats.filesPrefetched, is(0));
+
+        nav.upload("other", new FileInputStream(new File(testFileName)), null);
+        nav.commit();
+        stats = new VolumeSync.Stats();
+        new VolumeSync(volume).sync(callback, stats);
+        assertThat(stats.foldersChanged, is(1));
+        assertThat(changed, contains("/folder/"));
+    }
+
     @Test
     public void testCreateFolder() throws QblStorageException, IOException {
         BoxNavigation nav = volume.navigate();
@@ -211,6 +302,72 @@ public class BoxTest extends AndroidTestCase {
         checkDeleted(boxFolder, subfolder, boxFile, nav_after);
     }
 
+    @Test
+    public void testNavigateOfflineFirst() throws QblStorageException, IOException {
+        BoxNavigation nav = volume.navigate();
+        BoxFolder boxFolder = nav.createFolder("foobdir");
+        nav.commit();
+        nav.navigate(boxFolder);
+        uploadFile(nav);
+
+        BoxNavigation offline = volume.navigateOfflineFirst();
+        assertThat(offline.isStale(), is(true));
+        assertThat(offline.listFolders(), contains(boxFolder));
+        offline.navigate(boxFolder);
+        assertThat(offline.isStale(), is(true));
+        assertThat(offline.listFiles().size(), is(1));
+
+        offline.reload();
+        assertThat(offline.isStale(), is(false));
+        assertThat(offline.listFiles().size(), is(1));
+    }
+
+    @Test
+    public void testFolderPages() throws QblStorageException, IOException {
+        BoxNavigation nav = volume.navigate();
+        BoxFolder folderB = nav.createFolder("b");
+        BoxFolder folderA = nav.createFolder("a");
+        BoxFile file = nav.upload("foobar", new FileInputStream(new File(testFileName)), null);
+        nav.commit();
+
+        List<BoxObject> first = FolderPages.next(nav, null, 2);
+        assertThat(first, contains((BoxObject) folderA, folderB));
+        List<BoxObject> second = FolderPages.next(nav, first.get(1), 2);
+        assertThat(second, contains((BoxObject) file));
+        assertThat(FolderPages.next(nav, file, 2).isEmpty(), is(true));
+    }
+
+    @Test
+    public void testFolderPagesOrderedLikeBoxObjects() throws QblStorageException, IOException {
+        BoxNavigation nav = volume.navigate();
+        nav.createFolder("a");
+        nav.createFolder("c");
+        nav.upload("b", new FileInputStream(new File(testFileName)), null);
+        ((AbstractNavigation) nav).dm.insertExternal(
+                new BoxExternal("url", "b2", new QblECKeyPair().getPub(), new byte[] {1}));
+        ((AbstractNavigation) nav).dm.insertExternal(
+                new BoxExternal("url", "d", new QblECKeyPair().getPub(), new byte[] {1}));
+        nav.commit();
+
+        List<BoxObject> listing = new ArrayList<>();
+        BoxObject last = null;
+        List<BoxObject> page;
+        do {
+            page = FolderPages.next(nav, last, 2);
+            listing.addAll(page);
+            last = page.isEmpty() ? null : page.get(page.size() - 1);
+        } while (page.size() == 2);
+
+        List<String> names = new ArrayList<>();
+        for (BoxObject boxObject : listing) {
+            names.add(boxObject.name);
+        }
+        assertThat(names, contains("a", "b2", "c", "d", "b"));
+        List<BoxObject> sorted = new ArrayList<>(listing);
+        Collections.sort(sorted);
+        assertThat(listing, is(sorted));
+    }
+
     private void checkDeleted(BoxFolder boxFolder, BoxFolder subfolder, BoxFile boxFile, BoxNavigation nav) throws QblStorageException {
         try {
             nav.download(boxFile, null);
@@ -360,6 +517,94 @@ public class BoxTest extends AndroidTestCase {
     //	assertThat(nav.listFiles().get(0).name, startsWith("foobar_conflict"));
     //}
 
+    @Test
+    public void testMoveFile() throws QblStorageException, IOException {
+        BoxNavigation nav = volume.navigate();
+        BoxFolder boxFolder = nav.createFolder("foobdir");
+        nav.commit();
+        BoxFile boxFile = uploadFile(nav);
+
+        BoxFile moved = nav.move(boxFile, boxFolder, "/foobdir/");
+        nav.commit();
+        assertThat(nav.listFiles().size(), is(0));
+        assertThat(moved.block, is(boxFile.block));
+
+        nav = volume.navigate();
+        assertThat(nav.listFiles().size(), is(0));
+        nav.navigate(boxFolder);
+        assertThat(nav.listFiles().size(), is(1));
+        checkFile(nav.listFiles().get(0), nav);
+    }
+
+    @Test
+    public void testMoveFileWithConflict() throws QblStorageException, IOException {
+        BoxNavigation nav = volume.navigate();
+        BoxFolder boxFolder = nav.createFolder("foobdir");
+        nav.commit();
+        BoxFile boxFile = uploadFile(nav);
+
+        BoxNavigation nav2 = volume2.navigate();
+        nav2.createFolder("other");
+        nav.move(boxFile, boxFolder, "/foobdir/");
+        nav2.commit();
+        nav.commit();
+
+        nav = volume.navigate();
+        assertThat(nav.listFolders().size(), is(2));
+        assertThat(nav.listFiles().size(), is(0));
+        nav.navigate(boxFolder);
+        assertThat(nav.listFiles().size(), is(1));
+        checkFile(nav.listFiles().get(0), nav);
+    }
+
+    @Test
+    public void testMoveFileToRoot() throws QblStorageException, IOException {
+        BoxNavigation nav = volume.navigate();
+        BoxFolder boxFolder = nav.createFolder("foobdir");
+        nav.commit();
+        nav.navigate(boxFolder);
+        BoxFile boxFile = uploadFile(nav);
+
+        nav.move(boxFile, new BoxFolder(volume.getRootRef(), "", null), "/");
+        nav.commit();
+        assertThat(nav.listFiles().size(), is(0));
+
+        nav = volume.navigate();
+        assertThat(nav.listFiles().size(), is(1));
+        checkFile(nav.listFiles().get(0), nav);
+    }
+
+    @Test
+    public void testCopyFile() throws QblStorageException, IOException {
+        BoxNavigation nav = volume.navigate();
+        BoxFolder boxFolder = nav.createFolder("foobdir");
+        nav.commit();
+        BoxFile boxFile = uploadFile(nav);
+
+        BoxFile copy = nav.copy(boxFile, boxFolder, "/foobdir/");
+        assertThat(copy.block, not(equalTo(boxFile.block)));
+        assertThat(nav.listFiles().size(), is(1));
+
+        nav.navigate(boxFolder);
+        assertThat(nav.listFiles().size(), is(1));
+        checkFile(nav.listFiles().get(0), nav);
+    }
+
+    @Test
+    public void testCopyFileNameConflict() throws QblStorageException, IOException {
+        BoxNavigation nav = volume.navigate();
+        BoxFolder boxFolder = nav.createFolder("foobdir");
+        nav.commit();
+        BoxFile boxFile = uploadFile(nav);
+        nav.copy(boxFile, boxFolder, "/foobdir/");
+        try {
+            nav.copy(boxFile, boxFolder, "/foobdir/");
+        } catch (QblStorageNameConflict e) {
+            return;
+        }
+        fail("Expected QblStorageNameConflict");
+    }
+
     @Test
     public void testUploadLargeFile() throws QblStorageException, IOException {
         BoxNavigation nav = volume.navigate();
@@ -392,6 +637,98 @@ public class BoxTest extends AndroidTestCase {
         assertThat("Downloaded file is not correct", dl, is(content));
     }
 
+    @Test
+    public void testDownloadStream() throws QblStorageException, IOException {
+        File file = smallTestFile();
+        BoxNavigation nav = volume.navigate();
+        BoxFile boxFile = nav.upload("foobar", new FileInputStream(file), null);
+        nav.commit();
+        byte[] content = IOUtils.toByteArray(new FileInputStream(file));
+
+        // first from the server, then from the cache filled by the first read
+        assertThat(IOUtils.toByteArray(nav.downloadStream(boxFile)), is(content));
+        assertThat(IOUtils.toByteArray(nav.downloadStream(boxFile)), is(content));
+    }
+
+    @Test
+    public void testDownloadStreamCacheFailure() throws QblStorageException, IOException {
+        File file = smallTestFile();
+        BoxNavigation nav = volume.navigate();
+        BoxFile boxFile = nav.upload("foobar", new FileInputStream(file), null);
+        nav.commit();
+        nav.download(boxFile, null);
+        corruptCachedFile(boxFile);
+
+        byte[] dl = IOUtils.toByteArray(nav.downloadStream(boxFile));
+        byte[] content = IOUtils.toByteArray(new FileInputStream(file));
+        assertThat("Downloaded file is not correct", dl, is(content));
+    }
+
+    @Test
+    public void testUploadSeekable() throws QblStorageException, IOException {
+        BoxNavigation nav = volume.navigate();
+        BoxFile boxFile = nav.uploadSeekable("foobar", new FileInputStream(testFileName), null);
+        nav.commit();
+        checkFile(boxFile, nav);
+        byte[] content = IOUtils.toByteArray(new FileInputStream(testFileName));
+        assertThat(IOUtils.toByteArray(nav.downloadStream(boxFile)), is(content));
+
+        SegmentedBlock.Reader reader = nav.openSeekable(boxFile);
+        assertThat(reader.getSize(), is((long) content.length));
+        int offset = SegmentedBlock.DEFAULT_SEGMENT_SIZE - 10;
+        byte[] range = new byte[100];
+        assertThat(reader.read(offset, range, 0, range.length), is(range.length));
+        assertThat(range, is(Arrays.copyOfRange(content, offset, offset + range.length)));
+    }
+
+    @Test
+    public void testOpenSeekableTruncatedCache() throws QblStorageException, IOException {
+        BoxNavigation nav = volume.navigate();
+        BoxFile boxFile = nav.uploadSeekable("foobar", new FileInputStream(testFileName), null);
+        nav.commit();
+        assertTrue(nav.prefetch(boxFile));
+        // the cached copy ends in the header, ranges after it have to be downloaded
+        corruptCachedFile(boxFile);
+
+        byte[] content = IOUtils.toByteArray(new FileInputStream(testFileName));
+        SegmentedBlock.Reader reader = nav.openSeekable(boxFile);
+        byte[] range = new byte[100];
+        int offset = content.length - range.length;
+        assertThat(reader.read(offset, range, 0, range.length), is(range.length));
+        assertThat(range, is(Arrays.copyOfRange(content, offset, content.length)));
+    }
+
+    @Test
+    public void testUploadThumbnail() throws QblStorageException, IOException {
+        BoxNavigation nav = volume.navigate();
+        BoxFile boxFile = uploadFile(nav);
+        byte[] thumbnail = new byte[] {1, 2, 3};
+        nav.uploadThumbnail(boxFile, new ByteArrayInputStream(thumbnail));
+        nav.commit();
+
+        nav = volume.navigate();
+        BoxFile listed = nav.listFiles().get(0);
+        assertThat(listed.thumbnail, is(boxFile.thumbnail));
+        assertThat(IOUtils.toByteArray(nav.downloadThumbnail(listed)), is(thumbnail));
+        checkFile(listed, nav);
+    }
+
+    @Test
+    public void testUploadThumbnailWithConflict() throws QblStorageException, IOException {
+        BoxNavigation nav = volume.navigate();
+        BoxFile boxFile = uploadFile(nav);
+        BoxNavigation nav2 = volume2.navigate();
+        nav2.createFolder("other");
+        nav.uploadThumbnail(boxFile, new ByteArrayInputStream(new byte[] {1, 2, 3}));
+        nav2.commit();
+        nav.commit();
+
+        nav = volume.navigate();
+        assertThat(nav.listFolders().size(), is(1));
+        assertThat(nav.listFiles().size(), is(1));
+        assertThat(nav.listFiles().get(0).thumbnail, is(boxFile.thumbnail));
+    }
+
     private void corruptCachedFile(BoxFile boxFile) throws IOException {
         // corrupt the file
         FileOutputStream outputStream = new FileOutputStream(new FileCache(getContext()).get(boxFile));
@@ -0,0 +1,125 @@
+package de.qabel.qabelbox.storage;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+
+import de.qabel.core.crypto.CryptoUtils;
+import de.qabel.core.crypto.QblECKeyPair;
+import de.qabel.qabelbox.exceptions.QblStorageException;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class DirectoryMetadataCacheTest extends TestCase {
+
+	private DirectoryMetadataCache cache;
+	private DirectoryMetadata dm;
+	private File tempDir;
+	private File directory;
+	private byte[] key;
+
+	public void setUp() throws Exception {
+		tempDir = new File(System.getProperty("java.io.tmpdir"));
+		directory = new File(tempDir, UUID.randomUUID().toString());
+		cache = new DirectoryMetadataCache(directory, new QblECKeyPair());
+		key = new CryptoUtils().generateSymmetricKey().getKey();
+		dm = DirectoryMetadata.newDatabase("https://localhost", new byte[] {1, 2}, tempDir);
+	}
+
+	@Test
+	public void testCacheMiss() throws QblStorageException {
+		assertNull(cache.get(dm.getFileName(), key, dm.deviceId, tempDir));
+	}
+
+	@Test
+	public void testPutAndGet() throws QblStorageException {
+		BoxFile file = new BoxFile("block", "name", 0L, 0L, new byte[] {1, 2,});
+		dm.insertFile(file);
+		dm.commit();
+		cache.put(dm, key);
+
+		DirectoryMetadata cached = cache.get(dm.getFileName(), key, dm.deviceId, tempDir);
+		assertThat(cached.getFileName(), is(dm.getFileName()));
+		assertThat(cached.getVersion(), is(dm.getVersion()));
+		assertThat(cached.getFile("name"), equalTo(file));
+	}
+
+	@Test
+	public void testGetReturnsWorkingCopy() throws QblStorageException {
+		cache.put(dm, key);
+		DirectoryMetadata cached = cache.get(dm.getFileName(), key, dm.deviceId, tempDir);
+		cached.insertFile(new BoxFile("block", "name", 0L, 0L, new byte[] {1, 2,}));
+
+		DirectoryMetadata again = cache.get(dm.getFileName(), key, dm.deviceId, tempDir);
+		assertThat(again.listFiles().size(), is(0));
+	}
+
+	@Test
+	public void testPutReplaces() throws QblStorageException {
+		cache.put(dm, key);
+		dm.insertFolder(new BoxFolder("block", "folder", new byte[] {1, 2,}));
+		cache.put(dm, key);
+		DirectoryMetadata cached = cache.get(dm.getFileName(), key, dm.deviceId, tempDir);
+		assertThat(cached.listFolders().size(), is(1));
+	}
+
+	@Test
+	public void testRemove() throws QblStorageException {
+		cache.put(dm, key);
+		cache.remove(dm.getFileName());
+		assertNull(cache.get(dm.getFileName(), key, dm.deviceId, tempDir));
+	}
+
+	@Test
+	public void testSyncState() throws QblStorageException {
+		assertNull(cache.getSyncState(dm.getFileName()));
+		cache.put(dm, key);
+		cache.putSyncState(dm.getFileName(), "etag", new byte[] {1, 2});
+		assertThat(cache.getSyncState(dm.getFileName()), is(new String[] {"etag", "0102"}));
+
+		cache.remove(dm.getFileName());
+		assertThat(cache.contains(dm.getFileName()), is(false));
+		assertNull(cache.getSyncState(dm.getFileName()));
+	}
+
+	@Test
+	public void testStoredEncrypted() throws QblStorageException, IOException {
+		cache.put(dm, key);
+		byte[] stored = FileUtils.readFileToByteArray(new File(directory, dm.getFileName()));
+		byte[] plain = FileUtils.readFileToByteArray(dm.getPath());
+		assertThat(stored, not(equalTo(plain)));
+		assertThat(new String(stored, "ISO-8859-1").contains("SQLite format"), is(false));
+	}
+
+	@Test
+	public void testRootWithKeyPair() throws QblStorageException {
+		dm.insertFile(new BoxFile("block", "name", 0L, 0L, new byte[] {1, 2,}));
+		cache.put(dm, null);
+		DirectoryMetadata cached = cache.get(dm.getFileName(), null, dm.deviceId, tempDir);
+		assertThat(cached.listFiles().size(), is(1));
+	}
+
+	@Test
+	public void testWrongKeyIsMiss() throws QblStorageException {
+		cache.put(dm, key);
+		byte[] otherKey = new CryptoUtils().generateSymmetricKey().getKey();
+		assertNull(cache.get(dm.getFileName(), otherKey, dm.deviceId, tempDir));
+		assertThat(cache.contains(dm.getFileName()), is(false));
+	}
+
+	@Test
+	public void testUnencryptedCopiesAreDropped() throws Exception {
+		File old = new File(tempDir, UUID.randomUUID().toString());
+		assertTrue(old.mkdirs());
+		FileUtils.copyFile(dm.getPath(), new File(old, dm.getFileName()));
+		DirectoryMetadataCache upgraded = new DirectoryMetadataCache(old, new QblECKeyPair());
+		assertThat(upgraded.contains(dm.getFileName()), is(false));
+	}
+}
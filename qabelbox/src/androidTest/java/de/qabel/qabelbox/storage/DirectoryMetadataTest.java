@@ -14,6 +14,7 @@ import org.junit.Test;
 import java.io.File;
 import java.nio.ByteBuffer;
 import java.sql.SQLException;
+import java.util.List;
 import java.util.UUID;
 
 import static org.hamcrest.CoreMatchers.*;
@@ -56,6 +57,69 @@ public class DirectoryMetadataTest extends TestCase{
 		assertThat(dm.listFiles().size(), is(0));
 	}
 
+	@Test
+	public void testFileThumbnail() throws QblStorageException {
+		BoxFile file = new BoxFile("block", "name", 0L, 0L, new byte[] {1,2,});
+		file.thumbnail = "thumbnail";
+		dm.insertFile(file);
+		assertThat(dm.getFile("name").thumbnail, is("thumbnail"));
+		assertThat(file, equalTo(dm.listFiles().get(0)));
+	}
+
+	@Test
+	public void testFileSegmentSize() throws QblStorageException {
+		BoxFile file = new BoxFile("block", "name", 0L, 0L, new byte[] {1,2,});
+		file.segmentSize = SegmentedBlock.DEFAULT_SEGMENT_SIZE;
+		dm.insertFile(file);
+		assertThat(dm.getFile("name").segmentSize, is(SegmentedBlock.DEFAULT_SEGMENT_SIZE));
+		assertThat(file, equalTo(dm.listFiles().get(0)));
+
+		BoxFile plain = new BoxFile("block2", "plain", 0L, 0L, new byte[] {1,2,});
+		dm.insertFile(plain);
+		assertNull(dm.getFile("plain").segmentSize);
+	}
+
+	@Test
+	public void testReopenWithThumbnail() throws Exception {
+		BoxFile file = new BoxFile("block", "name", 0L, 0L, new byte[] {1,2,});
+		file.thumbnail = "thumbnail";
+		dm.insertFile(file);
+		DirectoryMetadata reopened = DirectoryMetadata.openDatabase(dm.getPath(), dm.deviceId,
+				dm.getFileName(), dm.getTempDir());
+		assertThat(reopened.getFile("name"), equalTo(file));
+	}
+
+	@Test
+	public void testListFilesPaged() throws QblStorageException {
+		for (String name : new String[] {"d", "b", "a", "e", "c"}) {
+			dm.insertFile(new BoxFile("block" + name, name, 0L, 0L, new byte[] {1,2,}));
+		}
+		List<BoxFile> first = dm.listFiles(null, 2);
+		assertThat(first.size(), is(2));
+		assertThat(first.get(0).name, is("a"));
+		assertThat(first.get(1).name, is("b"));
+		List<BoxFile> second = dm.listFiles("b", 2);
+		assertThat(second.get(0).name, is("c"));
+		assertThat(second.get(1).name, is("d"));
+		List<BoxFile> last = dm.listFiles("d", 2);
+		assertThat(last.size(), is(1));
+		assertThat(last.get(0).name, is("e"));
+		assertThat(dm.listFiles("e", 2).size(), is(0));
+	}
+
+	@Test
+	public void testListFoldersPaged() throws QblStorageException {
+		for (String name : new String[] {"c", "a", "b"}) {
+			dm.insertFolder(new BoxFolder("ref" + name, name, new byte[] {1,2,}));
+		}
+		List<BoxFolder> first = dm.listFolders(null, 2);
+		assertThat(first.size(), is(2));
+		assertThat(first.get(1).name, is("b"));
+		List<BoxFolder> last = dm.listFolders("b", 2);
+		assertThat(last.size(), is(1));
+		assertThat(last.get(0), equalTo(new BoxFolder("refc", "c", new byte[] {1,2,})));
+	}
+
 	@Test
 	public void testFolderOperations() throws QblStorageException {
 		BoxFolder folder = new BoxFolder("block", "name", new byte[] {1,2,});
@@ -66,6 +130,15 @@ public class DirectoryMetadataTest extends TestCase{
 		assertThat(dm.listFolders().size(), is(0));
 	}
 
+	@Test
+	public void testGetFolder() throws QblStorageException {
+		BoxFolder folder = new BoxFolder("block", "name", new byte[] {1,2,});
+		dm.insertFolder(folder);
+		assertThat(dm.getFolder("name"), equalTo(folder));
+		assertNull(dm.getFolder("other"));
+		assertNull(dm.getFile("name"));
+	}
+
 	@Test
 	public void testExternalOperations() throws QblStorageException {
 		BoxExternal external = new BoxExternal("https://foobar", "name",
@@ -0,0 +1,133 @@
+package de.qabel.qabelbox.storage;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import de.qabel.core.crypto.CryptoUtils;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class SegmentedBlockTest extends TestCase {
+
+	private static final int SEGMENT_SIZE = 1024;
+
+	private KeyParameter key;
+	private byte[] plaintext;
+
+	public void setUp() throws Exception {
+		key = new CryptoUtils().generateSymmetricKey();
+		plaintext = new byte[SEGMENT_SIZE * 3 + 100];
+		new Random(42).nextBytes(plaintext);
+	}
+
+	private byte[] encrypt(byte[] content) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		SegmentedBlock.encrypt(new ByteArrayInputStream(content), out, key, SEGMENT_SIZE);
+		return out.toByteArray();
+	}
+
+	private SegmentedBlock.Reader reader(final byte[] encrypted) throws IOException {
+		return new SegmentedBlock.Reader(new SegmentedBlock.RangeSource() {
+			@Override
+			public InputStream open(long offset, long length) {
+				return new ByteArrayInputStream(encrypted, (int) offset, (int) length);
+			}
+		}, encrypted.length, key);
+	}
+
+	@Test
+	public void testStreamRoundTrip() throws IOException {
+		byte[] encrypted = encrypt(plaintext);
+		assertThat(SegmentedBlock.isSegmented(encrypted), is(true));
+		byte[] decrypted = IOUtils.toByteArray(
+				SegmentedBlock.decryptingStream(new ByteArrayInputStream(encrypted), key));
+		assertThat(decrypted, is(plaintext));
+	}
+
+	@Test
+	public void testExactSegmentsAndEmpty() throws IOException {
+		for (byte[] content : new byte[][]{new byte[0], Arrays.copyOf(plaintext, SEGMENT_SIZE * 2)}) {
+			byte[] encrypted = encrypt(content);
+			assertThat(IOUtils.toByteArray(SegmentedBlock.decryptingStream(
+					new ByteArrayInputStream(encrypted), key)), is(content));
+			assertThat(reader(encrypted).getSize(), is((long) content.length));
+		}
+	}
+
+	@Test
+	public void testPlaintextSize() throws IOException {
+		for (int length : new int[]{0, 1, SEGMENT_SIZE - 1, SEGMENT_SIZE, SEGMENT_SIZE + 1, plaintext.length}) {
+			byte[] encrypted = encrypt(Arrays.copyOf(plaintext, length));
+			assertThat(SegmentedBlock.plaintextSize(encrypted.length, SEGMENT_SIZE), is((long) length));
+		}
+		assertThat(SegmentedBlock.plaintextSize(SegmentedBlock.HEADER_SIZE + 1, SEGMENT_SIZE), is(-1L));
+	}
+
+	@Test
+	public void testRandomAccess() throws IOException {
+		SegmentedBlock.Reader reader = reader(encrypt(plaintext));
+		assertThat(reader.getSize(), is((long) plaintext.length));
+
+		// range across a segment boundary
+		byte[] buffer = new byte[200];
+		int read = reader.read(SEGMENT_SIZE - 50, buffer, 0, buffer.length);
+		assertThat(read, is(200));
+		assertThat(buffer, is(Arrays.copyOfRange(plaintext, SEGMENT_SIZE - 50, SEGMENT_SIZE + 150)));
+
+		// range at the end
+		read = reader.read(plaintext.length - 10, buffer, 0, buffer.length);
+		assertThat(read, is(10));
+		assertThat(Arrays.copyOf(buffer, 10),
+				is(Arrays.copyOfRange(plaintext, plaintext.length - 10, plaintext.length)));
+		assertThat(reader.read(plaintext.length, buffer, 0, buffer.length), is(-1));
+	}
+
+	@Test
+	public void testOpenStream() throws IOException {
+		SegmentedBlock.Reader reader = reader(encrypt(plaintext));
+		for (int position : new int[]{0, 10, SEGMENT_SIZE, SEGMENT_SIZE * 2 + 7, plaintext.length}) {
+			assertThat(IOUtils.toByteArray(reader.openStream(position)),
+					is(Arrays.copyOfRange(plaintext, position, plaintext.length)));
+		}
+		try {
+			reader.openStream(plaintext.length + 1);
+			fail("Expected IOException for a position after the end");
+		} catch (IOException e) { }
+	}
+
+	@Test
+	public void testModifiedSegment() throws IOException {
+		byte[] encrypted = encrypt(plaintext);
+		encrypted[SegmentedBlock.HEADER_SIZE + SEGMENT_SIZE + 20] ^= 1;
+		SegmentedBlock.Reader reader = reader(encrypted);
+		byte[] buffer = new byte[10];
+		assertThat(reader.read(0, buffer, 0, buffer.length), is(10));
+		try {
+			reader.read(SEGMENT_SIZE + 10, buffer, 0, buffer.length);
+			fail("Expected IOException for the modified segment");
+		} catch (IOException e) { }
+	}
+
+	@Test
+	public void testTruncatedBlock() throws IOException {
+		byte[] encrypted = encrypt(plaintext);
+		byte[] truncated = Arrays.copyOf(encrypted,
+				SegmentedBlock.HEADER_SIZE + 2 * (SEGMENT_SIZE + SegmentedBlock.MAC_SIZE));
+		try {
+			IOUtils.toByteArray(SegmentedBlock.decryptingStream(
+					new ByteArrayInputStream(truncated), key));
+			fail("Expected IOException for the truncated block");
+		} catch (IOException e) { }
+	}
+}
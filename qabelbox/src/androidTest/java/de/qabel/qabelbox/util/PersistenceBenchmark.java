@@ -0,0 +1,74 @@
+package de.qabel.qabelbox.util;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import de.qabel.core.config.Contact;
+import de.qabel.core.config.DropServer;
+import de.qabel.core.config.Identity;
+import de.qabel.core.crypto.QblECKeyPair;
+import de.qabel.core.drop.DropURL;
+import de.qabel.qabelbox.QabelBoxApplication;
+import de.qabel.qabelbox.config.AndroidPersistence;
+import de.qabel.qabelbox.config.QblSQLiteParams;
+
+/**
+ * Compares importing contacts one by one with the bulk import.
+ * Timings are only logged.
+ */
+public class PersistenceBenchmark extends AndroidTestCase {
+    private static final String TAG = "PersistenceBenchmark";
+    private final static char[] ENCRYPTION_PASSWORD = "password".toCharArray();
+    private final static String DB_NAME = "qabel-android-benchmark";
+    private final static int DB_VERSION = 1;
+    private static final int CONTACTS = 1000;
+
+    private List<Contact> contacts;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        DropServer dropServer = new DropServer(URI.create(QabelBoxApplication.DEFAULT_DROP_SERVER), "", true);
+        Collection<DropURL> dropURLs = new ArrayList<>();
+        dropURLs.add(new DropURL(dropServer));
+        Identity identity = new Identity("benchmark", dropURLs, new QblECKeyPair());
+        contacts = new ArrayList<>();
+        for (int i = 0; i < CONTACTS; i++) {
+            contacts.add(new Contact(identity, "contact" + i, dropURLs,
+                    new QblECKeyPair().getPub()));
+        }
+    }
+
+    private AndroidPersistence openPersistence() throws Exception {
+        getContext().deleteDatabase(DB_NAME);
+        QblSQLiteParams params = new QblSQLiteParams(getContext(), DB_NAME, null, DB_VERSION);
+        return new AndroidPersistence(params, ENCRYPTION_PASSWORD);
+    }
+
+    public void testSingleImport() throws Exception {
+        AndroidPersistence persistence = openPersistence();
+        long start = System.nanoTime();
+        for (Contact contact : contacts) {
+            assertTrue(persistence.persistEntity(contact));
+        }
+        report("persistEntity", start);
+    }
+
+    public void testBulkImport() throws Exception {
+        AndroidPersistence persistence = openPersistence();
+        long start = System.nanoTime();
+        assertTrue(persistence.persistEntities(contacts));
+        report("persistEntities", start);
+        assertEquals(CONTACTS, persistence.getEntities(Contact.class).size());
+    }
+
+    private static void report(String name, long start) {
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        Log.i(TAG, name + ": " + CONTACTS + " contacts in " + elapsed + " ms");
+    }
+}
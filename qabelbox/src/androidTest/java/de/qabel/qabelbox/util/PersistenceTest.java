@@ -6,6 +6,8 @@ import android.test.AndroidTestCase;
 import junit.framework.Assert;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import de.qabel.core.config.Persistable;
@@ -59,6 +61,64 @@ public class PersistenceTest extends AndroidTestCase {
         Assert.assertTrue(objects.contains(pto2));
     }
 
+    public void testPersistEntities() {
+        List<PersistenceTestObject> ptos = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            ptos.add(new PersistenceTestObject("pto" + i));
+        }
+        Assert.assertTrue(persistence.persistEntities(ptos));
+
+        List<Persistable> objects = persistence.getEntities(PersistenceTestObject.class);
+        Assert.assertEquals(10, objects.size());
+        Assert.assertTrue(objects.containsAll(ptos));
+    }
+
+    public void testGetEntitiesDecryptedInParallel() throws QblInvalidEncryptionKeyException {
+        List<PersistenceTestObject> ptos = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            ptos.add(new PersistenceTestObject("pto" + i));
+        }
+        Assert.assertTrue(persistence.persistEntities(ptos));
+
+        // a new connection starts with an empty cache
+        QblSQLiteParams params = new QblSQLiteParams(getContext(), DB_NAME, null, DB_VERSION);
+        AndroidPersistence reopened = new AndroidPersistence(params, ENCRYPTION_PASSWORD);
+        List<Persistable> objects = reopened.getEntities(PersistenceTestObject.class);
+        Assert.assertEquals(ptos, objects);
+
+        final List<Persistable> streamed = new ArrayList<>();
+        reopened = new AndroidPersistence(params, ENCRYPTION_PASSWORD);
+        reopened.getEntities(PersistenceTestObject.class, new AndroidPersistence.EntityCallback() {
+            @Override
+            public void onEntity(Persistable entity) {
+                streamed.add(entity);
+            }
+        });
+        Assert.assertEquals(100, streamed.size());
+        Assert.assertTrue(streamed.containsAll(ptos));
+    }
+
+    public void testPersistEntitiesRollback() {
+        PersistenceTestObject pto = new PersistenceTestObject("pto");
+        Assert.assertTrue(persistence.persistEntity(pto));
+
+        // the second entity already exists, nothing of the batch may be stored
+        PersistenceTestObject pto2 = new PersistenceTestObject("pto2");
+        Assert.assertFalse(persistence.persistEntities(Arrays.asList(pto2, pto)));
+        Assert.assertNull(persistence.getEntity(pto2.getPersistenceID(), PersistenceTestObject.class));
+        Assert.assertEquals(1, persistence.getEntities(PersistenceTestObject.class).size());
+    }
+
+    public void testPersistEntitiesFirstBatchRollback() {
+        // the table is created by the failing batch, it must survive the rollback
+        PersistenceTestObject pto = new PersistenceTestObject("pto");
+        Assert.assertFalse(persistence.persistEntities(Arrays.asList(pto, pto)));
+        Assert.assertEquals(0, persistence.getEntities(PersistenceTestObject.class).size());
+
+        Assert.assertTrue(persistence.persistEntity(pto));
+        Assert.assertEquals(pto, persistence.getEntity(pto.getPersistenceID(), PersistenceTestObject.class));
+    }
+
     public void testGetEntitiesEmpty() {
         List<Persistable> objects = persistence.getEntities(PersistenceTestObject.class);
         Assert.assertEquals(0, objects.size());
@@ -91,6 +151,50 @@ public class PersistenceTest extends AndroidTestCase {
         Assert.assertEquals(pto, receivedPto);
     }
 
+    public void testGetEntitiesAfterChanges() {
+        PersistenceTestObject pto = new PersistenceTestObject("pto");
+        PersistenceTestObject pto2 = new PersistenceTestObject("pto2");
+        Assert.assertTrue(persistence.persistEntity(pto));
+        Assert.assertTrue(persistence.persistEntity(pto2));
+        Assert.assertEquals(2, persistence.getEntities(PersistenceTestObject.class).size());
+
+        PersistenceTestObject changed = new PersistenceTestObject("changed");
+        Assert.assertTrue(persistence.removeEntity(pto2.getPersistenceID(), PersistenceTestObject.class));
+        Assert.assertTrue(persistence.updateOrPersistEntity(changed));
+
+        List<Persistable> objects = persistence.getEntities(PersistenceTestObject.class);
+        Assert.assertEquals(2, objects.size());
+        Assert.assertTrue(objects.contains(pto));
+        Assert.assertTrue(objects.contains(changed));
+        Assert.assertFalse(objects.contains(pto2));
+    }
+
+    public void testReopenReadsStoredEntities() throws QblInvalidEncryptionKeyException {
+        PersistenceTestObject pto = new PersistenceTestObject("pto");
+        Assert.assertTrue(persistence.persistEntity(pto));
+
+        QblSQLiteParams params = new QblSQLiteParams(getContext(), DB_NAME, null, DB_VERSION);
+        AndroidPersistence reopened = new AndroidPersistence(params, ENCRYPTION_PASSWORD);
+        Assert.assertEquals(pto, reopened.getEntity(pto.getPersistenceID(), PersistenceTestObject.class));
+    }
+
+    public void testCacheReturnsCopies() {
+        PersistenceTestObject pto = new PersistenceTestObject("pto");
+        Assert.assertTrue(persistence.persistEntity(pto));
+
+        // changes without an update must not reach the persistence
+        pto.data = "changed";
+        PersistenceTestObject received = (PersistenceTestObject) persistence.getEntity(
+                pto.getPersistenceID(), PersistenceTestObject.class);
+        Assert.assertEquals("pto", received.data);
+        Assert.assertNotSame(received, persistence.getEntity(pto.getPersistenceID(),
+                PersistenceTestObject.class));
+
+        received.data = "changed again";
+        Assert.assertEquals("pto", ((PersistenceTestObject) persistence.getEntities(
+                PersistenceTestObject.class).get(0)).data);
+    }
+
     public void testUpdateNotStoredEntity() {
         PersistenceTestObject pto = new PersistenceTestObject("pto");
         Assert.assertFalse(persistence.updateEntity(pto));
@@ -3,6 +3,8 @@ package de.qabel.qabelbox;
 import android.app.Application;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
@@ -17,7 +19,9 @@ import de.qabel.core.config.ResourceActor;
 import de.qabel.core.crypto.CryptoUtils;
 import de.qabel.core.exceptions.QblInvalidEncryptionKeyException;
 import de.qabel.qabelbox.activities.MainActivity;
+import de.qabel.qabelbox.adapter.BoxSyncAdapter;
 import de.qabel.qabelbox.config.AndroidPersistence;
+import de.qabel.qabelbox.config.UnlockTimings;
 import de.qabel.qabelbox.config.QblSQLiteParams;
 import de.qabel.qabelbox.providers.BoxProvider;
 
@@ -28,6 +32,7 @@ public class QabelBoxApplication extends Application {
     private static final String DB_NAME = "qabel-service";
     private static final int DB_VERSION = 1;
     private static final String LOG_TAG_QABEL_SERVICE_APP = "Qabel-Service-App";
+    private static final String LOG_TAG_STARTUP = "Qabel-Startup";
     private static final String DATABASE_PASSWORD_SET = "DatabasePasswordSet";
     private static final String PREF_DEVICE_ID_CREATED = "PREF_DEVICE_ID_CREATED";
     private static final String PREF_DEVICE_ID = "PREF_DEVICE_ID";
@@ -40,11 +45,44 @@ public class QabelBoxApplication extends Application {
     private static ResourceActor resourceActor;
     private static boolean resourceActorInitialized;
 
+    private static final long PROCESS_START = SystemClock.elapsedRealtime();
+    private static boolean cryptoProviderRegistered;
+
     private Thread resourceActorThread;
 
-    static {
+    /**
+     * Receives the result of an unlock on the UI thread
+     */
+    public interface UnlockListener {
+        void onUnlocked(boolean success, boolean newPassword);
+    }
+
+    // only accessed on the UI thread
+    private boolean unlocking;
+    private UnlockListener unlockListener;
+    private Boolean pendingUnlockSuccess;
+    private boolean pendingNewPassword;
+
+    /**
+     * Registers SpongyCastle as preferred JCE provider, further calls wait for
+     * the registration to be finished and have no effect.
+     */
+    public static synchronized void ensureCryptoProvider() {
+        if (cryptoProviderRegistered) {
+            return;
+        }
         // Enforce SpongyCastle as JCE provider
         Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        cryptoProviderRegistered = true;
+        logStartupStage("crypto provider registered");
+    }
+
+    /**
+     * Logs the time since the application class was loaded, which is close to the
+     * process start, to trace the startup stages.
+     */
+    public static void logStartupStage(String stage) {
+        Log.i(LOG_TAG_STARTUP, stage + " after " + (SystemClock.elapsedRealtime() - PROCESS_START) + " ms");
     }
 
     public static ResourceActor getResourceActor() {
@@ -70,6 +108,11 @@ public class QabelBoxApplication extends Application {
         return sharedPreferences.getString(PREF_LAST_ACTIVE_IDENTITY, "");
     }
 
+    public boolean isDatabasePasswordSet() {
+        return PreferenceManager.getDefaultSharedPreferences(this)
+                .getBoolean(DATABASE_PASSWORD_SET, false);
+    }
+
     public BoxProvider getProvider() {
         return boxProvider;
     }
@@ -88,6 +131,14 @@ public class QabelBoxApplication extends Application {
         super.onCreate();
         sharedPreferences = getSharedPreferences(this.getClass().getCanonicalName(), MODE_PRIVATE);
 
+        // Nothing before the password prompt needs the JCE provider
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ensureCryptoProvider();
+            }
+        }, "CryptoProviderInit").start();
+
         if (!sharedPreferences.getBoolean(PREF_DEVICE_ID_CREATED, false)) {
 
             CryptoUtils cryptoUtils = new CryptoUtils();
@@ -100,12 +151,12 @@ public class QabelBoxApplication extends Application {
                                     .apply();
         }
 
-        if (PreferenceManager.getDefaultSharedPreferences(this)
-                .getBoolean(DATABASE_PASSWORD_SET, false)) {
+        if (isDatabasePasswordSet()) {
             launchEnterPasswordAction(false);
         } else {
             launchEnterPasswordAction(true);
         }
+        logStartupStage("password prompt launched");
     }
 
     /**
@@ -124,11 +175,66 @@ public class QabelBoxApplication extends Application {
     }
 
     /**
-     * Initializes the global resources for the Application
+     * Unlocks the database in the background, see init. The unlock is kept here instead
+     * of in an activity, so it survives configuration changes and only runs once. The
+     * result goes to the current UnlockListener, or to the next one that is set.
+     *
+     * @return false if an unlock is running already
+     */
+    public boolean unlock(final char[] password, final boolean newPassword) {
+        if (unlocking) {
+            return false;
+        }
+        unlocking = true;
+        new AsyncTask<Void, Void, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... params) {
+                boolean success = init(password);
+                if (success) {
+                    BoxSyncAdapter.enableSync(QabelBoxApplication.this);
+                }
+                return success;
+            }
+
+            @Override
+            protected void onPostExecute(Boolean success) {
+                unlocking = false;
+                if (unlockListener != null) {
+                    unlockListener.onUnlocked(success, newPassword);
+                } else {
+                    pendingUnlockSuccess = success;
+                    pendingNewPassword = newPassword;
+                }
+            }
+        }.execute();
+        return true;
+    }
+
+    public boolean isUnlocking() {
+        return unlocking;
+    }
+
+    /**
+     * Sets the listener of the unlock result on the UI thread. Set it to null as soon as
+     * the listener cannot handle the result anymore, e.g. when the activity is paused.
+     */
+    public void setUnlockListener(UnlockListener listener) {
+        unlockListener = listener;
+        if (listener != null && pendingUnlockSuccess != null) {
+            boolean success = pendingUnlockSuccess;
+            pendingUnlockSuccess = null;
+            listener.onUnlocked(success, pendingNewPassword);
+        }
+    }
+
+    /**
+     * Initializes the global resources for the Application.
+     * Derives the database key from the password, do not call it on the UI thread.
      * @param password Database decryption password
      * @return Result of init operation.
      */
     public boolean init(char[] password) {
+        ensureCryptoProvider();
         AndroidPersistence androidPersistence;
         QblSQLiteParams params = new QblSQLiteParams(this, DB_NAME, null, DB_VERSION);
         try {
@@ -154,6 +260,11 @@ public class QabelBoxApplication extends Application {
         intent.setAction(RESOURCES_INITIALIZED);
         LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
 
+        UnlockTimings timings = androidPersistence.getUnlockTimings();
+        Log.i(LOG_TAG_QABEL_SERVICE_APP, timings
+                + ", resources initialized after " + timings.elapsed() + " ms");
+        logStartupStage("resources initialized");
+
         return true;
     }
 }
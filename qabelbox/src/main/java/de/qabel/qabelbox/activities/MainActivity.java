@@ -38,6 +38,7 @@ import com.google.zxing.integration.android.IntentIntegrator;
 
 import org.apache.commons.io.IOUtils;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -66,15 +67,17 @@ import de.qabel.qabelbox.fragments.ContactFragment;
 import de.qabel.qabelbox.fragments.IdentitiesFragment;
 import de.qabel.qabelbox.fragments.NewDatabasePasswordFragment;
 import de.qabel.qabelbox.fragments.OpenDatabaseFragment;
-import de.qabel.qabelbox.storage.BoxExternal;
 import de.qabel.qabelbox.storage.BoxFile;
 import de.qabel.qabelbox.storage.BoxFolder;
 import de.qabel.qabelbox.storage.BoxNavigation;
 import de.qabel.qabelbox.storage.BoxObject;
 import de.qabel.qabelbox.storage.BoxVolume;
+import de.qabel.qabelbox.storage.PinnedFiles;
 import de.qabel.qabelbox.QabelBoxApplication;
 import de.qabel.qabelbox.R;
+import de.qabel.qabelbox.adapter.BoxSyncAdapter;
 import de.qabel.qabelbox.adapter.FilesAdapter;
+import de.qabel.qabelbox.adapter.FilesDiff;
 import de.qabel.qabelbox.fragments.FilesFragment;
 import de.qabel.qabelbox.fragments.SelectUploadFolderFragment;
 import de.qabel.qabelbox.providers.BoxProvider;
@@ -100,6 +103,7 @@ public class MainActivity extends AppCompatActivity
     private static final String TAG_MANAGE_IDENTITIES_FRAGMENT = "TAG_MANAGE_IDENTITIES_FRAGMENT";
     private static final String TAG_ADD_IDENTITY_FRAGMENT = "TAG_ADD_IDENTITY_FRAGMENT";
     private static final String TAG_ADD_CONTACT_FRAGMENT = "TAG_ADD_CONTACT_FRAGMENT";
+    private static final String STATE_PENDING_UPLOAD_URIS = "PENDING_UPLOAD_URIS";
 
     private static final String TAG = "BoxMainActivity";
     private static final int REQUEST_CODE_OPEN = 11;
@@ -135,6 +139,9 @@ public class MainActivity extends AppCompatActivity
     // of the create document intent.
     private Uri exportUri;
 
+    // Shared documents that are uploaded as soon as the database is unlocked
+    private ArrayList<Uri> pendingUploadUris;
+
     class ProviderActor extends EventActor implements EventListener {
         public ProviderActor() {
             on(EventNameConstants.EVENT_CONTACT_ADDED, this);
@@ -231,14 +238,42 @@ public class MainActivity extends AppCompatActivity
     class ResourceReadyReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
-            resourceActor = QabelBoxApplication.getResourceActor();
-
-            providerActor = new ProviderActor();
-            providerActorThread = new Thread(providerActor, "ProviderActorThread");
-            providerActorThread.start();
+            onResourcesReady();
         }
     }
 
+    private void onResourcesReady() {
+        resourceActor = QabelBoxApplication.getResourceActor();
+
+        providerActor = new ProviderActor();
+        providerActorThread = new Thread(providerActor, "ProviderActorThread");
+        providerActorThread.start();
+    }
+
+    /**
+     * Shows the next fragment after the database has been unlocked. Only set while the
+     * activity is resumed, a result that arrives in between waits in the application.
+     */
+    private final QabelBoxApplication.UnlockListener unlockListener = new QabelBoxApplication.UnlockListener() {
+        @Override
+        public void onUnlocked(boolean success, boolean newPassword) {
+            if (success) {
+                setDrawerLocked(false);
+                if (pendingUploadUris != null) {
+                    uploadUris(pendingUploadUris, true);
+                    pendingUploadUris = null;
+                }
+                if (newPassword || QabelBoxApplication.getLastActiveIdentityID().equals("")) {
+                    selectAddIdentityFragment();
+                } else {
+                    selectFilesFragment();
+                }
+            } else {
+                selectOpenDatabaseFragment();
+            }
+        }
+    };
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         final Uri uri;
@@ -255,7 +290,7 @@ public class MainActivity extends AppCompatActivity
         }
         if (requestCode == REQUEST_CODE_UPLOAD_FILE && resultCode == Activity.RESULT_OK && data != null) {
             uri = data.getData();
-            uploadUri(uri);
+            uploadUris(Collections.singletonList(uri), false);
             return;
         }
         if (requestCode == REQUEST_CODE_DELETE_FILE && resultCode == Activity.RESULT_OK && data != null) {
@@ -298,34 +333,34 @@ public class MainActivity extends AppCompatActivity
 
     }
 
-    private boolean uploadUri(Uri uri) {
-        Cursor cursor = getContentResolver().query(uri, null, null, null, null);
-        if (cursor == null) {
-            Log.e(TAG, "No valid url for uploading" + uri);
-            return true;
-        }
-        cursor.moveToFirst();
-        String displayName = cursor.getString(
-                cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME));
-        Log.i(TAG, "Displayname: " + displayName);
-        Uri uploadUri = DocumentsContract.buildDocumentUri(
-                BoxProvider.AUTHORITY, HARDCODED_ROOT + displayName);
-        try {
-            OutputStream outputStream = getContentResolver().openOutputStream(uploadUri, "w");
-            if (outputStream == null) {
-                return false;
+    /**
+     * Uploads the documents into the root folder as one batch, see BoxProvider.uploadDocuments
+     *
+     * @param finishWhenDone finish the activity after the upload, the read permission for
+     *                       shared documents only lasts as long as the activity
+     */
+    private void uploadUris(final List<Uri> uris, final boolean finishWhenDone) {
+        Toast.makeText(self, getResources().getQuantityString(
+                R.plurals.uploading_files, uris.size(), uris.size()), Toast.LENGTH_SHORT).show();
+        new AsyncTask<Void, Void, Integer>() {
+            @Override
+            protected Integer doInBackground(Void... params) {
+                try {
+                    return provider.uploadDocuments(HARDCODED_ROOT, uris);
+                } catch (FileNotFoundException e) {
+                    Log.e(TAG, "Upload failed", e);
+                    return 0;
+                }
             }
-            InputStream inputStream = getContentResolver().openInputStream(uri);
-            if (inputStream == null) {
-                return false;
+
+            @Override
+            protected void onPostExecute(Integer uploaded) {
+                Log.i(TAG, "Uploaded " + uploaded + " of " + uris.size() + " documents");
+                if (finishWhenDone) {
+                    finish();
+                }
             }
-            IOUtils.copy(inputStream, outputStream);
-            outputStream.close();
-            inputStream.close();
-        } catch (IOException e) {
-            Log.e(TAG, "Error opening output stream for upload", e);
-        }
-        return false;
+        }.execute();
     }
 
     @Override
@@ -343,9 +378,6 @@ public class MainActivity extends AppCompatActivity
 
         provider = ((QabelBoxApplication) getApplication()).getProvider();
         Log.i(TAG, "Provider: " + provider);
-        boxVolume = provider.getVolumeForRoot(null, null, null);
-
-        initFilesFragment();
 
         initFloatingActionButton();
 
@@ -358,32 +390,43 @@ public class MainActivity extends AppCompatActivity
 
         Log.i(TAG, "Intent action: " + action);
 
-        // Checks if a fragment should be launched
-        switch (intent.getAction()) {
-            case ACTION_ENTER_DB_PASSWORD:
-                selectOpenDatabaseFragment();
-                break;
-            case ACTION_ENTER_NEW_DB_PASSWORD:
-                selectNewDatabasePasswordFragment();
-                break;
-            case Intent.ACTION_SEND:
-                if (type != null) {
+        // Checks if a fragment should be launched, a recreated activity gets its fragments
+        // restored instead and must not handle a share again
+        if (savedInstanceState != null) {
+            pendingUploadUris = savedInstanceState.getParcelableArrayList(STATE_PENDING_UPLOAD_URIS);
+            if (getFragmentManager().findFragmentByTag(TAG_FILES_FRAGMENT) != null) {
+                // a restored FilesFragment has neither its volume nor its listeners
+                selectFilesFragment();
+            }
+        } else {
+            switch (intent.getAction()) {
+                case ACTION_ENTER_DB_PASSWORD:
+                    selectOpenDatabaseFragment();
+                    break;
+                case ACTION_ENTER_NEW_DB_PASSWORD:
+                    selectNewDatabasePasswordFragment();
+                    break;
+                case Intent.ACTION_SEND:
                     Log.i(TAG, "Action send in main activity");
-                    Uri imageUri = intent.getParcelableExtra(Intent.EXTRA_STREAM);
-                    if (imageUri != null) {
-                        //TODO: UPLOAD
+                    Uri sharedUri = intent.getParcelableExtra(Intent.EXTRA_STREAM);
+                    if (type != null && sharedUri != null) {
+                        uploadShared(new ArrayList<>(Collections.singletonList(sharedUri)));
+                    } else {
+                        selectOpenDatabaseFragment();
                     }
-                }
-                break;
-            case Intent.ACTION_SEND_MULTIPLE:
-                if (type != null) {
-                    ArrayList<Uri> imageUris = intent.getParcelableArrayListExtra(Intent.EXTRA_STREAM);
-                    //TODO: Implement
-                }
-                break;
-            default:
-                selectOpenDatabaseFragment();
-                break;
+                    break;
+                case Intent.ACTION_SEND_MULTIPLE:
+                    ArrayList<Uri> sharedUris = intent.getParcelableArrayListExtra(Intent.EXTRA_STREAM);
+                    if (type != null && sharedUris != null && !sharedUris.isEmpty()) {
+                        uploadShared(sharedUris);
+                    } else {
+                        selectOpenDatabaseFragment();
+                    }
+                    break;
+                default:
+                    selectOpenDatabaseFragment();
+                    break;
+            }
         }
 
         getFragmentManager().addOnBackStackChangedListener(new FragmentManager.OnBackStackChangedListener() {
@@ -391,6 +434,9 @@ public class MainActivity extends AppCompatActivity
             public void onBackStackChanged() {
                 // Set FAB visibility according to currently visible fragment
                 Fragment activeFragment = getFragmentManager().findFragmentById(R.id.fragment_container);
+                if (activeFragment == null) {
+                    return;
+                }
                 switch (activeFragment.getTag()) {
                     case TAG_CONTACT_LIST_FRAGMENT:
                         fab.show();
@@ -413,8 +459,50 @@ public class MainActivity extends AppCompatActivity
             }
         });
 
-        LocalBroadcastManager.getInstance(this).registerReceiver(new ResourceReadyReceiver(),
-                new IntentFilter(QabelBoxApplication.RESOURCES_INITIALIZED));
+        if (QabelBoxApplication.isResourceActorInitialized()) {
+            // recreated after the unlock
+            setDrawerLocked(false);
+            onResourcesReady();
+        } else {
+            LocalBroadcastManager.getInstance(this).registerReceiver(new ResourceReadyReceiver(),
+                    new IntentFilter(QabelBoxApplication.RESOURCES_INITIALIZED));
+        }
+        QabelBoxApplication.logStartupStage("MainActivity created");
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        if (pendingUploadUris != null) {
+            outState.putParcelableArrayList(STATE_PENDING_UPLOAD_URIS, pendingUploadUris);
+        }
+    }
+
+    /**
+     * Uploads the shared documents right away if the database is unlocked already,
+     * otherwise asks for the password first
+     */
+    private void uploadShared(ArrayList<Uri> uris) {
+        if (QabelBoxApplication.isResourceActorInitialized()) {
+            uploadUris(uris, true);
+            return;
+        }
+        pendingUploadUris = uris;
+        if (((QabelBoxApplication) getApplication()).isDatabasePasswordSet()) {
+            selectOpenDatabaseFragment();
+        } else {
+            selectNewDatabasePasswordFragment();
+        }
+    }
+
+    /**
+     * The volume is only needed for the files, it is created when they are shown first
+     */
+    private BoxVolume getBoxVolume() {
+        if (boxVolume == null) {
+            boxVolume = provider.getVolumeForRoot(null, null, null);
+        }
+        return boxVolume;
     }
 
     private void initFloatingActionButton() {
@@ -422,10 +510,16 @@ public class MainActivity extends AppCompatActivity
             @Override
             public void onClick(View v) {
                 Fragment activeFragment = getFragmentManager().findFragmentById(R.id.fragment_container);
+                if (activeFragment == null) {
+                    return;
+                }
                 String activeFragmentTag = activeFragment.getTag();
 
                 switch (activeFragmentTag) {
                     case TAG_FILES_FRAGMENT:
+                        if (filesFragment == null) {
+                            break;
+                        }
                         AlertDialog.Builder renameDialog = new AlertDialog.Builder(self);
 
                         renameDialog.setTitle(R.string.add_folder_header);
@@ -466,7 +560,7 @@ public class MainActivity extends AppCompatActivity
     }
 
     private void initFilesFragment() {
-        filesFragment = FilesFragment.newInstance(boxVolume);
+        filesFragment = FilesFragment.newInstance(getBoxVolume());
         filesFragment.setOnItemClickListener(new FilesAdapter.OnItemClickListener() {
             @Override
             public void onItemClick(View view, int position) {
@@ -476,7 +570,7 @@ public class MainActivity extends AppCompatActivity
                 } else if (boxObject instanceof BoxFile) {
                     // Open
                     String path = filesFragment.getBoxNavigation().getPath(boxObject);
-                    String documentId = boxVolume.getDocumentId(path);
+                    String documentId = getBoxVolume().getDocumentId(path);
                     Uri uri = DocumentsContract.buildDocumentUri(
                             BoxProvider.AUTHORITY, documentId);
                     Intent viewIntent = new Intent();
@@ -511,6 +605,14 @@ public class MainActivity extends AppCompatActivity
                                         onExport(filesFragment.getBoxNavigation(), boxObject);
                                     }
                                     break;
+                                case R.id.keep_offline:
+                                    if (boxObject instanceof BoxFolder) {
+                                        Toast.makeText(self, R.string.folder_keep_offline_not_implemented,
+                                                Toast.LENGTH_SHORT).show();
+                                    } else {
+                                        toggleKeepOffline(filesFragment.getBoxNavigation(), boxObject);
+                                    }
+                                    break;
                             }
                         }
                     }).show();
@@ -519,14 +621,37 @@ public class MainActivity extends AppCompatActivity
         });
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        ((QabelBoxApplication) getApplication()).setUnlockListener(unlockListener);
+    }
+
     @Override
     protected void onPause() {
+        ((QabelBoxApplication) getApplication()).setUnlockListener(null);
         super.onPause();
         if (activeIdentity != null) {
             QabelBoxApplication.setLastActiveIdentityID(activeIdentity.getPersistenceID());
         }
     }
 
+    /**
+     * Pins the file for the sync or unpins it if it is pinned already
+     */
+    private void toggleKeepOffline(BoxNavigation boxNavigation, BoxObject boxObject) {
+        String documentId = getBoxVolume().getDocumentId(boxNavigation.getPath(boxObject));
+        PinnedFiles pinnedFiles = new PinnedFiles(self);
+        if (pinnedFiles.isPinned(documentId)) {
+            pinnedFiles.unpin(documentId);
+            Toast.makeText(self, R.string.not_kept_offline, Toast.LENGTH_SHORT).show();
+        } else {
+            pinnedFiles.pin(documentId);
+            BoxSyncAdapter.requestSync();
+            Toast.makeText(self, R.string.kept_offline, Toast.LENGTH_SHORT).show();
+        }
+    }
+
     private void delete(final BoxObject boxObject) {
         new AlertDialog.Builder(self)
                 .setTitle(R.string.confirm_delete_title)
@@ -579,6 +704,10 @@ public class MainActivity extends AppCompatActivity
             drawer.closeDrawer(GravityCompat.START);
         } else {
             Fragment activeFragment = getFragmentManager().findFragmentById(R.id.fragment_container);
+            if (activeFragment == null) {
+                finishAffinity();
+                return;
+            }
 
             switch (activeFragment.getTag()) {
                 case TAG_OPEN_DATABASE_FRAGMENT:
@@ -586,7 +715,7 @@ public class MainActivity extends AppCompatActivity
                     finishAffinity();
                     break;
                 case TAG_FILES_FRAGMENT:
-                    if (!filesFragment.browseToParent()) {
+                    if (filesFragment == null || !filesFragment.browseToParent()) {
                         finishAffinity();
                     }
                     break;
@@ -664,7 +793,7 @@ public class MainActivity extends AppCompatActivity
 
                 try {
                     String path = boxNavigation.getPath();
-                    String folderId = boxVolume.getDocumentId(path);
+                    String folderId = getBoxVolume().getDocumentId(path);
                     Uri uploadUri = DocumentsContract.buildDocumentUri(
                             BoxProvider.AUTHORITY, folderId + name);
 
@@ -758,23 +887,20 @@ public class MainActivity extends AppCompatActivity
 
     @Override
     public void onNewPasswordEntered(char[] newPassword) {
-        ((QabelBoxApplication) getApplication()).init(newPassword);
-        setDrawerLocked(false);
-        selectAddIdentityFragment();
+        unlockDatabase(newPassword, true);
     }
 
     @Override
     public void onPasswordEntered(char[] password) {
-        if (((QabelBoxApplication) getApplication()).init(password)) {
-            setDrawerLocked(false);
-            if (QabelBoxApplication.getLastActiveIdentityID().equals("")) {
-                selectAddIdentityFragment();
-            } else {
-                selectFilesFragment();
-            }
-        } else {
-            selectOpenDatabaseFragment();
-        }
+        unlockDatabase(password, false);
+    }
+
+    /**
+     * Initializes the application resources in the background, the key derivation
+     * takes too long for the UI thread. The result arrives at the unlockListener.
+     */
+    private void unlockDatabase(final char[] password, final boolean newPassword) {
+        ((QabelBoxApplication) getApplication()).unlock(password, newPassword);
     }
 
     @Override
@@ -810,7 +936,7 @@ public class MainActivity extends AppCompatActivity
      */
     public void onExport(BoxNavigation boxNavigation, BoxObject boxObject) {
         String path = boxNavigation.getPath(boxObject);
-        String documentId = boxVolume.getDocumentId(path);
+        String documentId = getBoxVolume().getDocumentId(path);
         Uri uri = DocumentsContract.buildDocumentUri(
                 BoxProvider.AUTHORITY, documentId);
         exportUri = uri;
@@ -836,25 +962,15 @@ public class MainActivity extends AppCompatActivity
             Log.e(TAG, "Refresh failed because the boxNavigation object is null");
             return;
         }
-        AsyncTask<Void, Void, Void> asyncTask = new AsyncTask<Void, Void, Void>() {
+        final List<BoxObject> snapshot = filesAdapter.snapshot();
+        AsyncTask<Void, Void, FilesDiff> asyncTask = new AsyncTask<Void, Void, FilesDiff>() {
             @Override
-            protected Void doInBackground(Void... params) {
-                //TODO: Duplication with browseTo
-                filesAdapter.clear();
+            protected FilesDiff doInBackground(Void... params) {
+                // The current listing stays visible, only the changed rows are updated
                 try {
 					boxNavigation.reload();
-                    for (BoxFolder boxFolder : boxNavigation.listFolders()) {
-                        Log.d(TAG, "Adding folder: " + boxFolder.name);
-                        filesAdapter.add(boxFolder);
-                    }
-                    for (BoxExternal boxExternal : boxNavigation.listExternals()) {
-                        Log.d("MainActivity", "Adding external: " + boxExternal.name);
-                        filesAdapter.add(boxExternal);
-                    }
-                    for (BoxFile boxFile : boxNavigation.listFiles()) {
-                        Log.d(TAG, "Adding file: " + boxFile.name);
-                        filesAdapter.add(boxFile);
-                    }
+                    return FilesDiff.compute(snapshot,
+                            filesFragment.listShownPages(boxNavigation, snapshot.size()));
                 } catch (QblStorageException e) {
                     Log.e(TAG, "refresh failed", e);
                 }
@@ -873,11 +989,12 @@ public class MainActivity extends AppCompatActivity
             }
 
             @Override
-            protected void onPostExecute(Void aVoid) {
-                super.onPostExecute(aVoid);
+            protected void onPostExecute(FilesDiff diff) {
+                super.onPostExecute(diff);
 
-                filesAdapter.sort();
-                filesAdapter.notifyDataSetChanged();
+                if (diff != null) {
+                    filesAdapter.apply(diff);
+                }
 
                 filesFragment.setIsLoading(false);
             }
@@ -1013,6 +1130,9 @@ public class MainActivity extends AppCompatActivity
     }
 
     private void refresh() {
+        if (filesFragment == null) {
+            return;
+        }
         onDoRefresh(filesFragment, filesFragment.getBoxNavigation(), filesFragment.getFilesAdapter());
     }
 
@@ -1070,6 +1190,9 @@ public class MainActivity extends AppCompatActivity
     }
 
     private void selectFilesFragment() {
+        if (filesFragment == null) {
+            initFilesFragment();
+        }
         fab.show();
         filesFragment.setIsLoading(false);
         getFragmentManager().beginTransaction()
@@ -1,16 +1,38 @@
 package de.qabel.qabelbox.adapter;
 
 import android.accounts.Account;
+import android.accounts.AccountManager;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.SyncResult;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
 import android.util.Log;
 
+import java.util.Set;
+
+import de.qabel.qabelbox.exceptions.QblStorageException;
+import de.qabel.qabelbox.providers.BoxProvider;
+import de.qabel.qabelbox.providers.BoxVolumeRegistry;
+import de.qabel.qabelbox.storage.BoxVolume;
+import de.qabel.qabelbox.storage.PinnedFiles;
+import de.qabel.qabelbox.storage.VolumeSync;
+
+/**
+ * Keeps the locally stored folder metadata and the pinned files of the volume up to date,
+ * see VolumeSync
+ */
 public class BoxSyncAdapter extends AbstractThreadedSyncAdapter {
 
+    private static final String TAG = "BoxSyncAdapter";
+
+    public static final String ACCOUNT_TYPE = "de.qabel";
+    private static final String ACCOUNT_NAME = "Qabel Box";
+    private static final long SYNC_INTERVAL = 6 * 60 * 60L;
+
     ContentResolver mContentResolver;
     Context context;
 
@@ -22,7 +44,69 @@ public class BoxSyncAdapter extends AbstractThreadedSyncAdapter {
 
     }
 
+    private static Account getAccount() {
+        return new Account(ACCOUNT_NAME, ACCOUNT_TYPE);
+    }
+
+    /**
+     * Adds the sync account with a periodic sync, does nothing if it exists already
+     */
+    public static void enableSync(Context context) {
+        Account account = getAccount();
+        if (AccountManager.get(context).addAccountExplicitly(account, null, null)) {
+            Log.d(TAG, "Added sync account");
+            ContentResolver.setIsSyncable(account, BoxProvider.AUTHORITY, 1);
+            ContentResolver.setSyncAutomatically(account, BoxProvider.AUTHORITY, true);
+            ContentResolver.addPeriodicSync(account, BoxProvider.AUTHORITY, new Bundle(), SYNC_INTERVAL);
+        }
+    }
+
+    /**
+     * Requests a sync as soon as possible, e.g. to fetch a newly pinned file
+     */
+    public static void requestSync() {
+        Bundle extras = new Bundle();
+        extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        extras.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
+        ContentResolver.requestSync(getAccount(), BoxProvider.AUTHORITY, extras);
+    }
+
     @Override
     public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
+        long start = SystemClock.elapsedRealtime();
+        final BoxVolume volume = BoxVolumeRegistry.getInstance(context)
+                .getVolume(BoxProvider.PUB_KEY, BoxProvider.BUCKET, BoxProvider.PREFIX);
+        final Set<String> pinned = new PinnedFiles(context).getAll();
+        VolumeSync.Stats stats = new VolumeSync.Stats();
+        try {
+            new VolumeSync(volume).sync(new VolumeSync.Callback() {
+                @Override
+                public boolean isCancelled() {
+                    // onSyncCanceled interrupts the sync thread
+                    return Thread.currentThread().isInterrupted();
+                }
+
+                @Override
+                public boolean isPinned(String path) {
+                    return !pinned.isEmpty() && pinned.contains(volume.getDocumentId(path));
+                }
+
+                @Override
+                public void onFolderChanged(String path) {
+                    mContentResolver.notifyChange(DocumentsContract.buildChildDocumentsUri(
+                            BoxProvider.AUTHORITY, volume.getDocumentId(path)), null, false);
+                }
+            }, stats);
+        } catch (QblStorageException e) {
+            Log.w(TAG, "Sync failed", e);
+            syncResult.stats.numIoExceptions++;
+        }
+        syncResult.stats.numEntries += stats.foldersChecked;
+        syncResult.stats.numUpdates += stats.foldersChanged;
+        syncResult.stats.numInserts += stats.filesPrefetched;
+        syncResult.stats.numIoExceptions += stats.errors;
+        Log.d(TAG, "Synced in " + (SystemClock.elapsedRealtime() - start) + " ms: "
+                + stats.foldersChecked + " folders checked, " + stats.foldersChanged + " changed, "
+                + stats.filesPrefetched + " files prefetched, " + stats.errors + " errors");
     }
 }
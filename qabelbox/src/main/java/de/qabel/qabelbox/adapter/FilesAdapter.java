@@ -11,6 +11,7 @@ import android.widget.TextView;
 import org.apache.commons.io.FileUtils;
 
 import java.text.DateFormat;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
@@ -104,7 +105,7 @@ public class FilesAdapter extends RecyclerView.Adapter<FilesAdapter.FilesViewHol
         else if (boxObject instanceof BoxFile) {
             BoxFile boxFile = (BoxFile) boxObject;
             holder.mTextViewFolderDetailsLeft.setText(dateFormat.format(new Date(boxFile.mtime)));
-            holder.mTextViewFolderDetailsRight.setText(FileUtils.byteCountToDisplaySize(boxFile.size));
+            holder.mTextViewFolderDetailsRight.setText(FileUtils.byteCountToDisplaySize(boxFile.getPlaintextSize()));
             holder.mImageView.setImageResource(R.drawable.ic_insert_drive_file_black_24dp);
         }
     }
@@ -129,4 +130,43 @@ public class FilesAdapter extends RecyclerView.Adapter<FilesAdapter.FilesViewHol
     public void clear() {
         boxObjects.clear();
     }
+
+    /**
+     * Replaces the shown objects with the sorted listing of another folder, must be called
+     * on the UI thread
+     */
+    public void update(List<BoxObject> newBoxObjects) {
+        boxObjects.clear();
+        boxObjects.addAll(newBoxObjects);
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Appends the next page of the shown folder, must be called on the UI thread
+     */
+    public void append(List<BoxObject> page) {
+        int start = boxObjects.size();
+        boxObjects.addAll(page);
+        notifyItemRangeInserted(start, page.size());
+    }
+
+    /**
+     * Copy of the shown objects to compute a {@link FilesDiff} against off the UI thread
+     */
+    public List<BoxObject> snapshot() {
+        return new ArrayList<>(boxObjects);
+    }
+
+    /**
+     * Applies the changes of the shown folder with fine grained notifications, must be called
+     * on the UI thread. If the shown objects changed since the snapshot of the diff was taken,
+     * the new listing replaces them as a whole.
+     */
+    public void apply(FilesDiff diff) {
+        if (!diff.isBasedOn(boxObjects)) {
+            update(diff.getNewBoxObjects());
+            return;
+        }
+        diff.dispatch(boxObjects, this);
+    }
 }
@@ -0,0 +1,145 @@
+package de.qabel.qabelbox.adapter;
+
+import android.support.v7.widget.RecyclerView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.qabel.qabelbox.storage.BoxObject;
+
+/**
+ * Difference between two sorted listings of the same folder.
+ *
+ * Both listings are walked once in their sort order. Objects of the same type and name
+ * are the same row, which is changed if its content, including the ref or block, differs.
+ * Renamed objects are removed and inserted at their new position.
+ *
+ * The diff is computed off the UI thread and dispatched as range notifications, so
+ * unchanged rows are neither rebound nor moved.
+ */
+public class FilesDiff {
+
+    private static final int KEEP = 0;
+    private static final int CHANGE = 1;
+    private static final int INSERT = 2;
+    private static final int REMOVE = 3;
+
+    private final List<BoxObject> oldBoxObjects;
+    private final List<BoxObject> newBoxObjects;
+    /**
+     * Runs of operations as {type, count}
+     */
+    private final List<int[]> operations = new ArrayList<>();
+    private boolean empty = true;
+
+    private FilesDiff(List<BoxObject> oldBoxObjects, List<BoxObject> newBoxObjects) {
+        this.oldBoxObjects = oldBoxObjects;
+        this.newBoxObjects = newBoxObjects;
+    }
+
+    /**
+     * @param oldBoxObjects snapshot of the shown listing, see {@link FilesAdapter#snapshot()}
+     * @param newBoxObjects new listing, sorted like the shown one
+     */
+    public static FilesDiff compute(List<BoxObject> oldBoxObjects, List<BoxObject> newBoxObjects) {
+        FilesDiff diff = new FilesDiff(oldBoxObjects, newBoxObjects);
+        int oldIndex = 0;
+        int newIndex = 0;
+        while (oldIndex < oldBoxObjects.size() && newIndex < newBoxObjects.size()) {
+            BoxObject oldBoxObject = oldBoxObjects.get(oldIndex);
+            BoxObject newBoxObject = newBoxObjects.get(newIndex);
+            int order = oldBoxObject.compareTo(newBoxObject);
+            if (order == 0 && oldBoxObject.getClass() == newBoxObject.getClass()) {
+                diff.add(oldBoxObject.equals(newBoxObject) ? KEEP : CHANGE);
+                oldIndex++;
+                newIndex++;
+            } else if (order <= 0) {
+                diff.add(REMOVE);
+                oldIndex++;
+            } else {
+                diff.add(INSERT);
+                newIndex++;
+            }
+        }
+        for (; oldIndex < oldBoxObjects.size(); oldIndex++) {
+            diff.add(REMOVE);
+        }
+        for (; newIndex < newBoxObjects.size(); newIndex++) {
+            diff.add(INSERT);
+        }
+        return diff;
+    }
+
+    private void add(int type) {
+        if (type != KEEP) {
+            empty = false;
+        }
+        int[] last = operations.isEmpty() ? null : operations.get(operations.size() - 1);
+        if (last != null && last[0] == type) {
+            last[1]++;
+        } else {
+            operations.add(new int[]{type, 1});
+        }
+    }
+
+    /**
+     * @return true if the listings are equal
+     */
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    List<BoxObject> getNewBoxObjects() {
+        return newBoxObjects;
+    }
+
+    /**
+     * @return true if the diff was computed from exactly the given objects
+     */
+    boolean isBasedOn(List<BoxObject> boxObjects) {
+        if (boxObjects.size() != oldBoxObjects.size()) {
+            return false;
+        }
+        for (int i = 0; i < boxObjects.size(); i++) {
+            if (boxObjects.get(i) != oldBoxObjects.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Turns the shown objects into the new listing and notifies the adapter of every run
+     */
+    void dispatch(List<BoxObject> shown, RecyclerView.Adapter<?> adapter) {
+        int position = 0;
+        int newIndex = 0;
+        for (int[] operation : operations) {
+            int count = operation[1];
+            switch (operation[0]) {
+                case KEEP:
+                    position += count;
+                    newIndex += count;
+                    break;
+                case CHANGE:
+                    for (int i = 0; i < count; i++) {
+                        shown.set(position + i, newBoxObjects.get(newIndex + i));
+                    }
+                    adapter.notifyItemRangeChanged(position, count);
+                    position += count;
+                    newIndex += count;
+                    break;
+                case INSERT:
+                    shown.addAll(position, newBoxObjects.subList(newIndex, newIndex + count));
+                    adapter.notifyItemRangeInserted(position, count);
+                    position += count;
+                    newIndex += count;
+                    break;
+                case REMOVE:
+                    shown.subList(position, position + count).clear();
+                    adapter.notifyItemRangeRemoved(position, count);
+                    break;
+            }
+        }
+    }
+}
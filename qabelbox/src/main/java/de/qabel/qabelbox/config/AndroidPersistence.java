@@ -2,20 +2,44 @@ package de.qabel.qabelbox.config;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.LruCache;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spongycastle.crypto.InvalidCipherTextException;
 import org.spongycastle.crypto.params.KeyParameter;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import de.qabel.core.config.Persistable;
 import de.qabel.core.config.Persistence;
+import de.qabel.core.crypto.CryptoUtils;
 import de.qabel.core.exceptions.QblInvalidEncryptionKeyException;
 
 public class AndroidPersistence extends Persistence<QblSQLiteParams> {
@@ -29,20 +53,83 @@ public class AndroidPersistence extends Persistence<QblSQLiteParams> {
     private static final String STR_BLOB = "BLOB";
     private static final String STR_ID = "ID";
     private static final String STR_ID_QUERY = "ID = ?";
+    private static final int MAX_CACHED_ENTITIES = 500;
     private QblSQLiteOpenHelper dbHelper;
     private SQLiteDatabase database;
 
+    /**
+     * Decrypted, serialized entities by class and id. The cache is written through on every
+     * change. Every read deserializes a new instance, so callers cannot change the cached
+     * state without updating the entity.
+     */
+    private final LruCache<String, byte[]> entityCache = new LruCache<>(MAX_CACHED_ENTITIES);
+    private final Set<String> createdTables = new HashSet<>();
+    private final Map<String, SQLiteStatement> insertStatements = new HashMap<>();
+
+    /**
+     * Entities are decrypted in parallel if at least this many are not cached
+     */
+    private static final int PARALLEL_DECRYPTION_THRESHOLD = 32;
+    private static final int DECRYPTION_THREADS = Math.max(1,
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static ExecutorService decryptionExecutor;
+
+    /**
+     * CryptoUtils are not thread safe, every decryption thread gets its own
+     */
+    private static final ThreadLocal<CryptoUtils> threadCryptoUtils = new ThreadLocal<CryptoUtils>() {
+        @Override
+        protected CryptoUtils initialValue() {
+            return new CryptoUtils();
+        }
+    };
+
+    /**
+     * Master key the entities are encrypted with. Set from getMasterKey while the super
+     * constructor runs, thus it must not have an initializer.
+     */
+    private KeyParameter entityKey;
+
+    /**
+     * Durations of the unlock phases, also created while the super constructor runs
+     */
+    private UnlockTimings unlockTimings;
+
+    public interface EntityCallback {
+        /**
+         * Called on the thread that requested the entities
+         */
+        void onEntity(Persistable entity);
+    }
+
+    private static class RawEntity {
+        final String id;
+        final byte[] blob;
+        final byte[] nonce;
+        byte[] plaintext;
+        Persistable entity;
+
+        RawEntity(String id, byte[] blob, byte[] nonce) {
+            this.id = id;
+            this.blob = blob;
+            this.nonce = nonce;
+        }
+    }
+
     private static final Logger LOGGER = LoggerFactory.getLogger(AndroidPersistence.class.getName());
 
     public AndroidPersistence(QblSQLiteParams params, char[] password) throws QblInvalidEncryptionKeyException {
         super(params, password);
+        unlockTimings.unlocked();
     }
 
     @Override
     public boolean connect(QblSQLiteParams params) {
+        unlockTimings = new UnlockTimings();
         dbHelper = new QblSQLiteOpenHelper(params.getContext(), params.getName(),
                 params.getFactory(), params.getVersion());
         database = dbHelper.getWritableDatabase();
+        unlockTimings.setConnect(unlockTimings.elapsed());
         return true;
     }
 
@@ -150,6 +237,23 @@ public class AndroidPersistence extends Persistence<QblSQLiteParams> {
 
     @Override
     protected KeyParameter getMasterKey(KeyParameter encryptionKey) {
+        long start = SystemClock.elapsedRealtime();
+        KeyParameter masterKey = readMasterKey(encryptionKey);
+        unlockTimings.setMasterKey(SystemClock.elapsedRealtime() - start);
+        if (masterKey != null && entityKey == null) {
+            entityKey = masterKey;
+        }
+        return masterKey;
+    }
+
+    /**
+     * @return durations of the phases of the unlock in the constructor
+     */
+    public UnlockTimings getUnlockTimings() {
+        return unlockTimings;
+    }
+
+    private KeyParameter readMasterKey(KeyParameter encryptionKey) {
         if (encryptionKey == null) {
             throw new IllegalArgumentException("Arguments cannot be null!");
         }
@@ -219,31 +323,99 @@ public class AndroidPersistence extends Persistence<QblSQLiteParams> {
     }
 
     @Override
-    public boolean persistEntity(Persistable object) {
+    public synchronized boolean persistEntity(Persistable object) {
         if (object == null) {
             throw new IllegalArgumentException("Arguments cannot be null!");
         }
+        if (!insertEntity(object)) {
+            return false;
+        }
+        cache(object);
+        return true;
+    }
+
+    /**
+     * Persists all entities in a single transaction
+     *
+     * @return true if all entities have been stored, false if none has been stored
+     */
+    public synchronized boolean persistEntities(Collection<? extends Persistable> objects) {
+        if (objects == null) {
+            throw new IllegalArgumentException("Arguments cannot be null!");
+        }
+        // a rollback would also drop tables created in the transaction, while they are
+        // remembered as created, so the tables are prepared up front
+        for (Persistable object : objects) {
+            if (object == null) {
+                throw new IllegalArgumentException("Arguments cannot be null!");
+            }
+            getInsertStatement(getTableNameForClass(object.getClass()));
+        }
+        database.beginTransaction();
+        try {
+            for (Persistable object : objects) {
+                if (!insertEntity(object)) {
+                    return false;
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        for (Persistable object : objects) {
+            cache(object);
+        }
+        return true;
+    }
 
+    private boolean insertEntity(Persistable object) {
+        SQLiteStatement statement = getInsertStatement(getTableNameForClass(object.getClass()));
+        byte[] nonce = cryptoutils.getRandomBytes(NONCE_SIZE_BYTE);
+        statement.clearBindings();
+        statement.bindString(1, object.getPersistenceID());
+        statement.bindBlob(2, nonce);
+        statement.bindBlob(3, serialize(object.getPersistenceID(), object, nonce));
+        try {
+            return statement.executeInsert() != -1L;
+        } catch (SQLException e) {
+            LOGGER.error("Cannot insert entity!", e);
+            return false;
+        }
+    }
+
+    /**
+     * Creates the table if needed and compiles its insert statement once per connection
+     */
+    private SQLiteStatement getInsertStatement(String table) {
+        createTable(table);
+        SQLiteStatement statement = insertStatements.get(table);
+        if (statement == null) {
+            statement = database.compileStatement("INSERT INTO " + table
+                    + "(" + STR_ID + "," + STR_NONCE + "," + STR_BLOB + ") VALUES (?,?,?)");
+            insertStatements.put(table, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Creates the table for an entity class once per connection
+     */
+    private void createTable(String table) {
+        if (createdTables.contains(table)) {
+            return;
+        }
         String sql = "CREATE TABLE IF NOT EXISTS " +
-                getTableNameForClass(object.getClass()) +
+                table +
                 "(ID TEXT PRIMARY KEY NOT NULL," +
                 "NONCE TEXT NOT NULL," +
                 "BLOB BLOB NOT NULL)";
 
         try {
             database.execSQL(sql);
+            createdTables.add(table);
         } catch (SQLException e) {
             LOGGER.error("Cannot create table!", e);
         }
-
-        byte[] nonce = cryptoutils.getRandomBytes(NONCE_SIZE_BYTE);
-
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(STR_ID, object.getPersistenceID());
-        contentValues.put(STR_NONCE, nonce);
-        contentValues.put(STR_BLOB, serialize(object.getPersistenceID(), object, nonce));
-
-        return database.insert(getTableNameForClass(object.getClass()), null, contentValues) != -1L;
     }
 
     @Override
@@ -264,13 +436,17 @@ public class AndroidPersistence extends Persistence<QblSQLiteParams> {
         contentValues.put(STR_BLOB, serialize(object.getPersistenceID(), object, nonce));
 
         String[] whereArgs = { object.getPersistenceID() };
-        return database.update(getTableNameForClass(object.getClass()),
-                contentValues, STR_ID_QUERY, whereArgs) != -1;
+        if (database.update(getTableNameForClass(object.getClass()),
+                contentValues, STR_ID_QUERY, whereArgs) == -1) {
+            return false;
+        }
+        cache(object);
+        return true;
     }
 
     @Override
     public boolean updateOrPersistEntity(Persistable object) {
-        if (getEntity(object.getPersistenceID(), object.getClass()) == null) {
+        if (!containsEntity(object.getPersistenceID(), object.getClass())) {
             return persistEntity(object);
         }
         else {
@@ -287,10 +463,28 @@ public class AndroidPersistence extends Persistence<QblSQLiteParams> {
             throw new IllegalArgumentException("ID cannot be empty!");
         }
 
+        entityCache.remove(getCacheKey(id, cls));
         String[] whereArgs = { id };
         return database.delete(getTableNameForClass(cls), STR_ID_QUERY, whereArgs) == 1;
     }
 
+    /**
+     * Checks if the entity is stored without decrypting it
+     */
+    private boolean containsEntity(String id, Class cls) {
+        if (entityCache.get(getCacheKey(id, cls)) != null) {
+            return true;
+        }
+        String[] selectionArgs = { id };
+        try {
+            return DatabaseUtils.queryNumEntries(database, getTableNameForClass(cls),
+                    STR_ID_QUERY, selectionArgs) > 0;
+        } catch (SQLiteException e) {
+            // table does not exist yet
+            return false;
+        }
+    }
+
     @Override
     public Persistable getEntity(String id, Class cls) {
         if (id == null || cls == null) {
@@ -300,6 +494,12 @@ public class AndroidPersistence extends Persistence<QblSQLiteParams> {
             throw new IllegalArgumentException("ID cannot be empty!");
         }
 
+        String cacheKey = getCacheKey(id, cls);
+        byte[] cached = entityCache.get(cacheKey);
+        if (cached != null) {
+            return fromBytes(id, cached);
+        }
+
         String[] columns = {STR_BLOB, STR_NONCE};
         String[] selectionArgs = { id };
 
@@ -309,7 +509,9 @@ public class AndroidPersistence extends Persistence<QblSQLiteParams> {
                     selectionArgs, null, null, null);
 
             if (cursor.moveToFirst()) {
-                return (Persistable) deserialize(id, cursor.getBlob(0), cursor.getBlob(1));
+                RawEntity rawEntity = decrypt(new RawEntity(id, cursor.getBlob(0), cursor.getBlob(1)));
+                entityCache.put(cacheKey, rawEntity.plaintext);
+                return rawEntity.entity;
             }
         } catch (SQLiteException e) {
             LOGGER.debug("Couldn't get entity! " + e.getLocalizedMessage());
@@ -321,24 +523,102 @@ public class AndroidPersistence extends Persistence<QblSQLiteParams> {
         return null;
     }
 
+    /**
+     * Reads all entities of the class. Entities that are not cached are decrypted in parallel
+     * if there are enough of them, the order of the rows is preserved.
+     */
     @Override
     public List<Persistable> getEntities(Class cls) {
         if (cls == null) {
             throw new IllegalArgumentException("Arguments cannot be null!");
         }
-        List<Persistable> objects = new ArrayList<>();
+        List<RawEntity> rawEntities = readRawEntities(cls);
+        List<RawEntity> encrypted = new ArrayList<>();
+        for (RawEntity rawEntity : rawEntities) {
+            if (rawEntity.entity == null) {
+                encrypted.add(rawEntity);
+            }
+        }
+        if (encrypted.size() < PARALLEL_DECRYPTION_THRESHOLD) {
+            for (RawEntity rawEntity : encrypted) {
+                decrypt(rawEntity);
+            }
+        } else {
+            List<Callable<RawEntity>> tasks = new ArrayList<>(encrypted.size());
+            for (RawEntity rawEntity : encrypted) {
+                tasks.add(decryptTask(rawEntity));
+            }
+            try {
+                for (Future<RawEntity> result : getDecryptionExecutor().invokeAll(tasks)) {
+                    getResult(result);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while decrypting entities", e);
+            }
+        }
 
+        List<Persistable> objects = new ArrayList<>(rawEntities.size());
+        for (RawEntity rawEntity : rawEntities) {
+            entityCache.put(getCacheKey(rawEntity.id, cls), rawEntity.plaintext);
+            objects.add(rawEntity.entity);
+        }
+        return objects;
+    }
+
+    /**
+     * Streaming variant of getEntities, the callback receives the entities as soon as they
+     * are decrypted and thus not in the order of the rows.
+     */
+    public void getEntities(Class cls, EntityCallback callback) {
+        if (cls == null || callback == null) {
+            throw new IllegalArgumentException("Arguments cannot be null!");
+        }
+        CompletionService<RawEntity> completionService =
+                new ExecutorCompletionService<>(getDecryptionExecutor());
+        int pending = 0;
+        for (RawEntity rawEntity : readRawEntities(cls)) {
+            if (rawEntity.entity != null) {
+                callback.onEntity(rawEntity.entity);
+            } else {
+                completionService.submit(decryptTask(rawEntity));
+                pending++;
+            }
+        }
+        try {
+            for (; pending > 0; pending--) {
+                RawEntity rawEntity = getResult(completionService.take());
+                entityCache.put(getCacheKey(rawEntity.id, cls), rawEntity.plaintext);
+                callback.onEntity(rawEntity.entity);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while decrypting entities", e);
+        }
+    }
+
+    /**
+     * Reads the rows of the class, cached entities are filled in
+     */
+    private List<RawEntity> readRawEntities(Class cls) {
+        List<RawEntity> rawEntities = new ArrayList<>();
         String[] columns = {STR_ID, STR_BLOB, STR_NONCE};
 
         Cursor cursor = null;
         try {
             cursor = database.query(getTableNameForClass(cls), columns,
                     null, null, null, null, null);
-            if (cursor.moveToFirst()) {
-                do {
-                    objects.add((Persistable) deserialize(cursor.getString(0),
-                            cursor.getBlob(1), cursor.getBlob(2)));
-                } while (cursor.moveToNext());
+            while (cursor.moveToNext()) {
+                String id = cursor.getString(0);
+                byte[] cached = entityCache.get(getCacheKey(id, cls));
+                RawEntity rawEntity = new RawEntity(id,
+                        cached == null ? cursor.getBlob(1) : null,
+                        cached == null ? cursor.getBlob(2) : null);
+                if (cached != null) {
+                    rawEntity.plaintext = cached;
+                    rawEntity.entity = fromBytes(id, cached);
+                }
+                rawEntities.add(rawEntity);
             }
         }
         catch (SQLiteException e){
@@ -349,17 +629,99 @@ public class AndroidPersistence extends Persistence<QblSQLiteParams> {
                 cursor.close();
             }
         }
-        return objects;
+        return rawEntities;
+    }
+
+    private Callable<RawEntity> decryptTask(final RawEntity rawEntity) {
+        return new Callable<RawEntity>() {
+            @Override
+            public RawEntity call() {
+                return decrypt(rawEntity);
+            }
+        };
+    }
+
+    /**
+     * Same as Persistence.deserialize but with the CryptoUtils of the current thread, fills
+     * in the plaintext and the entity
+     */
+    private RawEntity decrypt(RawEntity rawEntity) {
+        try {
+            rawEntity.plaintext = threadCryptoUtils.get().decrypt(entityKey, rawEntity.nonce,
+                    rawEntity.blob, rawEntity.id.getBytes());
+        } catch (InvalidCipherTextException e) {
+            throw new IllegalArgumentException("Cannot deserialize entity " + rawEntity.id, e);
+        }
+        rawEntity.entity = fromBytes(rawEntity.id, rawEntity.plaintext);
+        return rawEntity;
+    }
+
+    private void cache(Persistable object) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(object);
+            out.close();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot serialize entity " + object.getPersistenceID(), e);
+        }
+        entityCache.put(getCacheKey(object.getPersistenceID(), object.getClass()), bytes.toByteArray());
+    }
+
+    private static Persistable fromBytes(String id, byte[] plaintext) {
+        try {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(plaintext));
+            try {
+                return (Persistable) in.readObject();
+            } finally {
+                in.close();
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IllegalArgumentException("Cannot deserialize entity " + id, e);
+        }
+    }
+
+    private static RawEntity getResult(Future<RawEntity> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Cannot decrypt entity", e.getCause());
+        }
+    }
+
+    private static synchronized ExecutorService getDecryptionExecutor() {
+        if (decryptionExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(DECRYPTION_THREADS,
+                    DECRYPTION_THREADS, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            executor.allowCoreThreadTimeOut(true);
+            decryptionExecutor = executor;
+        }
+        return decryptionExecutor;
     }
 
     @Override
-    public boolean dropTable(Class cls) {
+    public synchronized boolean dropTable(Class cls) {
         if (cls == null) {
             throw new IllegalArgumentException("Arguments cannot be null!");
         }
 
+        String prefix = getCacheKey("", cls);
+        for (String key : entityCache.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                entityCache.remove(key);
+            }
+        }
+        String table = getTableNameForClass(cls);
+        createdTables.remove(table);
+        SQLiteStatement statement = insertStatements.remove(table);
+        if (statement != null) {
+            statement.close();
+        }
         try {
-            database.execSQL("DROP TABLE " + getTableNameForClass(cls));
+            database.execSQL("DROP TABLE " + table);
         }
         catch (SQLiteException e) {
             LOGGER.info("Table does not exist!");
@@ -368,6 +730,10 @@ public class AndroidPersistence extends Persistence<QblSQLiteParams> {
         return true;
     }
 
+    private static String getCacheKey(String id, Class cls) {
+        return cls.getName() + '/' + id;
+    }
+
     private static String getTableNameForClass(Class cls) {
         return '\'' + cls.getCanonicalName() + '\'';
     }
@@ -0,0 +1,45 @@
+package de.qabel.qabelbox.config;
+
+import android.os.SystemClock;
+
+/**
+ * Durations of the phases of a database unlock in ms.
+ *
+ * Opening the database and decrypting the master key are timed by the AndroidPersistence
+ * while the constructor of the core Persistence runs, the key derivation is the rest of
+ * the unlock.
+ */
+public class UnlockTimings {
+
+    private final long start = SystemClock.elapsedRealtime();
+    private long connect;
+    private long masterKey;
+    private long unlocked;
+
+    void setConnect(long connect) {
+        this.connect = connect;
+    }
+
+    void setMasterKey(long masterKey) {
+        this.masterKey = masterKey;
+    }
+
+    void unlocked() {
+        unlocked = SystemClock.elapsedRealtime() - start;
+    }
+
+    /**
+     * @return time in ms since the unlock started
+     */
+    public long elapsed() {
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    @Override
+    public String toString() {
+        return "Database unlocked in " + unlocked + " ms"
+                + " (open database: " + connect + " ms"
+                + ", key derivation: " + (unlocked - connect - masterKey) + " ms"
+                + ", master key: " + masterKey + " ms)";
+    }
+}
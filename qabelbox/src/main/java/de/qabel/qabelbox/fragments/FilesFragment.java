@@ -15,6 +15,8 @@ import android.view.ViewGroup;
 import android.widget.Toast;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
@@ -28,13 +30,19 @@ import de.qabel.qabelbox.storage.BoxFolder;
 import de.qabel.qabelbox.storage.BoxNavigation;
 import de.qabel.qabelbox.R;
 import de.qabel.qabelbox.adapter.FilesAdapter;
+import de.qabel.qabelbox.adapter.FilesDiff;
 import de.qabel.qabelbox.storage.BoxObject;
 import de.qabel.qabelbox.storage.BoxVolume;
+import de.qabel.qabelbox.storage.FolderPages;
 
 
 public class FilesFragment extends Fragment {
 
     private static final String TAG = "FilesFragment";
+    /**
+     * Number of objects loaded at once, more are loaded while scrolling towards the end
+     */
+    public static final int PAGE_SIZE = 100;
     protected BoxNavigation boxNavigation;
     private RecyclerView filesListRecyclerView;
     private FilesAdapter filesAdapter;
@@ -44,13 +52,15 @@ public class FilesFragment extends Fragment {
     private SwipeRefreshLayout swipeRefreshLayout;
     private FilesFragment self;
     private static Executor serialExecutor = Executors.newSingleThreadExecutor();
-    private AsyncTask<Void, Void, Void> browseToTask;
+    private AsyncTask<Void, Void, List<BoxObject>> browseToTask;
+    private volatile boolean endReached;
+    private boolean loadingPage;
 
     public static FilesFragment newInstance(final BoxVolume boxVolume) {
         final FilesFragment filesFragment = new FilesFragment();
         final FilesAdapter filesAdapter = new FilesAdapter(new ArrayList<BoxObject>());
         filesFragment.setAdapter(filesAdapter);
-        new AsyncTask<Void, Void, Void>() {
+        new AsyncTask<Void, Void, List<BoxObject>>() {
             @Override
             protected void onPreExecute() {
                 super.onPreExecute();
@@ -58,21 +68,21 @@ public class FilesFragment extends Fragment {
             }
 
             @Override
-            protected Void doInBackground(Void... params) {
+            protected List<BoxObject> doInBackground(Void... params) {
                 try {
-                    filesFragment.setBoxNavigation(boxVolume.navigate());
+                    // Shows the last known listing right away, if there is one
+                    filesFragment.setBoxNavigation(boxVolume.navigateOfflineFirst());
+                    return filesFragment.listFirstPage();
                 } catch (QblStorageException e) {
-                    Log.e(TAG, "Cannot navigate to root");
+                    Log.e(TAG, "Cannot navigate to root", e);
                 }
-                filesFragment.fillAdapter();
                 return null;
             }
 
             @Override
-            protected void onPostExecute(Void aVoid) {
-                super.onPostExecute(aVoid);
-                filesFragment.setIsLoading(false);
-                filesAdapter.notifyDataSetChanged();
+            protected void onPostExecute(List<BoxObject> boxObjects) {
+                super.onPostExecute(boxObjects);
+                filesFragment.showListing(boxObjects);
             }
         }.executeOnExecutor(serialExecutor);
         return filesFragment;
@@ -119,6 +129,9 @@ public class FilesFragment extends Fragment {
                 super.onScrolled(recyclerView, dx, dy);
                 int lastCompletelyVisibleItem = ((LinearLayoutManager) recyclerViewLayoutManager).findLastCompletelyVisibleItemPosition();
                 int firstCompletelyVisibleItem = ((LinearLayoutManager) recyclerViewLayoutManager).findFirstCompletelyVisibleItemPosition();
+                if (lastCompletelyVisibleItem >= filesAdapter.getItemCount() - PAGE_SIZE / 2) {
+                    loadNextPage();
+                }
                 if (lastCompletelyVisibleItem == filesAdapter.getItemCount() - 1
                         && firstCompletelyVisibleItem > 0) {
                     mListener.onScrolledToBottom(true);
@@ -192,7 +205,7 @@ public class FilesFragment extends Fragment {
 			return false;
 		}
 
-        browseToTask = new AsyncTask<Void, Void, Void>() {
+        browseToTask = new AsyncTask<Void, Void, List<BoxObject>>() {
             @Override
             protected void onPreExecute() {
                 super.onPreExecute();
@@ -200,11 +213,11 @@ public class FilesFragment extends Fragment {
             }
 
             @Override
-            protected Void doInBackground(Void... voids) {
+            protected List<BoxObject> doInBackground(Void... voids) {
                 waitForBoxNavigation();
                 try {
                     boxNavigation.navigateToParent();
-                    fillAdapter();
+                    return listFirstPage();
                 } catch (QblStorageException e) {
                     Log.d(TAG, "browseTo failed", e);
                 }
@@ -212,10 +225,9 @@ public class FilesFragment extends Fragment {
             }
 
             @Override
-            protected void onPostExecute(Void aVoid) {
-                super.onPostExecute(aVoid);
-                setIsLoading(false);
-                filesAdapter.notifyDataSetChanged();
+            protected void onPostExecute(List<BoxObject> boxObjects) {
+                super.onPostExecute(boxObjects);
+                showListing(boxObjects);
             }
         };
         browseToTask.executeOnExecutor(serialExecutor);
@@ -226,25 +238,113 @@ public class FilesFragment extends Fragment {
         setIsLoading(true);
     }
 
-    private void fillAdapter() {
-        filesAdapter.clear();
-        try {
-            for (BoxFolder boxFolder : boxNavigation.listFolders()){
-                Log.d(TAG, "Adding folder: " + boxFolder.name);
-                filesAdapter.add(boxFolder);
-            }
-            for (BoxExternal boxExternal : boxNavigation.listExternals()){
-                Log.d("MainActivity", "Adding external: " + boxExternal.name);
-                filesAdapter.add(boxExternal);
+    /**
+     * Lists the first page of the current folder
+     */
+    private List<BoxObject> listFirstPage() throws QblStorageException {
+        List<BoxObject> page = FolderPages.next(boxNavigation, null, PAGE_SIZE);
+        endReached = page.size() < PAGE_SIZE;
+        return page;
+    }
+
+    /**
+     * Lists the shown part of the current folder again to refresh it. One more page is
+     * listed, so that objects added at the end of the shown part are not missed.
+     */
+    public List<BoxObject> listShownPages(BoxNavigation boxNavigation, int shown) throws QblStorageException {
+        int limit = shown + PAGE_SIZE;
+        List<BoxObject> boxObjects = FolderPages.next(boxNavigation, null, limit);
+        endReached = boxObjects.size() < limit;
+        return boxObjects;
+    }
+
+    /**
+     * Appends the page after the last shown object
+     */
+    private void loadNextPage() {
+        if (loadingPage || endReached || boxNavigation == null || filesAdapter.getItemCount() == 0) {
+            return;
+        }
+        loadingPage = true;
+        final String path = boxNavigation.getPath();
+        final BoxObject last = filesAdapter.get(filesAdapter.getItemCount() - 1);
+        new AsyncTask<Void, Void, List<BoxObject>>() {
+            @Override
+            protected List<BoxObject> doInBackground(Void... params) {
+                if (!path.equals(boxNavigation.getPath())) {
+                    return null;
+                }
+                try {
+                    return FolderPages.next(boxNavigation, last, PAGE_SIZE);
+                } catch (QblStorageException e) {
+                    Log.e(TAG, "Loading the next page failed", e);
+                }
+                return null;
             }
-            for (BoxFile boxFile : boxNavigation.listFiles()) {
-                Log.d(TAG, "Adding file: " + boxFile.name);
-                filesAdapter.add(boxFile);
+
+            @Override
+            protected void onPostExecute(List<BoxObject> page) {
+                super.onPostExecute(page);
+                loadingPage = false;
+                int count = filesAdapter.getItemCount();
+                // the listing was replaced in the meantime
+                if (page == null || !path.equals(boxNavigation.getPath())
+                        || count == 0 || filesAdapter.get(count - 1) != last) {
+                    return;
+                }
+                filesAdapter.append(page);
+                endReached = page.size() < PAGE_SIZE;
             }
-        } catch (QblStorageException e) {
-            Log.e(TAG, "browseTo failed", e);
+        }.executeOnExecutor(serialExecutor);
+    }
+
+    /**
+     * Shows the listing of the current folder and revalidates it in the background if it
+     * is only the locally stored listing
+     */
+    private void showListing(List<BoxObject> boxObjects) {
+        if (boxObjects != null) {
+            filesAdapter.update(boxObjects);
+        }
+        if (boxNavigation != null && boxNavigation.isStale()) {
+            revalidate();
+        } else {
+            setIsLoading(false);
         }
-        filesAdapter.sort();
+    }
+
+    private void revalidate() {
+        final String path = boxNavigation.getPath();
+        final List<BoxObject> snapshot = filesAdapter.snapshot();
+        new AsyncTask<Void, Void, FilesDiff>() {
+            @Override
+            protected FilesDiff doInBackground(Void... params) {
+                // the user navigated on in the meantime, the new folder is revalidated by itself
+                if (!path.equals(boxNavigation.getPath()) || !boxNavigation.isStale()) {
+                    return null;
+                }
+                try {
+                    byte[] version = boxNavigation.getVersion();
+                    boxNavigation.reload();
+                    if (Arrays.equals(version, boxNavigation.getVersion())) {
+                        return null;
+                    }
+                    return FilesDiff.compute(snapshot, listShownPages(boxNavigation, snapshot.size()));
+                } catch (QblStorageException e) {
+                    Log.w(TAG, "Could not revalidate " + path + ", showing the stored listing", e);
+                }
+                return null;
+            }
+
+            @Override
+            protected void onPostExecute(FilesDiff diff) {
+                super.onPostExecute(diff);
+                if (diff != null && path.equals(boxNavigation.getPath())) {
+                    filesAdapter.apply(diff);
+                }
+                setIsLoading(false);
+            }
+        }.executeOnExecutor(serialExecutor);
     }
 
     private void waitForBoxNavigation() {
@@ -261,7 +361,7 @@ public class FilesFragment extends Fragment {
     public void browseTo(final BoxFolder navigateTo) {
         Log.d(TAG, "Browsing to " + navigateTo.name);
         cancelBrowseToTask();
-        browseToTask = new AsyncTask<Void, Void, Void>() {
+        browseToTask = new AsyncTask<Void, Void, List<BoxObject>>() {
             @Override
             protected void onPreExecute() {
                 super.onPreExecute();
@@ -269,11 +369,11 @@ public class FilesFragment extends Fragment {
             }
 
             @Override
-            protected Void doInBackground(Void... voids) {
+            protected List<BoxObject> doInBackground(Void... voids) {
                 waitForBoxNavigation();
                 try {
 					boxNavigation.navigate(navigateTo);
-                    fillAdapter();
+                    return listFirstPage();
                 } catch (QblStorageException e) {
                     Log.e(TAG, "browseTo failed", e);
                 }
@@ -281,11 +381,10 @@ public class FilesFragment extends Fragment {
             }
 
             @Override
-            protected void onPostExecute(Void aVoid) {
-                super.onPostExecute(aVoid);
-                setIsLoading(false);
-                filesAdapter.notifyDataSetChanged();
+            protected void onPostExecute(List<BoxObject> boxObjects) {
+                super.onPostExecute(boxObjects);
                 browseToTask = null;
+                showListing(boxObjects);
             }
 
             @Override
@@ -0,0 +1,291 @@
+package de.qabel.qabelbox.providers;
+
+import android.app.NotificationManager;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.OpenableColumns;
+import android.support.v7.app.NotificationCompat;
+import android.util.Log;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import de.qabel.qabelbox.R;
+import de.qabel.qabelbox.exceptions.QblStorageException;
+import de.qabel.qabelbox.storage.BoxFile;
+import de.qabel.qabelbox.storage.BoxNavigation;
+import de.qabel.qabelbox.storage.TransferManager;
+
+/**
+ * Uploads a batch of documents into one folder
+ *
+ * Up to {@link #MAX_PARALLEL_UPLOADS} documents are read, encrypted and uploaded at the
+ * same time. The folder metadata is changed only after all transfers are done and it is
+ * committed once for the whole batch. One notification shows the progress of all files.
+ *
+ * Documents are streamed from their content uri. Only images and videos are copied into
+ * the private plaintext directory first, as the thumbnail generator needs a file.
+ */
+class BatchUploader {
+
+    private static final String TAG = "BatchUploader";
+
+    static final int MAX_PARALLEL_UPLOADS = 3;
+    private static final int NOTIFICATION_ID = 3;
+    private static final long NOTIFICATION_INTERVAL = 500L;
+
+    private final File plaintextDir;
+    private final ContentResolver contentResolver;
+    private final NotificationManager notificationManager;
+    private final NotificationCompat.Builder builder;
+
+    private int[] percentages;
+    private int finished;
+    private long lastNotification;
+
+    /**
+     * @param plaintextDir private directory for the plaintext copies the thumbnails are
+     *                     created from
+     */
+    BatchUploader(Context context, File plaintextDir) {
+        this.plaintextDir = plaintextDir;
+        contentResolver = context.getContentResolver();
+        notificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        builder = new NotificationCompat.Builder(context);
+        builder.setSmallIcon(R.drawable.notification_template_icon_bg);
+    }
+
+    /**
+     * Uploads the documents into the folder of the navigation and commits it.
+     * Documents that could not be uploaded are skipped.
+     *
+     * @return the uploaded files
+     */
+    List<BoxFile> upload(BoxNavigation navigation, List<Uri> uris) throws QblStorageException {
+        if (uris.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<String> names = uniqueNames(uris);
+        percentages = new int[uris.size()];
+        finished = 0;
+        notifyProgress(true);
+
+        List<BoxFile> uploaded = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(MAX_PARALLEL_UPLOADS, uris.size())));
+        try {
+            List<Future<BoxFile>> futures = new ArrayList<>();
+            for (int i = 0; i < uris.size(); i++) {
+                futures.add(executor.submit(new UploadTask(navigation, i, uris.get(i), names.get(i))));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    uploaded.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Upload of " + names.get(i) + " failed", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Batch upload interrupted, committing the finished files");
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // the metadata is only changed by this thread
+        for (BoxFile boxFile : uploaded) {
+            navigation.insertUploaded(boxFile);
+        }
+        if (!uploaded.isEmpty()) {
+            navigation.commit();
+        }
+        notifyFinished(uploaded.size(), uris.size());
+        return uploaded;
+    }
+
+    private class UploadTask implements Callable<BoxFile> {
+
+        private final BoxNavigation navigation;
+        private final int index;
+        private final Uri uri;
+        private final String name;
+
+        UploadTask(BoxNavigation navigation, int index, Uri uri, String name) {
+            this.navigation = navigation;
+            this.index = index;
+            this.uri = uri;
+            this.name = name;
+        }
+
+        @Override
+        public BoxFile call() throws IOException, QblStorageException {
+            String mimeType = URLConnection.guessContentTypeFromName(name);
+            if (!ThumbnailGenerator.supports(mimeType)) {
+                return upload(openInputStream(uri), null);
+            }
+            // the thumbnail generator needs a file, the content uri might be a stream only
+            File plaintext = File.createTempFile("batch", "", plaintextDir);
+            try {
+                copy(uri, plaintext);
+                byte[] thumbnail = ThumbnailGenerator.create(plaintext, mimeType);
+                return upload(new FileInputStream(plaintext), thumbnail);
+            } finally {
+                if (!plaintext.delete()) {
+                    Log.w(TAG, "Could not delete " + plaintext);
+                }
+            }
+        }
+
+        private BoxFile upload(InputStream content, byte[] thumbnail)
+                throws IOException, QblStorageException {
+            try {
+                BoxFile boxFile = navigation.uploadDetached(name, content,
+                        thumbnail != null ? new ByteArrayInputStream(thumbnail) : null,
+                        BoxProvider.needsRandomAccess(name), new Progress(index));
+                onFileFinished(index);
+                return boxFile;
+            } finally {
+                content.close();
+            }
+        }
+    }
+
+    private class Progress implements TransferManager.BoxTransferListener {
+
+        private final int index;
+
+        Progress(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void onProgressChanged(long bytesCurrent, long bytesTotal) {
+            if (bytesTotal > 0) {
+                onFileProgress(index, (int) (100 * bytesCurrent / bytesTotal));
+            }
+        }
+
+        @Override
+        public void onFinished() {
+        }
+    }
+
+    private InputStream openInputStream(Uri uri) throws IOException {
+        InputStream inputStream = contentResolver.openInputStream(uri);
+        if (inputStream == null) {
+            throw new FileNotFoundException("Could not open " + uri);
+        }
+        return inputStream;
+    }
+
+    private void copy(Uri uri, File target) throws IOException {
+        InputStream inputStream = openInputStream(uri);
+        OutputStream outputStream = new FileOutputStream(target);
+        try {
+            IOUtils.copy(inputStream, outputStream);
+        } finally {
+            inputStream.close();
+            outputStream.close();
+        }
+    }
+
+    private synchronized void onFileProgress(int index, int percentage) {
+        percentages[index] = percentage;
+        notifyProgress(false);
+    }
+
+    private synchronized void onFileFinished(int index) {
+        percentages[index] = 100;
+        finished++;
+        notifyProgress(true);
+    }
+
+    /**
+     * Updates the notification, progress updates are throttled to keep the
+     * notification manager from being flooded by the parallel transfers
+     */
+    private synchronized void notifyProgress(boolean force) {
+        long now = SystemClock.elapsedRealtime();
+        if (!force && now - lastNotification < NOTIFICATION_INTERVAL) {
+            return;
+        }
+        lastNotification = now;
+        int sum = 0;
+        for (int percentage : percentages) {
+            sum += percentage;
+        }
+        builder.setContentTitle("Uploading " + percentages.length + " files")
+                .setContentText(finished + " of " + percentages.length + " uploaded")
+                .setProgress(100, sum / percentages.length, false);
+        notificationManager.notify(NOTIFICATION_ID, builder.build());
+    }
+
+    private synchronized void notifyFinished(int uploaded, int total) {
+        builder.setContentTitle("Uploaded " + uploaded + " of " + total + " files")
+                .setContentText(uploaded == total ? "Upload complete" : "Some files could not be uploaded")
+                .setProgress(0, 0, false);
+        notificationManager.notify(NOTIFICATION_ID, builder.build());
+    }
+
+    /**
+     * Documents with the same name would replace each other in the folder, so the
+     * later ones get a number appended
+     */
+    private List<String> uniqueNames(List<Uri> uris) {
+        List<String> names = new ArrayList<>();
+        Set<String> used = new HashSet<>();
+        for (Uri uri : uris) {
+            String name = getDisplayName(uri);
+            String unique = name;
+            for (int number = 2; !used.add(unique); number++) {
+                unique = numberedName(name, number);
+            }
+            names.add(unique);
+        }
+        return names;
+    }
+
+    static String numberedName(String name, int number) {
+        String extension = FilenameUtils.getExtension(name);
+        String base = FilenameUtils.removeExtension(name);
+        return base + " (" + number + ")" + (extension.isEmpty() ? "" : "." + extension);
+    }
+
+    private String getDisplayName(Uri uri) {
+        Cursor cursor = contentResolver.query(uri, new String[]{OpenableColumns.DISPLAY_NAME},
+                null, null, null);
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                    return cursor.getString(0);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        String lastSegment = uri.getLastPathSegment();
+        return lastSegment != null ? lastSegment : "upload";
+    }
+}
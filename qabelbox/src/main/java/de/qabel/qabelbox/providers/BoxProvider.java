@@ -1,11 +1,11 @@
 package de.qabel.qabelbox.providers;
 
-import android.app.NotificationManager;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.database.MatrixCursor;
+import android.graphics.Point;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.CancellationSignal;
 import android.os.Handler;
@@ -15,16 +15,14 @@ import android.provider.DocumentsContract.Document;
 import android.provider.DocumentsContract.Root;
 import android.provider.DocumentsProvider;
 import android.support.annotation.NonNull;
-import android.support.v7.app.NotificationCompat;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.mobileconnectors.s3.transferutility.TransferUtility;
 import com.amazonaws.services.s3.AmazonS3Client;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
-import org.spongycastle.util.encoders.Hex;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
@@ -33,30 +31,33 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
-import de.qabel.core.crypto.QblECKeyPair;
 import de.qabel.qabelbox.exceptions.QblStorageException;
 import de.qabel.qabelbox.exceptions.QblStorageNotFound;
 import de.qabel.qabelbox.storage.BoxFile;
 import de.qabel.qabelbox.storage.BoxFolder;
 import de.qabel.qabelbox.storage.BoxNavigation;
 import de.qabel.qabelbox.storage.BoxVolume;
+import de.qabel.qabelbox.storage.SegmentedBlock;
+import de.qabel.qabelbox.storage.ThumbnailCache;
 import de.qabel.qabelbox.storage.TransferManager;
 import de.qabel.qabelbox.QabelBoxApplication;
 import de.qabel.qabelbox.R;
+import de.qabel.qabelbox.services.UploadService;
 
 
 public class BoxProvider extends DocumentsProvider {
@@ -85,15 +86,22 @@ public class BoxProvider extends DocumentsProvider {
 
     DocumentIdParser mDocumentIdParser;
     private ThreadPoolExecutor mThreadPoolExecutor;
+    private ThreadPoolExecutor mStreamExecutor;
 
     private static final int KEEP_ALIVE_TIME = 1;
+    private static final int STREAM_THREADS = 4;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    // times a broken download of a segmented file is resumed where it stopped
+    private static final int MAX_RESUMES = 3;
+    private static final String OPEN_DIR = "open";
     private static final TimeUnit KEEP_ALIVE_TIME_UNIT = TimeUnit.SECONDS;
-    TransferUtility transferUtility;
-    AmazonS3Client amazonS3Client;
-    AWSCredentials awsCredentials;
+    private BoxVolumeRegistry volumeRegistry;
 
-    private Map<String, BoxCursor> folderContentCache;
-    private String currentFolder;
+    private static final int MAX_CACHED_LISTING_ENTRIES = 5000;
+
+    private FolderListingCache folderListingCache;
+    private ThumbnailCache thumbnailCache;
+    private File openDir;
 
     @Override
     public boolean onCreate() {
@@ -105,31 +113,55 @@ public class BoxProvider extends DocumentsProvider {
                 KEEP_ALIVE_TIME,
                 KEEP_ALIVE_TIME_UNIT,
                 new LinkedBlockingDeque<Runnable>());
+        // streams may stay open for a long time, keep them away from the listing refreshes
+        mStreamExecutor = new ThreadPoolExecutor(
+                STREAM_THREADS,
+                STREAM_THREADS,
+                KEEP_ALIVE_TIME,
+                KEEP_ALIVE_TIME_UNIT,
+                new LinkedBlockingDeque<Runnable>());
+        mStreamExecutor.allowCoreThreadTimeOut(true);
 
-        awsCredentials = new AWSCredentials() {
-            @Override
-            public String getAWSAccessKeyId() {
-                return getContext().getResources().getString(R.string.aws_user);
-            }
-
-            @Override
-            public String getAWSSecretKey() {
-                return getContext().getResources().getString(R.string.aws_password);
-            }
-        };
-        amazonS3Client = new AmazonS3Client(awsCredentials);
+        // the S3 clients and the thumbnail cache directory are set up on first use
+        volumeRegistry = BoxVolumeRegistry.getInstance(getContext());
         QabelBoxApplication.boxProvider = this;
 
-        folderContentCache = new HashMap<>();
+        folderListingCache = new FolderListingCache(MAX_CACHED_LISTING_ENTRIES);
+        QabelBoxApplication.logStartupStage("BoxProvider created");
         return true;
     }
 
-    private void setUpTransferUtility() {
-        if (transferUtility == null) {
-            transferUtility = new TransferUtility(
-                    amazonS3Client,
-                    getContext().getApplicationContext());
+    AWSCredentials getAwsCredentials() {
+        return volumeRegistry.getAwsCredentials();
+    }
+
+    AmazonS3Client getAmazonS3Client() {
+        return volumeRegistry.getAmazonS3Client();
+    }
+
+    private synchronized ThumbnailCache getThumbnailCache() {
+        if (thumbnailCache == null) {
+            thumbnailCache = new ThumbnailCache(getContext());
+        }
+        return thumbnailCache;
+    }
+
+    /**
+     * Private directory of the plaintext files opened by openDocumentFile or read by the
+     * BatchUploader, files left behind by a previous process are deleted on first use
+     */
+    private synchronized File getOpenDir() {
+        if (openDir == null) {
+            openDir = new File(getContext().getFilesDir(), OPEN_DIR);
+            File[] leftovers = openDir.listFiles();
+            if (leftovers != null) {
+                for (File leftover : leftovers) {
+                    leftover.delete();
+                }
+            }
+            openDir.mkdirs();
         }
+        return openDir;
     }
 
     @Override
@@ -166,18 +198,16 @@ public class BoxProvider extends DocumentsProvider {
     }
 
     public BoxVolume getVolumeForRoot(String identity, String bucket, String prefix) {
+        if (identity == null) {
+            identity = PUB_KEY;
+        }
         if (bucket == null) {
             bucket = BUCKET;
         }
         if (prefix == null) {
             prefix = PREFIX;
         }
-        QblECKeyPair testKey = new QblECKeyPair(Hex.decode(PRIVATE_KEY));
-
-        setUpTransferUtility();
-
-        return new BoxVolume(transferUtility, awsCredentials, testKey, bucket, prefix,
-                    QabelBoxApplication.getDeviceID(), getContext());
+        return volumeRegistry.getVolume(identity, bucket, prefix);
     }
 
     @Override
@@ -197,7 +227,7 @@ public class BoxProvider extends DocumentsProvider {
         }
 
         try {
-            List<String> strings = mDocumentIdParser.splitPath(mDocumentIdParser.getFilePath(documentId));
+            List<String> strings = mDocumentIdParser.splitPath(filePath);
             String basename = strings.remove(strings.size()-1);
             BoxNavigation navigation =
                     traverseToFolder(volume, strings);
@@ -211,27 +241,21 @@ public class BoxProvider extends DocumentsProvider {
     }
 
     private BoxVolume getVolumeForId(String documentId) throws FileNotFoundException {
-        return getVolumeForRoot(
-                    mDocumentIdParser.getIdentity(documentId),
-                    mDocumentIdParser.getBucket(documentId),
-                    mDocumentIdParser.getPrefix(documentId));
+        DocumentId id = mDocumentIdParser.parse(documentId);
+        return getVolumeForRoot(id.getIdentity(), id.getBucket(), id.getPrefix());
     }
 
     void insertFileByName(MatrixCursor cursor, BoxNavigation navigation,
                           String documentId, String basename) throws QblStorageException {
-        for (BoxFolder folder: navigation.listFolders()) {
-            Log.d(TAG, "Checking folder:" + folder.name);
-            if (basename.equals(folder.name)) {
-                insertFolder(cursor, documentId, folder);
-                return;
-            }
+        BoxFolder folder = navigation.getFolder(basename);
+        if (folder != null) {
+            insertEntry(cursor, documentId, FolderListing.Entry.of(folder));
+            return;
         }
-        for (BoxFile file: navigation.listFiles()) {
-            Log.d(TAG, "Checking file:" + file.name);
-            if (basename.equals(file.name)) {
-                insertFile(cursor, documentId, file);
-                return;
-            }
+        BoxFile file = navigation.getFile(basename);
+        if (file != null) {
+            insertEntry(cursor, documentId, FolderListing.Entry.of(file));
+            return;
         }
         throw new QblStorageNotFound("File not found");
     }
@@ -249,83 +273,125 @@ public class BoxProvider extends DocumentsProvider {
     public Cursor queryChildDocuments(String parentDocumentId, String[] projection, String sortOrder)
             throws FileNotFoundException {
         Log.d(TAG, "Query Child Documents: " + parentDocumentId);
-        BoxCursor cursor = folderContentCache.get(parentDocumentId);
-        boolean cacheHit = (cursor != null);
-        if (parentDocumentId.equals(currentFolder) && cacheHit) {
+        FolderListing listing = folderListingCache.get(parentDocumentId);
+        if (listing != null && folderListingCache.isCurrentFolder(parentDocumentId)) {
             // best case: we are still in the same folder and we got a cache hit
-			Log.d(TAG, "Up to date cached data found");
-			cursor.setExtraLoading(false);
-            return cursor;
+            Log.d(TAG, "Up to date cached data found");
+            return createListingCursor(parentDocumentId, projection, listing, false);
         }
-        if (cacheHit) {
-            // we found it in the cache, but since we changed the folder, we refresh anyway
-            cursor.setExtraLoading(true);
+        BoxCursor cursor;
+        if (listing != null) {
+            // we found it in the cache, but since we changed the folder, we revalidate it in the
+            // background. The cursor is only notified if the metadata version has changed.
+            cursor = createListingCursor(parentDocumentId, projection, listing, false);
         } else {
             Log.d(TAG, "Serving empty listing and refreshing");
             cursor = createCursor(projection, true);
         }
-		currentFolder = parentDocumentId;
-		asyncChildDocuments(parentDocumentId, projection, cursor);
-		return cursor;
+        folderListingCache.setCurrentFolder(parentDocumentId);
+        asyncChildDocuments(parentDocumentId, listing, cursor);
+        return cursor;
+    }
+
+    /**
+     * Materialize a cursor from a cached listing
+     */
+    private BoxCursor createListingCursor(String parentDocumentId, String[] projection,
+                                          FolderListing listing, boolean extraLoading) {
+        BoxCursor cursor = createCursor(projection, extraLoading);
+        for (FolderListing.Entry entry : listing.entries) {
+            String documentId = parentDocumentId + entry.name;
+            if (entry.folder) {
+                documentId += PATH_SEP;
+            }
+            insertEntry(cursor, documentId, entry);
+        }
+        cursor.setError(listing.error);
+        return cursor;
     }
 
-	/**
-     * Create and fill a new MatrixCursor
-     *
-     * The cursor can be modified to show a loading and/or an error message.
+    /**
+     * Read the directory listing of the folder from the volume
      *
      * @param parentDocumentId
-     * @param projection
-     * @return Fully initialized cursor with the directory listing as rows
+     * @return Snapshot of the folder listing
      * @throws FileNotFoundException
      */
-    private BoxCursor createBoxCursor(String parentDocumentId, String[] projection) throws FileNotFoundException {
-        BoxCursor cursor = createCursor(projection, false);
-
+    private FolderListing readFolderListing(String parentDocumentId) throws FileNotFoundException {
         BoxVolume volume = getVolumeForId(parentDocumentId);
         try {
             BoxNavigation navigation =
                     traverseToFolder(volume, mDocumentIdParser.splitPath(
                             mDocumentIdParser.getFilePath(parentDocumentId)));
-            insertFolderListing(cursor, navigation, parentDocumentId);
+            return FolderListing.of(navigation);
         } catch (QblStorageException e) {
             Log.e(TAG, "Could not navigate", e);
             throw new FileNotFoundException("Failed navigating the volume");
         }
-        folderContentCache.put(parentDocumentId, cursor);
-        return cursor;
     }
 
-	/**
-     * Query the directory listing, store the cursor in the folderContentCache and
-     * notify the original cursor of the update.
+    /**
+     * Refresh the directory listing in the folderListingCache and notify the original
+     * cursor if the listing has changed.
      *
      * @param parentDocumentId
-     * @param projection
+     * @param cached Listing the original cursor was created from, may be null
      * @param result Original cursor
      */
-    private void asyncChildDocuments(final String parentDocumentId, final String[] projection,
+    private void asyncChildDocuments(final String parentDocumentId, final FolderListing cached,
                                      BoxCursor result) {
         final Uri uri = DocumentsContract.buildChildDocumentsUri(AUTHORITY, parentDocumentId);
         // tell the original cursor how he gets notified
         result.setNotificationUri(getContext().getContentResolver(), uri);
 
-        // create a new cursor and store it
         mThreadPoolExecutor.execute(new Runnable() {
             @Override
             public void run() {
+                FolderListing listing;
                 try {
-                    createBoxCursor(parentDocumentId, projection);
+                    listing = readFolderListing(parentDocumentId);
                 } catch (FileNotFoundException e) {
-                    BoxCursor cursor = createCursor(projection, false);
-                    cursor.setError(getContext().getString(R.string.folderListingUpdateError));
-                    folderContentCache.put(parentDocumentId, cursor);
+                    listing = FolderListing.failed(cached,
+                            getContext().getString(R.string.folderListingUpdateError));
+                }
+                if (!folderListingCache.put(parentDocumentId, listing)) {
+                    // a query would miss again and start the next refresh
+                    Log.d(TAG, "Listing too large to keep: " + parentDocumentId);
+                    return;
+                }
+                if (cached != null && cached.error == null && listing.version != null
+                        && Arrays.equals(cached.version, listing.version)) {
+                    Log.d(TAG, "Listing unchanged: " + parentDocumentId);
+                    return;
                 }
                 getContext().getContentResolver().notifyChange(uri, null);
             }
         });
     }
 
+    /**
+     * Drop the cached listing of the folder and notify observers of it
+     */
+    private void invalidateFolder(String parentDocumentId) {
+        folderListingCache.remove(parentDocumentId);
+        getContext().getContentResolver().notifyChange(
+                DocumentsContract.buildChildDocumentsUri(AUTHORITY, parentDocumentId), null);
+    }
+
+    /**
+     * Drop the cached listing of the parent folder and of the document itself
+     * and all folders below it
+     */
+    private void invalidateDocument(String documentId) {
+        folderListingCache.removeTree(documentId);
+        invalidateFolder(getParentDocumentId(documentId));
+    }
+
+    static String getParentDocumentId(String documentId) {
+        int end = documentId.endsWith(PATH_SEP) ? documentId.length() - 1 : documentId.length();
+        return documentId.substring(0, documentId.lastIndexOf(PATH_SEP, end - 1) + 1);
+    }
+
     @NonNull
     private BoxCursor createCursor(String[] projection, final boolean extraLoading) {
         String[] reduced = reduceProjection(projection, DEFAULT_DOCUMENT_PROJECTION);
@@ -334,49 +400,40 @@ public class BoxProvider extends DocumentsProvider {
         return cursor;
     }
 
-    private void insertFolderListing(MatrixCursor cursor, BoxNavigation navigation, String parentDocumentId) throws QblStorageException {
-        for (BoxFolder folder: navigation.listFolders()) {
-            insertFolder(cursor, parentDocumentId + folder.name + PATH_SEP, folder);
-        }
-        for (BoxFile file: navigation.listFiles()) {
-            insertFile(cursor, parentDocumentId + file.name, file);
-        }
-    }
-
-    private void insertFile(MatrixCursor cursor, String documentId, BoxFile file) {
-        final MatrixCursor.RowBuilder row = cursor.newRow();
-        row.add(Document.COLUMN_DOCUMENT_ID, documentId);
-        row.add(Document.COLUMN_DISPLAY_NAME, file.name);
-        row.add(Document.COLUMN_SUMMARY, null);
-        row.add(Document.COLUMN_FLAGS, Document.FLAG_SUPPORTS_WRITE);
-        row.add(Document.COLUMN_MIME_TYPE,
-                URLConnection.guessContentTypeFromName(file.name));
-    }
-
-    private void insertFolder(MatrixCursor cursor, String documentId, BoxFolder folder) {
+    private void insertEntry(MatrixCursor cursor, String documentId, FolderListing.Entry entry) {
         final MatrixCursor.RowBuilder row = cursor.newRow();
         row.add(Document.COLUMN_DOCUMENT_ID, documentId);
-        row.add(Document.COLUMN_DISPLAY_NAME, folder.name);
+        row.add(Document.COLUMN_DISPLAY_NAME, entry.name);
         row.add(Document.COLUMN_SUMMARY, null);
-        row.add(Document.COLUMN_FLAGS, Document.FLAG_DIR_SUPPORTS_CREATE);
-        row.add(Document.COLUMN_MIME_TYPE, Document.MIME_TYPE_DIR);
+        if (entry.folder) {
+            row.add(Document.COLUMN_FLAGS, Document.FLAG_DIR_SUPPORTS_CREATE);
+            row.add(Document.COLUMN_MIME_TYPE, Document.MIME_TYPE_DIR);
+        } else {
+            int flags = Document.FLAG_SUPPORTS_WRITE;
+            if (entry.thumbnail) {
+                flags |= Document.FLAG_SUPPORTS_THUMBNAIL;
+            }
+            row.add(Document.COLUMN_FLAGS, flags);
+            row.add(Document.COLUMN_MIME_TYPE,
+                    URLConnection.guessContentTypeFromName(entry.name));
+            row.add(Document.COLUMN_SIZE, entry.size);
+            // mtime is stored in seconds
+            row.add(Document.COLUMN_LAST_MODIFIED, entry.mtime * 1000);
+        }
     }
 
     BoxNavigation traverseToFolder(BoxVolume volume, List<String> filePath) throws QblStorageException {
         Log.d(TAG, "Traversing to " + filePath.toString());
         BoxNavigation navigation = volume.navigate();
-        PARTS: for (String part: filePath) {
+        for (String part: filePath) {
             if (part.equals("")) {
                 continue;
             }
-            for (BoxFolder folder: navigation.listFolders()) {
-                Log.i(TAG, "Part: " + part + " Folder: " + folder.name);
-                if (part.equals(folder.name)) {
-                    navigation.navigate(folder);
-                    continue PARTS;
-                }
+            BoxFolder folder = navigation.getFolder(part);
+            if (folder == null) {
+                throw new QblStorageNotFound("Folder not found, giving up at " + part);
             }
-            throw new QblStorageNotFound("Folder not found, giving up at " + part);
+            navigation.navigate(folder);
         }
         return navigation;
     }
@@ -391,23 +448,19 @@ public class BoxProvider extends DocumentsProvider {
         final boolean isRead = (mode.indexOf('r') != -1);
 
         if (isWrite) {
-            final int id = 1;
-            final NotificationManager mNotifyManager = (NotificationManager) getContext().getSystemService(Context.NOTIFICATION_SERVICE);
-            final NotificationCompat.Builder mBuilder = new NotificationCompat.Builder(getContext());
-            mBuilder.setContentTitle("Uploading " + mDocumentIdParser.getBaseName(documentId))
-                    .setContentText("Upload in progress")
-                    .setSmallIcon(R.drawable.notification_template_icon_bg);
-            mBuilder.setProgress(100, 0, false);
-            mNotifyManager.notify(id, mBuilder.build());
-
             // Attach a close listener if the document is opened in write mode.
             try {
                 Handler handler = new Handler(getContext().getMainLooper());
-                final File tmp;
+                final UploadQueue uploadQueue = UploadQueue.getInstance(getContext());
+                final UploadQueue.Upload upload = uploadQueue.open(documentId);
+                final File tmp = upload.file;
                 if (isRead) {
-                    tmp = downloadFile(documentId, mode, signal);
-                } else {
-                    tmp = File.createTempFile("upload", "", getContext().getExternalCacheDir());
+                    try {
+                        downloadInto(documentId, tmp, signal);
+                    } catch (FileNotFoundException e) {
+                        uploadQueue.remove(upload);
+                        throw e;
+                    }
                 }
                 ParcelFileDescriptor.OnCloseListener onCloseListener = new ParcelFileDescriptor.OnCloseListener() {
                     @Override
@@ -417,37 +470,12 @@ public class BoxProvider extends DocumentsProvider {
                                 "update the server.");
                         if (e != null) {
                             Log.e(TAG, "IOException in onClose", e);
+                            uploadQueue.remove(upload);
                             return;
                         }
-                        // in another thread!
-                        new AsyncTask<Void, Void, String>() {
-                            @Override
-                            protected String doInBackground(Void... params) {
-                                uploadFile(documentId, tmp, new TransferManager.BoxTransferListener() {
-                                    @Override
-                                    public void onProgressChanged(long bytesCurrent, long bytesTotal) {
-                                        mBuilder.setProgress(100, (int) (100 * bytesCurrent / bytesTotal), false);
-                                        mNotifyManager.notify(id, mBuilder.build());
-                                    }
-
-                                    @Override
-                                    public void onFinished() {
-                                        String filename;
-                                        try {
-                                            filename = mDocumentIdParser.getBaseName(documentId);
-                                        } catch (FileNotFoundException e) {
-                                            filename = documentId;
-                                        }
-                                        mBuilder.setContentTitle("Uploading " + filename)
-                                                .setContentText("Upload complete")
-                                                .setSmallIcon(R.drawable.notification_template_icon_bg);
-                                        mBuilder.setProgress(100, 100, false);
-                                        mNotifyManager.notify(id, mBuilder.build());
-                                    }
-                                });
-                                return documentId;
-                            }
-                        }.execute();
+                        // the upload service takes it from the journal, even after a restart
+                        uploadQueue.enqueue(upload);
+                        UploadService.start(getContext());
                     }
 
                 };
@@ -457,120 +485,328 @@ public class BoxProvider extends DocumentsProvider {
                 throw new FileNotFoundException();
             }
         }
-        else {
-            File tmp = downloadFile(documentId, mode, signal);
-			final int accessMode = ParcelFileDescriptor.parseMode(mode);
-			return ParcelFileDescriptor.open(tmp, accessMode);
-
+        else if (needsRandomAccess(mDocumentIdParser.getBaseName(documentId))) {
+            return openDocumentFile(documentId, signal);
+        } else {
+            return openDocumentStream(documentId, signal);
         }
     }
 
-    private void uploadFile(String documentId, File tmp, TransferManager.BoxTransferListener boxTransferListener) {
+    /**
+     * Open the document as a file descriptor that can be seeked and stat'ed, which readers
+     * of media files and documents rely on. The file is decrypted into the private open
+     * directory and unlinked as soon as it is opened, so the plaintext is gone with the
+     * last descriptor.
+     */
+    private ParcelFileDescriptor openDocumentFile(String documentId, CancellationSignal signal)
+            throws FileNotFoundException {
+        File file;
         try {
-            BoxVolume volume = getVolumeForId(documentId);
-            List<String> splitPath = mDocumentIdParser.splitPath(
-                    mDocumentIdParser.getFilePath(documentId));
-            String basename = splitPath.remove(splitPath.size() - 1);
-            Log.i(TAG, "Navigating to folder");
-            BoxNavigation navigation = traverseToFolder(volume, splitPath);
-            Log.i(TAG, "Starting upload");
-            navigation.upload(basename, new FileInputStream(tmp), boxTransferListener);
-            navigation.commit();
-        } catch (FileNotFoundException | QblStorageException e1) {
-            Log.e(TAG, "Upload failed", e1);
+            file = File.createTempFile("open", "", getOpenDir());
+        } catch (IOException e) {
+            Log.e(TAG, "Could not create file to open " + documentId, e);
+            throw new FileNotFoundException();
+        }
+        try {
+            downloadInto(documentId, file, signal);
+            return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+        } finally {
+            if (!file.delete()) {
+                Log.w(TAG, "Could not delete opened file " + file);
+            }
         }
     }
 
-    private File downloadFile(final String documentId, final String mode, final CancellationSignal signal) throws FileNotFoundException {
-        final Future<File> future
-                = mThreadPoolExecutor.submit(new Callable<File>() {
-
-            @Override
-            public File call() throws Exception {
+    /**
+     * Open the document as a pipe that is fed by a producer thread, which downloads and
+     * decrypts the file on the fly. The reader gets the first bytes without waiting for
+     * the complete download and no plaintext is written to disk.
+     *
+     * If the download or the decryption fails the reader gets an error when the pipe
+     * is closed. Cancelling the signal stops the producer and closes the pipe with an
+     * error as well.
+     */
+    private ParcelFileDescriptor openDocumentStream(final String documentId,
+                                                    @Nullable final CancellationSignal signal)
+            throws FileNotFoundException {
+        final InputStream inputStream = openDownloadStream(documentId);
+        if (signal != null && signal.isCanceled()) {
+            Log.d(TAG, "openDocument cancelled before streaming " + documentId);
+            IOUtils.closeQuietly(inputStream);
+            throw new FileNotFoundException();
+        }
 
-                return getFile(signal, documentId);
-            }
-        });
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createReliablePipe();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not create pipe", e);
+            IOUtils.closeQuietly(inputStream);
+            throw new FileNotFoundException();
+        }
+        final ParcelFileDescriptor writeSide = pipe[1];
         if (signal != null) {
             signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
                 @Override
                 public void onCancel() {
-                    Log.d(TAG, "openDocument cancelling");
-                    future.cancel(true);
+                    Log.d(TAG, "openDocument cancelled streaming " + documentId);
+                    // also unblocks the producer if it waits for the reader
+                    closeWithError(writeSide, "Cancelled");
                 }
             });
         }
+        mStreamExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                OutputStream outputStream = new FileOutputStream(writeSide.getFileDescriptor());
+                try {
+                    byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+                    int read;
+                    while ((read = inputStream.read(buffer)) != -1) {
+                        if (signal != null && signal.isCanceled()) {
+                            return;
+                        }
+                        outputStream.write(buffer, 0, read);
+                    }
+                    outputStream.flush();
+                    writeSide.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Streaming " + documentId + " failed", e);
+                    closeWithError(writeSide, "Download failed");
+                } finally {
+                    IOUtils.closeQuietly(inputStream);
+                    if (signal != null) {
+                        signal.setOnCancelListener(null);
+                    }
+                }
+            }
+        });
+        return pipe[0];
+    }
+
+    private static void closeWithError(ParcelFileDescriptor fileDescriptor, String message) {
+        try {
+            fileDescriptor.closeWithError(message);
+        } catch (IOException ignored) {
+        }
+    }
 
+    /**
+     * @return a stream of the decrypted content of the document
+     */
+    private InputStream openDownloadStream(String documentId) throws FileNotFoundException {
         try {
-            return future.get();
-        } catch (InterruptedException e) {
-            Log.d(TAG, "openDocument cancelled download");
-            throw new FileNotFoundException();
-        } catch (ExecutionException e) {
-            Log.d(TAG, "Execution error", e);
+            BoxNavigation navigation = traverseToParent(documentId);
+            return navigation.downloadStream(findFileinList(
+                    mDocumentIdParser.getBaseName(documentId), navigation));
+        } catch (QblStorageException e) {
+            Log.e(TAG, "Could not open document " + documentId, e);
             throw new FileNotFoundException();
         }
     }
 
-    private File getFile(CancellationSignal signal, final String documentId)
-            throws IOException, QblStorageException {
-        final int id = 2;
-        final NotificationManager mNotifyManager = (NotificationManager) getContext().getSystemService(Context.NOTIFICATION_SERVICE);
-        final NotificationCompat.Builder mBuilder = new NotificationCompat.Builder(getContext());
-        mBuilder.setContentTitle("Downloading " + mDocumentIdParser.getBaseName(documentId))
-                .setContentText("Download in progress")
-                .setSmallIcon(R.drawable.notification_template_icon_bg);
-        mBuilder.setProgress(100, 0, false);
-        mNotifyManager.notify(id, mBuilder.build());
+    private BoxNavigation traverseToParent(String documentId)
+            throws FileNotFoundException, QblStorageException {
+        List<String> strings = mDocumentIdParser.splitPath(
+                mDocumentIdParser.getFilePath(documentId));
+        strings.remove(strings.size() - 1);
+        return traverseToFolder(getVolumeForId(documentId), strings);
+    }
 
+    /**
+     * Writes the decrypted content of the document to the output stream.
+     *
+     * Segmented files are authenticated segment by segment, so everything written is valid
+     * plaintext. If their download breaks, it is resumed at the written position with a
+     * seekable reader instead of starting over.
+     */
+    private void decryptInto(String documentId, OutputStream outputStream)
+            throws IOException, QblStorageException {
+        BoxNavigation navigation = traverseToParent(documentId);
+        BoxFile file = findFileinList(mDocumentIdParser.getBaseName(documentId), navigation);
+        InputStream inputStream = navigation.downloadStream(file);
+        SegmentedBlock.Reader reader = null;
+        long written = 0;
+        int resumes = 0;
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        try {
+            while (true) {
+                int read;
+                try {
+                    read = inputStream.read(buffer);
+                } catch (IOException e) {
+                    if (file.segmentSize == null || e instanceof InterruptedIOException
+                            || resumes++ >= MAX_RESUMES) {
+                        throw e;
+                    }
+                    Log.w(TAG, "Resuming download of " + documentId + " at " + written, e);
+                    IOUtils.closeQuietly(inputStream);
+                    if (reader == null) {
+                        reader = navigation.openSeekable(file);
+                    }
+                    inputStream = reader.openStream(written);
+                    continue;
+                }
+                if (read == -1) {
+                    return;
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException("Cancelled");
+                }
+                outputStream.write(buffer, 0, read);
+                written += read;
+            }
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+    }
 
-        String path = mDocumentIdParser.getFilePath(documentId);
-        List<String> strings = mDocumentIdParser.splitPath(path);
-        String basename = strings.remove(strings.size() - 1);
+    /**
+     * Uploads the file to the document and commits its folder, used by the UploadService
+     * for the queued uploads
+     *
+     * @throws FileNotFoundException if the document id is invalid or the file is gone
+     * @throws QblStorageException if the upload failed
+     */
+    public void uploadFile(String documentId, File tmp, TransferManager.BoxTransferListener boxTransferListener)
+            throws FileNotFoundException, QblStorageException {
         BoxVolume volume = getVolumeForId(documentId);
+        List<String> splitPath = mDocumentIdParser.splitPath(
+                mDocumentIdParser.getFilePath(documentId));
+        String basename = splitPath.remove(splitPath.size() - 1);
+        Log.i(TAG, "Navigating to folder");
+        BoxNavigation navigation = traverseToFolder(volume, splitPath);
+        Log.i(TAG, "Starting upload");
+        BoxFile boxFile;
+        InputStream content = new FileInputStream(tmp);
+        try {
+            if (needsRandomAccess(basename)) {
+                boxFile = navigation.uploadSeekable(basename, content, boxTransferListener);
+            } else {
+                boxFile = navigation.upload(basename, content, boxTransferListener);
+            }
+        } finally {
+            IOUtils.closeQuietly(content);
+        }
+        byte[] thumbnail = ThumbnailGenerator.create(tmp,
+                URLConnection.guessContentTypeFromName(basename));
+        if (thumbnail != null) {
+            navigation.uploadThumbnail(boxFile, new ByteArrayInputStream(thumbnail));
+        }
+        navigation.commit();
+        invalidateFolder(getParentDocumentId(documentId));
+    }
 
-        BoxNavigation navigation = traverseToFolder(volume, strings);
-        BoxFile file = findFileinList(basename, navigation);
-        InputStream inputStream = navigation.download(file, new TransferManager.BoxTransferListener() {
-
+    /**
+     * Uploads the documents into the folder with a single commit, see BatchUploader.
+     * Blocks until all uploads are done.
+     *
+     * @return number of uploaded documents
+     */
+    public int uploadDocuments(String parentDocumentId, List<Uri> uris) throws FileNotFoundException {
+        Log.d(TAG, "Uploading " + uris.size() + " documents to " + parentDocumentId);
+        try {
+            BoxNavigation navigation = traverseToFolder(getVolumeForId(parentDocumentId),
+                    mDocumentIdParser.splitPath(mDocumentIdParser.getFilePath(parentDocumentId)));
+            List<BoxFile> uploaded = new BatchUploader(getContext(), getOpenDir())
+                    .upload(navigation, uris);
+            invalidateFolder(parentDocumentId);
+            return uploaded.size();
+        } catch (QblStorageException e) {
+            Log.e(TAG, "Batch upload failed", e);
+            throw new FileNotFoundException();
+        }
+    }
 
-            @Override
-            public void onProgressChanged(long bytesCurrent, long bytesTotal) {
-                mBuilder.setProgress(100, (int) (100 * bytesCurrent / bytesTotal), false);
-                mNotifyManager.notify(id, mBuilder.build());
+    @Override
+    public AssetFileDescriptor openDocumentThumbnail(String documentId, Point sizeHint,
+                                                     CancellationSignal signal)
+            throws FileNotFoundException {
+        Log.d(TAG, "Open document thumbnail: " + documentId);
+        try {
+            List<String> strings = mDocumentIdParser.splitPath(
+                    mDocumentIdParser.getFilePath(documentId));
+            String basename = strings.remove(strings.size() - 1);
+            BoxNavigation navigation = traverseToFolder(getVolumeForId(documentId), strings);
+            BoxFile file = findFileinList(basename, navigation);
+            if (file.thumbnail == null) {
+                throw new FileNotFoundException("No thumbnail for " + documentId);
+            }
+            File thumbnail = getThumbnailCache().get(file.thumbnail);
+            if (thumbnail == null) {
+                InputStream inputStream = navigation.downloadThumbnail(file);
+                try {
+                    thumbnail = getThumbnailCache().put(file.thumbnail, inputStream);
+                } finally {
+                    inputStream.close();
+                }
             }
+            return new AssetFileDescriptor(
+                    ParcelFileDescriptor.open(thumbnail, ParcelFileDescriptor.MODE_READ_ONLY),
+                    0, AssetFileDescriptor.UNKNOWN_LENGTH);
+        } catch (QblStorageException | IOException e) {
+            Log.e(TAG, "Could not open thumbnail of " + documentId, e);
+            throw new FileNotFoundException();
+        }
+    }
 
+    /**
+     * Media players and document viewers seek in the files they open, so these files
+     * are uploaded in the segmented format.
+     */
+    static boolean needsRandomAccess(String name) {
+        String mimeType = URLConnection.guessContentTypeFromName(name);
+        return mimeType != null && (mimeType.startsWith("video/")
+                || mimeType.startsWith("audio/")
+                || mimeType.equals("application/pdf"));
+    }
+
+    /**
+     * Decrypts the document directly into the target file, so no other plaintext copy is
+     * left behind
+     */
+    private void downloadInto(final String documentId, final File target,
+                              final CancellationSignal signal) throws FileNotFoundException {
+        final Future<?> future = mThreadPoolExecutor.submit(new Callable<Void>() {
             @Override
-            public void onFinished() {
+            public Void call() throws Exception {
+                OutputStream outputStream = new FileOutputStream(target);
+                try {
+                    decryptInto(documentId, outputStream);
+                } finally {
+                    IOUtils.closeQuietly(outputStream);
+                }
+                return null;
             }
         });
-        String filename;
+        if (signal != null) {
+            signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    Log.d(TAG, "openDocument cancelling");
+                    future.cancel(true);
+                }
+            });
+        }
+
         try {
-            filename = mDocumentIdParser.getBaseName(documentId);
-        } catch (FileNotFoundException e) {
-            filename = documentId;
-        }
-        mBuilder.setContentTitle("Downloading " + filename)
-                .setContentText("Download complete")
-                .setSmallIcon(R.drawable.notification_template_icon_bg);
-        mBuilder.setProgress(100, 100, false);
-        mNotifyManager.notify(id, mBuilder.build());
-        File out = new File(getContext().getExternalCacheDir(), basename);
-        FileOutputStream fileOutputStream = new FileOutputStream(out);
-        IOUtils.copy(inputStream, fileOutputStream);
-        inputStream.close();
-        fileOutputStream.close();
-        return out;
+            future.get();
+        } catch (InterruptedException | CancellationException e) {
+            Log.d(TAG, "openDocument cancelled download");
+            throw new FileNotFoundException();
+        } catch (ExecutionException e) {
+            Log.d(TAG, "Execution error", e);
+            throw new FileNotFoundException();
+        }
     }
 
     private BoxFile findFileinList(String basename, BoxNavigation navigation)
             throws QblStorageException, FileNotFoundException {
-        for (BoxFile file: navigation.listFiles()) {
-            if (file.name.equals(basename)) {
-                return file;
-            }
+        BoxFile file = navigation.getFile(basename);
+        if (file == null) {
+            throw new FileNotFoundException();
         }
-        throw new FileNotFoundException();
+        return file;
     }
 
     @Override
@@ -590,6 +826,7 @@ public class BoxProvider extends DocumentsProvider {
                 navigation.upload(displayName, new ByteArrayInputStream(new byte[0]), null);
             }
             navigation.commit();
+            invalidateFolder(parentDocumentId);
 
             return parentDocumentId + displayName;
 
@@ -611,22 +848,21 @@ public class BoxProvider extends DocumentsProvider {
             String basename = splitPath.remove(splitPath.size()-1);
             BoxNavigation navigation = traverseToFolder(volume, splitPath);
 
-            for (BoxFile file: navigation.listFiles()) {
-                if (file.name.equals(basename)) {
-                    navigation.delete(file);
-                    navigation.commit();
-                    return;
-                }
+            BoxFile file = navigation.getFile(basename);
+            if (file != null) {
+                navigation.delete(file);
+                navigation.commit();
+                invalidateDocument(documentId);
+                return;
             }
-            for (BoxFolder folder: navigation.listFolders()) {
-                if (folder.name.equals(basename)) {
-                    navigation.delete(folder);
-                    navigation.commit();
-                    return;
-                }
+            BoxFolder folder = navigation.getFolder(basename);
+            if (folder != null) {
+                navigation.delete(folder);
+                navigation.commit();
+                invalidateDocument(documentId);
+                return;
             }
 
-
         } catch (QblStorageException e) {
             Log.e(TAG, "could not create file", e);
             throw new FileNotFoundException();
@@ -646,25 +882,23 @@ public class BoxProvider extends DocumentsProvider {
             BoxNavigation navigation = traverseToFolder(volume, splitPath);
             splitPath.add(PATH_SEP + displayName);
             String newPath = StringUtils.join(splitPath, "");
+            DocumentId id = mDocumentIdParser.parse(documentId);
             String renamedId = mDocumentIdParser.buildId(
-                    mDocumentIdParser.getIdentity(documentId),
-                    mDocumentIdParser.getBucket(documentId),
-                    mDocumentIdParser.getPrefix(documentId),
-                    newPath);
-
-            for (BoxFile file : navigation.listFiles()) {
-                if (file.name.equals(basename)) {
-                    navigation.rename(file, displayName);
-                    navigation.commit();
-                    return renamedId;
-                }
+                    id.getIdentity(), id.getBucket(), id.getPrefix(), newPath);
+
+            BoxFile file = navigation.getFile(basename);
+            if (file != null) {
+                navigation.rename(file, displayName);
+                navigation.commit();
+                invalidateDocument(documentId);
+                return renamedId;
             }
-            for (BoxFolder folder : navigation.listFolders()) {
-                if (folder.name.equals(basename)) {
-                    navigation.rename(folder, displayName);
-                    navigation.commit();
-                    return renamedId;
-                }
+            BoxFolder folder = navigation.getFolder(basename);
+            if (folder != null) {
+                navigation.rename(folder, displayName);
+                navigation.commit();
+                invalidateDocument(documentId);
+                return renamedId;
             }
             throw new FileNotFoundException();
 
@@ -675,6 +909,85 @@ public class BoxProvider extends DocumentsProvider {
         }
     }
 
+    /**
+     * Moves a file to another folder. Only the metadata of both folders is rewritten,
+     * the file content is not transferred.
+     *
+     * Same signature as DocumentsProvider.moveDocument of newer platform versions.
+     * @return document id of the moved file
+     */
+    public String moveDocument(String sourceDocumentId, String sourceParentDocumentId,
+                               String targetParentDocumentId) throws FileNotFoundException {
+        Log.d(TAG, "moveDocument: " + sourceDocumentId + " to " + targetParentDocumentId);
+
+        String path = mDocumentIdParser.getFilePath(sourceDocumentId);
+        BoxVolume volume = getVolumeForId(sourceDocumentId);
+
+        try {
+            List<String> splitPath = mDocumentIdParser.splitPath(path);
+            String basename = splitPath.remove(splitPath.size() - 1);
+            BoxNavigation navigation = traverseToFolder(volume, splitPath);
+            BoxFile file = findFileinList(basename, navigation);
+            String targetPath = mDocumentIdParser.getFilePath(targetParentDocumentId);
+            navigation.move(file, findFolder(volume, targetPath), targetPath);
+            navigation.commit();
+            invalidateDocument(sourceDocumentId);
+            invalidateFolder(targetParentDocumentId);
+            return targetParentDocumentId + basename;
+        } catch (QblStorageException e) {
+            Log.e(TAG, "could not move file", e);
+            throw new FileNotFoundException();
+        }
+    }
+
+    /**
+     * Copies a file to another folder with a server side copy of the file content.
+     *
+     * Same signature as DocumentsProvider.copyDocument of newer platform versions.
+     * @return document id of the copy
+     */
+    public String copyDocument(String sourceDocumentId, String targetParentDocumentId)
+            throws FileNotFoundException {
+        Log.d(TAG, "copyDocument: " + sourceDocumentId + " to " + targetParentDocumentId);
+
+        String path = mDocumentIdParser.getFilePath(sourceDocumentId);
+        BoxVolume volume = getVolumeForId(sourceDocumentId);
+
+        try {
+            List<String> splitPath = mDocumentIdParser.splitPath(path);
+            String basename = splitPath.remove(splitPath.size() - 1);
+            BoxNavigation navigation = traverseToFolder(volume, splitPath);
+            BoxFile file = findFileinList(basename, navigation);
+            String targetPath = mDocumentIdParser.getFilePath(targetParentDocumentId);
+            navigation.copy(file, findFolder(volume, targetPath), targetPath);
+            invalidateFolder(targetParentDocumentId);
+            return targetParentDocumentId + basename;
+        } catch (QblStorageException e) {
+            Log.e(TAG, "could not copy file", e);
+            throw new FileNotFoundException();
+        }
+    }
+
+    /**
+     * Finds the BoxFolder for a folder path. The root folder is represented by a
+     * BoxFolder without a name and key.
+     */
+    BoxFolder findFolder(BoxVolume volume, String folderPath) throws QblStorageException {
+        List<String> splitPath = mDocumentIdParser.splitPath(folderPath);
+        String name = "";
+        while (!splitPath.isEmpty() && name.equals("")) {
+            name = splitPath.remove(splitPath.size() - 1);
+        }
+        if (name.equals("")) {
+            return new BoxFolder(volume.getRootRef(), "", null);
+        }
+        BoxFolder folder = traverseToFolder(volume, splitPath).getFolder(name);
+        if (folder == null) {
+            throw new QblStorageNotFound("Folder not found: " + folderPath);
+        }
+        return folder;
+    }
+
     class BoxCursor extends MatrixCursor {
         private boolean extraLoading;
         private String error;
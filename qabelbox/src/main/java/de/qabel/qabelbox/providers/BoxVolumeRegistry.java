@@ -0,0 +1,116 @@
+package de.qabel.qabelbox.providers;
+
+import android.content.Context;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferUtility;
+import com.amazonaws.services.s3.AmazonS3Client;
+
+import org.spongycastle.util.encoders.Hex;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import de.qabel.core.crypto.QblECKeyPair;
+import de.qabel.qabelbox.QabelBoxApplication;
+import de.qabel.qabelbox.R;
+import de.qabel.qabelbox.storage.BoxVolume;
+
+/**
+ * Process wide registry of box volumes.
+ *
+ * All volumes share one S3 client, and with it one HTTP connection pool, and one
+ * TransferUtility. A volume is created once per identity, bucket and prefix and
+ * reused for every following document or navigation request.
+ *
+ * The S3 client and the TransferUtility are created with the first volume, creating
+ * the registry itself is cheap enough for the startup of the BoxProvider.
+ */
+public class BoxVolumeRegistry {
+
+    private static final int MAX_CONNECTIONS = 8;
+    private static final int CONNECTION_TIMEOUT = 15 * 1000;
+    private static final int SOCKET_TIMEOUT = 30 * 1000;
+
+    private static BoxVolumeRegistry instance;
+
+    private final Context context;
+    private final AWSCredentials awsCredentials;
+    private AmazonS3Client amazonS3Client;
+    private TransferUtility transferUtility;
+    private final ConcurrentMap<String, BoxVolume> volumes = new ConcurrentHashMap<>();
+    private QblECKeyPair keyPair;
+
+    public static synchronized BoxVolumeRegistry getInstance(Context context) {
+        if (instance == null) {
+            instance = new BoxVolumeRegistry(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private BoxVolumeRegistry(final Context context) {
+        this.context = context;
+        awsCredentials = new AWSCredentials() {
+            @Override
+            public String getAWSAccessKeyId() {
+                return context.getResources().getString(R.string.aws_user);
+            }
+
+            @Override
+            public String getAWSSecretKey() {
+                return context.getResources().getString(R.string.aws_password);
+            }
+        };
+    }
+
+    public AWSCredentials getAwsCredentials() {
+        return awsCredentials;
+    }
+
+    public synchronized AmazonS3Client getAmazonS3Client() {
+        if (amazonS3Client == null) {
+            ClientConfiguration configuration = new ClientConfiguration();
+            configuration.setMaxConnections(MAX_CONNECTIONS);
+            configuration.setConnectionTimeout(CONNECTION_TIMEOUT);
+            configuration.setSocketTimeout(SOCKET_TIMEOUT);
+            amazonS3Client = new AmazonS3Client(awsCredentials, configuration);
+        }
+        return amazonS3Client;
+    }
+
+    public synchronized TransferUtility getTransferUtility() {
+        if (transferUtility == null) {
+            transferUtility = new TransferUtility(getAmazonS3Client(), context);
+        }
+        return transferUtility;
+    }
+
+    /**
+     * Returns the volume for the given root, creating it on first use
+     */
+    public BoxVolume getVolume(String identity, String bucket, String prefix) {
+        String key = identity + BoxProvider.DOCID_SEPARATOR + bucket
+                + BoxProvider.DOCID_SEPARATOR + prefix;
+        BoxVolume volume = volumes.get(key);
+        if (volume != null) {
+            return volume;
+        }
+        QabelBoxApplication.ensureCryptoProvider();
+        volume = new BoxVolume(getTransferUtility(), getAmazonS3Client(), getKeyPair(), bucket, prefix,
+                QabelBoxApplication.getDeviceID(), context);
+        BoxVolume existing = volumes.putIfAbsent(key, volume);
+        if (existing != null) {
+            return existing;
+        }
+        QabelBoxApplication.logStartupStage("volume " + prefix + " created");
+        return volume;
+    }
+
+    private synchronized QblECKeyPair getKeyPair() {
+        if (keyPair == null) {
+            keyPair = new QblECKeyPair(Hex.decode(BoxProvider.PRIVATE_KEY));
+        }
+        return keyPair;
+    }
+}
@@ -0,0 +1,84 @@
+package de.qabel.qabelbox.providers;
+
+import java.io.FileNotFoundException;
+
+/**
+ * Parsed form of a document id
+ *
+ * Components that are not part of the id are null, the getters throw a
+ * FileNotFoundException for them like the DocumentIdParser did before.
+ */
+public class DocumentId {
+
+    private static final int SEPARATOR_LENGTH = BoxProvider.DOCID_SEPARATOR.length();
+
+    private final String identity;
+    private final String bucket;
+    private final String prefix;
+    private final String filePath;
+
+    DocumentId(String identity, String bucket, String prefix, String filePath) {
+        this.identity = identity;
+        this.bucket = bucket;
+        this.prefix = prefix;
+        this.filePath = filePath;
+    }
+
+    /**
+     * Splits the document id in a single pass over the separators
+     */
+    static DocumentId parse(String documentId) {
+        String separator = BoxProvider.DOCID_SEPARATOR;
+        int first = documentId.indexOf(separator);
+        if (first < 0) {
+            return new DocumentId(null, null, null, null);
+        }
+        String identity = documentId.substring(0, first);
+        int second = documentId.indexOf(separator, first + SEPARATOR_LENGTH);
+        if (second < 0) {
+            return new DocumentId(identity, null, null, null);
+        }
+        String bucket = documentId.substring(first + SEPARATOR_LENGTH, second);
+        int third = documentId.indexOf(separator, second + SEPARATOR_LENGTH);
+        if (third < 0) {
+            return new DocumentId(identity, bucket,
+                    documentId.substring(second + SEPARATOR_LENGTH), null);
+        }
+        return new DocumentId(identity, bucket,
+                documentId.substring(second + SEPARATOR_LENGTH, third),
+                documentId.substring(third + SEPARATOR_LENGTH));
+    }
+
+    public String getIdentity() throws FileNotFoundException {
+        if (identity == null) {
+            throw new FileNotFoundException("Could not find identity in document id");
+        }
+        return identity;
+    }
+
+    public String getBucket() throws FileNotFoundException {
+        if (bucket == null) {
+            throw new FileNotFoundException("Could not find bucket in document id");
+        }
+        return bucket;
+    }
+
+    public String getPrefix() throws FileNotFoundException {
+        if (prefix == null) {
+            throw new FileNotFoundException("Could not find volume prefix in document id");
+        }
+        return prefix;
+    }
+
+    public String getFilePath() throws FileNotFoundException {
+        if (filePath == null) {
+            throw new FileNotFoundException("Could not find file path in document id");
+        }
+        return filePath;
+    }
+
+    public String getBaseName() throws FileNotFoundException {
+        String path = getFilePath();
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+}
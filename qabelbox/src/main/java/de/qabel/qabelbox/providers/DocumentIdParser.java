@@ -1,8 +1,9 @@
 package de.qabel.qabelbox.providers;
 
+import android.util.LruCache;
+
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -11,47 +12,67 @@ import java.util.List;
  */
 public class DocumentIdParser {
 
+    private static final int MAX_CACHED_IDS = 256;
+
+    /**
+     * The provider asks for several components of the same ids over and over again,
+     * keep the recently parsed ones around.
+     */
+    private final LruCache<String, DocumentId> parsedIds =
+            new LruCache<String, DocumentId>(MAX_CACHED_IDS) {
+                @Override
+                protected DocumentId create(String documentId) {
+                    return DocumentId.parse(documentId);
+                }
+            };
+
+    public DocumentId parse(String documentId) {
+        return parsedIds.get(documentId);
+    }
+
     public String getIdentity(String documentId) throws FileNotFoundException {
-        String[] split = documentId.split(BoxProvider.DOCID_SEPARATOR, 2);
-        if (split.length > 1) {
-            return split[0];
-        }
-        throw new FileNotFoundException("Could not find identity in document id");
+        return parse(documentId).getIdentity();
     }
 
     public String getBucket(String documentId) throws FileNotFoundException {
-        String[] split = documentId.split(BoxProvider.DOCID_SEPARATOR, 4);
-        if (split.length > 2) {
-            return split[1];
-        }
-        throw new FileNotFoundException("Could not find bucket in document id");
+        return parse(documentId).getBucket();
     }
 
     public String getPrefix(String documentId) throws FileNotFoundException {
-        String[] split = documentId.split(BoxProvider.DOCID_SEPARATOR, 4);
-        if (split.length > 2) {
-            return split[2];
-        }
-        throw new FileNotFoundException("Could not find volume prefix in document id");
+        return parse(documentId).getPrefix();
     }
 
-
     public String getFilePath(String documentId) throws FileNotFoundException {
-        String[] split = documentId.split(BoxProvider.DOCID_SEPARATOR, 4);
-        if (split.length > 3 && split[3] != "") {
-            return split[3];
-        }
-        throw new FileNotFoundException("Could not find file path in document id");
+        return parse(documentId).getFilePath();
     }
 
+    /**
+     * Splits the path at '/' with the semantics of String.split: leading empty segments are
+     * kept, trailing ones are dropped. The returned list may be modified by the caller.
+     */
     public List<String> splitPath(String filePath) {
-        ArrayList<String> list = new ArrayList<>(Arrays.asList(filePath.split("/")));
+        ArrayList<String> list = new ArrayList<>();
+        int start = 0;
+        int end;
+        while ((end = filePath.indexOf('/', start)) >= 0) {
+            list.add(filePath.substring(start, end));
+            start = end + 1;
+        }
+        if (start == 0) {
+            // no separator at all
+            list.add(filePath);
+            return list;
+        }
+        list.add(filePath.substring(start));
+        int size = list.size();
+        while (size > 0 && list.get(size - 1).isEmpty()) {
+            list.remove(--size);
+        }
         return list;
     }
 
     public String getBaseName(String documentID) throws FileNotFoundException {
-        String filepath = getFilePath(documentID);
-        return filepath.substring(filepath.lastIndexOf('/') + 1, filepath.length());
+        return parse(documentID).getBaseName();
     }
 
 
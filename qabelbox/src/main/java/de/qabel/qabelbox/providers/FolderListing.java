@@ -0,0 +1,100 @@
+package de.qabel.qabelbox.providers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import de.qabel.qabelbox.exceptions.QblStorageException;
+import de.qabel.qabelbox.storage.BoxFile;
+import de.qabel.qabelbox.storage.BoxFolder;
+import de.qabel.qabelbox.storage.BoxNavigation;
+
+/**
+ * Immutable snapshot of a folder listing
+ *
+ * Only the values needed to build document rows are kept, together with the metadata
+ * version the listing was read from.
+ */
+class FolderListing {
+
+    private static final int PAGE_SIZE = 500;
+
+    static class Entry {
+        final String name;
+        final boolean folder;
+        final long size;
+        final long mtime;
+        final boolean thumbnail;
+
+        Entry(String name, boolean folder, long size, long mtime, boolean thumbnail) {
+            this.name = name;
+            this.folder = folder;
+            this.size = size;
+            this.mtime = mtime;
+            this.thumbnail = thumbnail;
+        }
+
+        static Entry of(BoxFolder folder) {
+            return new Entry(folder.name, true, 0, 0, false);
+        }
+
+        static Entry of(BoxFile file) {
+            return new Entry(file.name, false,
+                    file.getPlaintextSize(),
+                    file.mtime != null ? file.mtime : 0,
+                    file.thumbnail != null);
+        }
+    }
+
+    final byte[] version;
+    final List<Entry> entries;
+    final String error;
+
+    FolderListing(byte[] version, List<Entry> entries, String error) {
+        this.version = version;
+        this.entries = Collections.unmodifiableList(entries);
+        this.error = error;
+    }
+
+    /**
+     * Reads the listing page by page, so only the compact entries of a large folder are
+     * kept in memory and not all of its BoxFolder and BoxFile objects at once
+     */
+    static FolderListing of(BoxNavigation navigation) throws QblStorageException {
+        List<Entry> entries = new ArrayList<>();
+        List<BoxFolder> folders;
+        String after = null;
+        do {
+            folders = navigation.listFolders(after, PAGE_SIZE);
+            for (BoxFolder folder : folders) {
+                entries.add(Entry.of(folder));
+                after = folder.name;
+            }
+        } while (folders.size() == PAGE_SIZE);
+        List<BoxFile> files;
+        after = null;
+        do {
+            files = navigation.listFiles(after, PAGE_SIZE);
+            for (BoxFile file : files) {
+                entries.add(Entry.of(file));
+                after = file.name;
+            }
+        } while (files.size() == PAGE_SIZE);
+        return new FolderListing(navigation.getVersion(), entries, null);
+    }
+
+    /**
+     * Keeps the entries of the previous listing, if any, and attaches an error message
+     */
+    static FolderListing failed(FolderListing previous, String error) {
+        List<Entry> entries = previous != null ? previous.entries : new ArrayList<Entry>();
+        return new FolderListing(null, entries, error);
+    }
+
+    /**
+     * Approximate weight of the listing for the size bound of the cache
+     */
+    int weight() {
+        return entries.size() + 1;
+    }
+}
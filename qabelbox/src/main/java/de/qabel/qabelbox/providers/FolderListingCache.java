@@ -0,0 +1,95 @@
+package de.qabel.qabelbox.providers;
+
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cache of the folder listings, bounded by the number of their entries.
+ *
+ * A listing heavier than the bound would be evicted by the LruCache as soon as it is
+ * put, so the listing of the current folder is kept in its own slot outside of the
+ * bound. Only one such listing is held at a time.
+ */
+class FolderListingCache {
+
+    private final int maxEntries;
+    private final LruCache<String, FolderListing> listings;
+    private String currentFolder;
+    private FolderListing currentListing;
+
+    FolderListingCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        listings = new LruCache<String, FolderListing>(maxEntries) {
+            @Override
+            protected int sizeOf(String key, FolderListing value) {
+                return value.weight();
+            }
+        };
+    }
+
+    synchronized FolderListing get(String documentId) {
+        if (documentId.equals(currentFolder) && currentListing != null) {
+            return currentListing;
+        }
+        return listings.get(documentId);
+    }
+
+    /**
+     * Marks the folder that is shown, a listing of another folder that does not fit into
+     * the bound is dropped
+     */
+    synchronized void setCurrentFolder(String documentId) {
+        if (!documentId.equals(currentFolder)) {
+            currentFolder = documentId;
+            currentListing = null;
+        }
+    }
+
+    synchronized boolean isCurrentFolder(String documentId) {
+        return documentId.equals(currentFolder);
+    }
+
+    /**
+     * @return false if the listing is too heavy for the cache and not the current folder,
+     * so it was not kept
+     */
+    synchronized boolean put(String documentId, FolderListing listing) {
+        if (listing.weight() <= maxEntries) {
+            if (documentId.equals(currentFolder)) {
+                currentListing = null;
+            }
+            listings.put(documentId, listing);
+            return true;
+        }
+        listings.remove(documentId);
+        if (!documentId.equals(currentFolder)) {
+            return false;
+        }
+        currentListing = listing;
+        return true;
+    }
+
+    synchronized void remove(String documentId) {
+        listings.remove(documentId);
+        if (documentId.equals(currentFolder)) {
+            currentListing = null;
+        }
+    }
+
+    /**
+     * Removes the listings of the folder and of all folders below it
+     */
+    synchronized void removeTree(String documentId) {
+        List<String> keys = new ArrayList<>(listings.snapshot().keySet());
+        if (currentFolder != null) {
+            keys.add(currentFolder);
+        }
+        for (String key : keys) {
+            if (key.startsWith(documentId)) {
+                remove(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package de.qabel.qabelbox.providers;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ThumbnailUtils;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+/**
+ * Creates small JPEG previews of images and videos
+ */
+class ThumbnailGenerator {
+
+    private static final String TAG = "ThumbnailGenerator";
+    static final int THUMBNAIL_SIZE = 256;
+    private static final int JPEG_QUALITY = 80;
+
+    /**
+     * @return false if create always returns null for files of the type
+     */
+    static boolean supports(String mimeType) {
+        return mimeType != null && (mimeType.startsWith("image/") || mimeType.startsWith("video/"));
+    }
+
+    /**
+     * @return the JPEG encoded thumbnail or null if no thumbnail can be created for the file
+     */
+    static byte[] create(File file, String mimeType) {
+        if (!supports(mimeType)) {
+            return null;
+        }
+        Bitmap bitmap = null;
+        if (mimeType.startsWith("image/")) {
+            bitmap = decodeImage(file);
+        } else if (mimeType.startsWith("video/")) {
+            bitmap = ThumbnailUtils.createVideoThumbnail(file.getAbsolutePath(),
+                    MediaStore.Images.Thumbnails.MINI_KIND);
+        }
+        if (bitmap == null) {
+            return null;
+        }
+        Bitmap thumbnail = ThumbnailUtils.extractThumbnail(bitmap, THUMBNAIL_SIZE, THUMBNAIL_SIZE,
+                ThumbnailUtils.OPTIONS_RECYCLE_INPUT);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        thumbnail.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+        thumbnail.recycle();
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode the image subsampled close to the thumbnail size to keep the memory usage low
+     */
+    private static Bitmap decodeImage(File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            Log.d(TAG, "Not a decodable image: " + file);
+            return null;
+        }
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= THUMBNAIL_SIZE
+                && options.outHeight / (sampleSize * 2) >= THUMBNAIL_SIZE) {
+            sampleSize *= 2;
+        }
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        return BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+    }
+}
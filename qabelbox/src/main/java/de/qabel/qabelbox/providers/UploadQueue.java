@@ -0,0 +1,296 @@
+package de.qabel.qabelbox.providers;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.provider.BaseColumns;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Journal of the uploads written through the BoxProvider
+ *
+ * Every upload is stored with its document id and a copy of the content in the private
+ * upload directory until it is done, so it survives the death of the process. An upload
+ * is journaled as soon as the document is opened for writing and becomes pending when it
+ * is closed. The UploadService takes the pending uploads from the queue, failed uploads
+ * are retried with an exponential backoff.
+ */
+public class UploadQueue extends SQLiteOpenHelper {
+
+    private static final String TAG = "UploadQueue";
+
+    public static final int DATABASE_VERSION = 1;
+    public static final String DATABASE_NAME = "UploadQueue.db";
+    private static final String UPLOAD_DIR = "uploads";
+
+    static final int STATE_PENDING = 0;
+    static final int STATE_RUNNING = 1;
+    static final int STATE_WRITING = 2;
+
+    static final long MIN_BACKOFF = 30 * 1000L;
+    static final long MAX_BACKOFF = 60 * 60 * 1000L;
+    public static final int MAX_ATTEMPTS = 10;
+
+    /**
+     * Uploads larger than this wait for an unmetered network
+     */
+    public static final long LARGE_UPLOAD_SIZE = 10 * 1024 * 1024L;
+
+    static abstract class UploadEntry implements BaseColumns {
+        static final String TABLE_NAME = "uploads";
+        static final String COL_DOCUMENT_ID = "document_id";
+        static final String COL_FILE = "file";
+        static final String COL_SIZE = "size";
+        static final String COL_STATE = "state";
+        static final String COL_ATTEMPTS = "attempts";
+        static final String COL_NEXT_ATTEMPT = "next_attempt";
+    }
+
+    private static final String CREATE_TABLE =
+            "CREATE TABLE IF NOT EXISTS " + UploadEntry.TABLE_NAME + "( " +
+                    UploadEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    UploadEntry.COL_DOCUMENT_ID + " TEXT NOT NULL," +
+                    UploadEntry.COL_FILE + " TEXT NOT NULL," +
+                    UploadEntry.COL_SIZE + " LONG NOT NULL," +
+                    UploadEntry.COL_STATE + " INTEGER NOT NULL," +
+                    UploadEntry.COL_ATTEMPTS + " INTEGER NOT NULL," +
+                    UploadEntry.COL_NEXT_ATTEMPT + " LONG NOT NULL);";
+
+    private static final String[] COLUMNS = {UploadEntry._ID, UploadEntry.COL_DOCUMENT_ID,
+            UploadEntry.COL_FILE, UploadEntry.COL_ATTEMPTS};
+
+    public static class Upload {
+        public final long id;
+        public final String documentId;
+        public final File file;
+        public final int attempts;
+
+        Upload(long id, String documentId, File file, int attempts) {
+            this.id = id;
+            this.documentId = documentId;
+            this.file = file;
+            this.attempts = attempts;
+        }
+    }
+
+    private static UploadQueue instance;
+
+    private final File uploadDir;
+
+    public static synchronized UploadQueue getInstance(Context context) {
+        if (instance == null) {
+            instance = new UploadQueue(context.getApplicationContext());
+            // nothing of this process can be open or running yet
+            instance.recover();
+        }
+        return instance;
+    }
+
+    private UploadQueue(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        uploadDir = new File(context.getFilesDir(), UPLOAD_DIR);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL(CREATE_TABLE);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int from, int to) {
+        sqLiteDatabase.execSQL("DROP TABLE " + UploadEntry.TABLE_NAME + ";");
+        onCreate(sqLiteDatabase);
+    }
+
+    /**
+     * Journals a new upload to the document while its content is written. The file of the
+     * upload is created in the upload directory, which is not cleared by the system unlike
+     * the cache directories.
+     */
+    public synchronized Upload open(String documentId) throws IOException {
+        if (!uploadDir.isDirectory() && !uploadDir.mkdirs()) {
+            throw new IOException("Could not create " + uploadDir);
+        }
+        File file = File.createTempFile("upload", "", uploadDir);
+        ContentValues values = new ContentValues();
+        values.put(UploadEntry.COL_DOCUMENT_ID, documentId);
+        values.put(UploadEntry.COL_FILE, file.getAbsolutePath());
+        values.put(UploadEntry.COL_SIZE, 0L);
+        values.put(UploadEntry.COL_STATE, STATE_WRITING);
+        values.put(UploadEntry.COL_ATTEMPTS, 0);
+        values.put(UploadEntry.COL_NEXT_ATTEMPT, 0L);
+        long id = getWritableDatabase().insert(UploadEntry.TABLE_NAME, null, values);
+        if (id == -1) {
+            file.delete();
+            throw new IOException("Failed journaling upload of " + documentId);
+        }
+        return new Upload(id, documentId, file, 0);
+    }
+
+    /**
+     * Makes the upload pending once its content is written completely
+     */
+    public synchronized void enqueue(Upload upload) {
+        ContentValues values = new ContentValues();
+        values.put(UploadEntry.COL_SIZE, upload.file.length());
+        values.put(UploadEntry.COL_STATE, STATE_PENDING);
+        update(getWritableDatabase(), upload, values);
+    }
+
+    /**
+     * Takes the oldest upload that is due and marks it as running
+     *
+     * @param unmetered false to leave large uploads for an unmetered network
+     * @return the upload or null if no upload is due
+     */
+    public synchronized Upload take(long now, boolean unmetered) {
+        SQLiteDatabase database = getWritableDatabase();
+        Cursor cursor = database.query(UploadEntry.TABLE_NAME, COLUMNS,
+                pendingSelection(unmetered) + " AND " + UploadEntry.COL_NEXT_ATTEMPT + "<=" + now,
+                null, null, null, UploadEntry._ID, "1");
+        Upload upload;
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            upload = new Upload(cursor.getLong(0), cursor.getString(1),
+                    new File(cursor.getString(2)), cursor.getInt(3));
+        } finally {
+            cursor.close();
+        }
+        ContentValues values = new ContentValues();
+        values.put(UploadEntry.COL_STATE, STATE_RUNNING);
+        update(database, upload, values);
+        return upload;
+    }
+
+    /**
+     * Removes the upload and its file
+     */
+    public synchronized void remove(Upload upload) {
+        getWritableDatabase().delete(UploadEntry.TABLE_NAME, UploadEntry._ID + "=" + upload.id, null);
+        if (upload.file.exists() && !upload.file.delete()) {
+            Log.w(TAG, "Could not delete " + upload.file);
+        }
+    }
+
+    /**
+     * Schedules the next attempt of the upload, the delay doubles with every attempt
+     * up to {@link #MAX_BACKOFF}.
+     *
+     * @return the time of the next attempt or -1 if the upload was given up and removed
+     */
+    public synchronized long retry(Upload upload, long now) {
+        int attempts = upload.attempts + 1;
+        if (attempts >= MAX_ATTEMPTS) {
+            Log.e(TAG, "Giving up upload of " + upload.documentId + " after " + attempts + " attempts");
+            remove(upload);
+            return -1;
+        }
+        long nextAttempt = now + backoff(attempts);
+        ContentValues values = new ContentValues();
+        values.put(UploadEntry.COL_STATE, STATE_PENDING);
+        values.put(UploadEntry.COL_ATTEMPTS, attempts);
+        values.put(UploadEntry.COL_NEXT_ATTEMPT, nextAttempt);
+        update(getWritableDatabase(), upload, values);
+        return nextAttempt;
+    }
+
+    static long backoff(int attempts) {
+        return Math.min(MIN_BACKOFF << Math.min(attempts - 1, 20), MAX_BACKOFF);
+    }
+
+    /**
+     * Makes the uploads that were left running pending again. Must not be called while
+     * uploads are running.
+     */
+    public synchronized void resume() {
+        ContentValues values = new ContentValues();
+        values.put(UploadEntry.COL_STATE, STATE_PENDING);
+        int resumed = getWritableDatabase().update(UploadEntry.TABLE_NAME, values,
+                UploadEntry.COL_STATE + "=" + STATE_RUNNING, null);
+        if (resumed > 0) {
+            Log.i(TAG, "Resuming " + resumed + " interrupted uploads");
+        }
+    }
+
+    /**
+     * Cleans up after the previous process, called once before the queue is used. The
+     * interrupted uploads are resumed, the uploads that were still written are dropped
+     * because their content is incomplete, and the files without an upload are deleted.
+     */
+    synchronized void recover() {
+        resume();
+        SQLiteDatabase database = getWritableDatabase();
+        Set<String> queued = new HashSet<>();
+        Cursor cursor = database.query(UploadEntry.TABLE_NAME,
+                new String[]{UploadEntry.COL_FILE, UploadEntry.COL_STATE},
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                if (cursor.getInt(1) != STATE_WRITING) {
+                    queued.add(cursor.getString(0));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        int dropped = database.delete(UploadEntry.TABLE_NAME,
+                UploadEntry.COL_STATE + "=" + STATE_WRITING, null);
+        if (dropped > 0) {
+            Log.w(TAG, "Dropped " + dropped + " uploads that were not written completely");
+        }
+
+        File[] files = uploadDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!queued.contains(file.getAbsolutePath()) && file.delete()) {
+                Log.i(TAG, "Deleted orphaned upload file " + file.getName());
+            }
+        }
+    }
+
+    /**
+     * @return the earliest next attempt of the uploads the network allows, -1 if there is none
+     */
+    public synchronized long nextAttempt(boolean unmetered) {
+        Cursor cursor = getReadableDatabase().query(UploadEntry.TABLE_NAME,
+                new String[]{"MIN(" + UploadEntry.COL_NEXT_ATTEMPT + ")"},
+                pendingSelection(unmetered), null, null, null, null);
+        try {
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the number of uploads that are pending or running
+     */
+    public synchronized long size() {
+        return DatabaseUtils.queryNumEntries(getReadableDatabase(), UploadEntry.TABLE_NAME,
+                UploadEntry.COL_STATE + "!=" + STATE_WRITING);
+    }
+
+    private static String pendingSelection(boolean unmetered) {
+        String selection = UploadEntry.COL_STATE + "=" + STATE_PENDING;
+        if (!unmetered) {
+            selection += " AND " + UploadEntry.COL_SIZE + "<=" + LARGE_UPLOAD_SIZE;
+        }
+        return selection;
+    }
+
+    private static void update(SQLiteDatabase database, Upload upload, ContentValues values) {
+        database.update(UploadEntry.TABLE_NAME, values, UploadEntry._ID + "=" + upload.id, null);
+    }
+}
@@ -0,0 +1,196 @@
+package de.qabel.qabelbox.services;
+
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import de.qabel.core.drop.DropMessage;
+
+/**
+ * Schedules the drop polls of the QabelService.
+ *
+ * Polls run every {@link #MIN_INTERVAL} ms while messages arrive or clients are active.
+ * Every poll without new messages doubles the interval up to {@link #MAX_INTERVAL}.
+ * Clients can request an immediate poll at any time.
+ */
+class DropPollScheduler {
+
+    private static final String TAG = "DropPollScheduler";
+
+    static final long MIN_INTERVAL = 2000L;
+    static final long MAX_INTERVAL = 5 * 60 * 1000L;
+
+    interface Poller {
+        /**
+         * Polls all drops once
+         *
+         * @return number of new messages
+         */
+        int poll() throws Exception;
+    }
+
+    private final Poller poller;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    private long interval = MIN_INTERVAL;
+    private ScheduledFuture<?> next;
+    private boolean polling;
+    private boolean pollRequested;
+
+    private final Runnable pollTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (DropPollScheduler.this) {
+                polling = true;
+                pollRequested = false;
+            }
+            int received = 0;
+            try {
+                received = poller.poll();
+            } catch (Exception e) {
+                Log.w(TAG, "Drop poll failed", e);
+            }
+            synchronized (DropPollScheduler.this) {
+                polling = false;
+                if (received > 0) {
+                    interval = MIN_INTERVAL;
+                } else {
+                    interval = Math.min(interval * 2, MAX_INTERVAL);
+                }
+                schedule(pollRequested ? 0 : interval);
+            }
+        }
+    };
+
+    DropPollScheduler(Poller poller) {
+        this.poller = poller;
+    }
+
+    synchronized void start() {
+        schedule(0);
+    }
+
+    /**
+     * Polls as soon as possible and resets the interval
+     */
+    synchronized void pollNow() {
+        interval = MIN_INTERVAL;
+        if (polling) {
+            pollRequested = true;
+        } else {
+            schedule(0);
+        }
+    }
+
+    /**
+     * Resets the interval after client activity, a reply might be on its way
+     */
+    synchronized void onActivity() {
+        interval = MIN_INTERVAL;
+        if (!polling && next != null && next.getDelay(TimeUnit.MILLISECONDS) > MIN_INTERVAL) {
+            schedule(MIN_INTERVAL);
+        }
+    }
+
+    synchronized long getInterval() {
+        return interval;
+    }
+
+    synchronized void stop() {
+        executor.shutdownNow();
+    }
+
+    private void schedule(long delay) {
+        if (executor.isShutdown()) {
+            return;
+        }
+        if (next != null) {
+            next.cancel(false);
+        }
+        next = executor.schedule(pollTask, delay, TimeUnit.MILLISECONDS);
+    }
+
+    static String key(DropMessage dropMessage) {
+        return dropMessage.getSenderKeyId() + ':' + dropMessage.getCreationDate().getTime()
+                + ':' + dropMessage.getDropPayloadType() + ':' + dropMessage.getDropPayload().hashCode();
+    }
+
+    /**
+     * Message keys of the polled drops
+     *
+     * The keys of a drop are replaced by the keys of its latest response, so the state is
+     * bounded by what the drops hold and old messages are never taken for new ones, no matter
+     * how many messages a drop keeps.
+     */
+    static class DropKeys {
+
+        private final Map<String, Set<String>> drops = new HashMap<>();
+        private final Set<String> delivered = new HashSet<>();
+
+        /**
+         * Replaces the keys of a drop with the keys of its latest response
+         *
+         * An empty response can also be a failed request, the previous keys are kept then.
+         *
+         * @return the keys that were not in the previous response of the drop
+         */
+        synchronized Set<String> update(String drop, Collection<String> keys) {
+            Set<String> latest = new HashSet<>(keys);
+            if (latest.isEmpty()) {
+                return latest;
+            }
+            Set<String> previous = drops.put(drop, latest);
+            Set<String> added = new HashSet<>(latest);
+            if (previous != null) {
+                added.removeAll(previous);
+                previous.removeAll(latest);
+                for (String key : previous) {
+                    if (!contains(key)) {
+                        delivered.remove(key);
+                    }
+                }
+            }
+            return added;
+        }
+
+        /**
+         * Forgets the drops that are not polled anymore
+         */
+        synchronized void retainDrops(Collection<String> polled) {
+            drops.keySet().retainAll(polled);
+            Iterator<String> iterator = delivered.iterator();
+            while (iterator.hasNext()) {
+                if (!contains(iterator.next())) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        /**
+         * Marks a message as delivered, the mark is dropped with the message
+         *
+         * @return true if the message was not delivered before
+         */
+        synchronized boolean deliver(String key) {
+            return delivered.add(key);
+        }
+
+        private boolean contains(String key) {
+            for (Set<String> keys : drops.values()) {
+                if (keys.contains(key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
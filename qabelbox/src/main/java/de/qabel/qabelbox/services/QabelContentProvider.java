@@ -1,6 +1,7 @@
 package de.qabel.qabelbox.services;
 
 import android.content.BroadcastReceiver;
+import android.content.ContentResolver;
 import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.content.Context;
@@ -11,45 +12,48 @@ import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
 import android.support.v4.content.LocalBroadcastManager;
+import android.util.Log;
 
-import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 
 import de.qabel.QabelContentProviderConstants;
-import de.qabel.ackack.MessageInfo;
-import de.qabel.ackack.Responsible;
-import de.qabel.ackack.event.EventActor;
-import de.qabel.ackack.event.EventListener;
-import de.qabel.core.EventNameConstants;
 import de.qabel.core.config.Contact;
-import de.qabel.core.config.Contacts;
-import de.qabel.core.config.Identities;
 import de.qabel.core.config.Identity;
-import de.qabel.core.config.ResourceActor;
 import de.qabel.qabelbox.QabelBoxApplication;
 
 /**
  * QabelResourceProvider provides access to Qabel resources like Contacts and Identities for
  * Qabel client applications.
  *
- * QabelResourceProvider hosts the ResourceActorThread and requires the database to be unlocked.
+ * QabelResourceProvider reads the resources from the shared ResourceRegistry which requires the
+ * database to be unlocked.
  * Thus before IQabelServiceInternal.RESOURCES_INITIALIZED is received, the provider will only
  * return null values.
  */
 public class QabelContentProvider extends ContentProvider {
 
+    private static final String TAG = "QabelContentProvider";
     private static final UriMatcher uriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
     private static final int CONTACTS = 1;
     private static final int IDENTITIES = 2;
 
-    private final Contacts contacts;
-    private final Identities identities;
-    private ResourceActor resourceActor;
-    private ProviderActor providerActor;
-    private Thread providerActorThread;
-    private boolean resourcesReady;
+    private static final Uri CONTACTS_URI = new Uri.Builder()
+            .scheme(ContentResolver.SCHEME_CONTENT)
+            .authority(QabelContentProviderConstants.CONTENT_AUTHORITY)
+            .appendPath(QabelContentProviderConstants.CONTENT_CONTACTS)
+            .build();
+    private static final Uri IDENTITIES_URI = new Uri.Builder()
+            .scheme(ContentResolver.SCHEME_CONTENT)
+            .authority(QabelContentProviderConstants.CONTENT_AUTHORITY)
+            .appendPath(QabelContentProviderConstants.CONTENT_IDENTITIES)
+            .build();
+
+    private final SortedRows contacts;
+    private final SortedRows identities;
+    private volatile boolean resourcesReady;
 
     static {
         uriMatcher.addURI(QabelContentProviderConstants.CONTENT_AUTHORITY, QabelContentProviderConstants.CONTENT_CONTACTS, CONTACTS);
@@ -57,55 +61,37 @@ public class QabelContentProvider extends ContentProvider {
     }
 
     public QabelContentProvider() {
-        contacts = new Contacts();
-        identities = new Identities();
+        contacts = new SortedRows(2);
+        identities = new SortedRows(1);
     }
 
-    /**
-     * Loads qabel resources from ResourceActor
-     */
-    class ProviderActor extends EventActor implements EventListener {
-        public ProviderActor() {
-            on(EventNameConstants.EVENT_CONTACT_ADDED, this);
-            on(EventNameConstants.EVENT_IDENTITY_ADDED, this);
-
-            resourceActor.retrieveContacts(this, new Responsible() {
-                @Override
-                public void onResponse(Serializable... data) {
-                    for (Contact c : (Contact[]) data) {
-                        contacts.put(c);
-                    }
-                }
-            });
-
-            resourceActor.retrieveIdentities(this, new Responsible() {
-                @Override
-                public void onResponse(Serializable... data) {
-                    for (Identity identity : (Identity[]) data) {
-                        identities.put(identity);
-                    }
-                }
-            });
+    private final ResourceRegistry.Listener registryListener = new ResourceRegistry.Listener() {
+        @Override
+        public void onContactsChanged(Collection<Contact> changed) {
+            if (changed.isEmpty()) {
+                return;
+            }
+            List<String[]> rows = new ArrayList<>(changed.size());
+            for (Contact contact : changed) {
+                rows.add(toRow(contact));
+            }
+            contacts.putAll(rows);
+            notifyChange(CONTACTS_URI);
         }
 
         @Override
-        public void onEvent(String event, MessageInfo info, Object... data) {
-            switch (event) {
-                case EventNameConstants.EVENT_CONTACT_ADDED:
-                    if (data[0] instanceof Contact) {
-                        contacts.put((Contact) data[0]);
-                    }
-                    break;
-                case EventNameConstants.EVENT_IDENTITY_ADDED:
-                    if (data[0] instanceof Identity) {
-                        identities.put((Identity) data[0]);
-                    }
-                    break;
-                default:
-                    break;
+        public void onIdentitiesChanged(Collection<Identity> changed) {
+            if (changed.isEmpty()) {
+                return;
+            }
+            List<String[]> rows = new ArrayList<>(changed.size());
+            for (Identity identity : changed) {
+                rows.add(toRow(identity));
             }
+            identities.putAll(rows);
+            notifyChange(IDENTITIES_URI);
         }
-    }
+    };
 
     /**
      * Starts initialization of QabelResourceProvider resources when global resources are ready
@@ -113,11 +99,9 @@ public class QabelContentProvider extends ContentProvider {
     class ResourceReadyReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
-            resourceActor = QabelBoxApplication.getResourceActor();
-
-            providerActor = new ProviderActor();
-            providerActorThread = new Thread(providerActor, "ProviderActorThread");
-            providerActorThread.start();
+            ResourceRegistry registry = ResourceRegistry.getInstance();
+            registry.start(QabelBoxApplication.getResourceActor());
+            registry.addListener(registryListener);
 
             resourcesReady = true;
         }
@@ -130,43 +114,97 @@ public class QabelContentProvider extends ContentProvider {
         return true;
     }
 
-    private Cursor queryContacts() {
-        MatrixCursor cursor = new MatrixCursor(QabelContentProviderConstants.CONTACT_COLUMN_NAMES);
+    private static String[] toRow(Contact contact) {
+        return new String[]{contact.getAlias(), contact.getContactOwnerKeyId(),
+                contact.getKeyIdentifier()};
+    }
 
-        ArrayList<Contact> returnedContactList = new ArrayList<>(contacts.getContacts());
-        Collections.sort(returnedContactList, new Comparator<Contact>() {
-            @Override
-            public int compare(Contact lhs, Contact rhs) {
-                return lhs.getAlias().compareTo(rhs.getAlias());
-            }
-        });
+    private static String[] toRow(Identity identity) {
+        return new String[]{identity.getAlias(), identity.getKeyIdentifier()};
+    }
 
-        for (Contact contact : returnedContactList) {
-            String[] values = new String[]{contact.getAlias(), contact.getContactOwnerKeyId(),
-                    contact.getKeyIdentifier()};
-            cursor.addRow(values);
-        }
-        return cursor;
+    private void notifyChange(Uri uri) {
+        getContext().getContentResolver().notifyChange(uri, null);
     }
 
-    private Cursor queryIdentities() {
-        MatrixCursor cursor = new MatrixCursor(QabelContentProviderConstants.IDENTITIES_COLUMN_NAMES);
+    /**
+     * Builds the cursor from the sorted snapshot. Supports the selections and sort orders
+     * defined in QabelContentProviderConstants and paging with the limit and offset
+     * query parameters.
+     *
+     * Clients of older or newer versions may ask for more, so unknown columns are left out,
+     * unknown selections select all rows and unknown sort orders sort by name.
+     */
+    private Cursor queryRows(Uri uri, Uri notificationUri, SortedRows sortedRows, String[] columns,
+                             String[] projection, String selection, String[] selectionArgs,
+                             String sortOrder) {
+        if (projection == null) {
+            projection = columns;
+        }
+        List<String> knownColumns = new ArrayList<>();
+        List<Integer> columnIndexes = new ArrayList<>();
+        for (String column : projection) {
+            int index = Arrays.asList(columns).indexOf(column);
+            if (index < 0) {
+                Log.w(TAG, "Ignoring unknown column " + column);
+                continue;
+            }
+            knownColumns.add(column);
+            columnIndexes.add(index);
+        }
 
-        ArrayList<Identity> returnedIdentityList = new ArrayList<>(identities.getIdentities());
-        Collections.sort(returnedIdentityList, new Comparator<Identity>() {
-            @Override
-            public int compare(Identity lhs, Identity rhs) {
-                return lhs.getAlias().compareTo(rhs.getAlias());
+        List<String[]> rows;
+        String arg = selectionArgs != null && selectionArgs.length == 1 ? selectionArgs[0] : null;
+        if (QabelContentProviderConstants.SELECTION_ID.equals(selection) && arg != null) {
+            rows = sortedRows.selectById(arg);
+        } else if (QabelContentProviderConstants.SELECTION_NAME_PREFIX.equals(selection) && arg != null) {
+            String prefix = arg.endsWith("%") ? arg.substring(0, arg.length() - 1) : arg;
+            rows = sortedRows.selectByNamePrefix(prefix);
+        } else {
+            if (selection != null) {
+                Log.w(TAG, "Ignoring unsupported selection " + selection);
             }
-        });
+            rows = sortedRows.get();
+        }
 
-        for (Identity identity : returnedIdentityList) {
-            String[] values = new String[]{identity.getAlias(), identity.getKeyIdentifier()};
+        boolean descending = QabelContentProviderConstants.SORT_NAME_DESC.equals(sortOrder);
+        if (sortOrder != null && !descending
+                && !QabelContentProviderConstants.SORT_NAME_ASC.equals(sortOrder)) {
+            Log.w(TAG, "Sorting by name instead of unsupported sort order " + sortOrder);
+        }
+
+        int offset = Math.min(queryParameter(uri, QabelContentProviderConstants.QUERY_PARAMETER_OFFSET, 0),
+                rows.size());
+        int limit = queryParameter(uri, QabelContentProviderConstants.QUERY_PARAMETER_LIMIT, rows.size());
+        // offset + limit overflows for large limits
+        int end = limit > rows.size() - offset ? rows.size() : offset + limit;
+
+        MatrixCursor cursor = new MatrixCursor(
+                knownColumns.toArray(new String[knownColumns.size()]), end - offset);
+        for (int i = offset; i < end; i++) {
+            String[] row = rows.get(descending ? rows.size() - 1 - i : i);
+            String[] values = new String[columnIndexes.size()];
+            for (int column = 0; column < values.length; column++) {
+                values[column] = row[columnIndexes.get(column)];
+            }
             cursor.addRow(values);
         }
+        cursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
         return cursor;
     }
 
+    private static int queryParameter(Uri uri, String name, int defaultValue) {
+        String value = uri.getQueryParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
         if (!resourcesReady) {
@@ -174,10 +212,14 @@ public class QabelContentProvider extends ContentProvider {
         }
         switch (uriMatcher.match(uri)) {
             case CONTACTS: {
-                return queryContacts();
+                return queryRows(uri, CONTACTS_URI, contacts,
+                        QabelContentProviderConstants.CONTACT_COLUMN_NAMES,
+                        projection, selection, selectionArgs, sortOrder);
             }
             case IDENTITIES: {
-                return queryIdentities();
+                return queryRows(uri, IDENTITIES_URI, identities,
+                        QabelContentProviderConstants.IDENTITIES_COLUMN_NAMES,
+                        projection, selection, selectionArgs, sortOrder);
             }
             default:
         }
@@ -8,33 +8,34 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
-import android.os.RemoteException;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
-import java.io.Serializable;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 import de.qabel.ServiceConstants;
-import de.qabel.ackack.MessageInfo;
-import de.qabel.ackack.Responsible;
-import de.qabel.ackack.event.EventActor;
 import de.qabel.ackack.event.EventEmitter;
-import de.qabel.ackack.event.EventListener;
-import de.qabel.core.EventNameConstants;
 import de.qabel.core.config.Contact;
 import de.qabel.core.config.Identity;
-import de.qabel.core.config.ResourceActor;
 import de.qabel.core.drop.DropActor;
 import de.qabel.core.drop.DropMessage;
+import de.qabel.core.drop.DropURL;
 import de.qabel.core.module.ModuleManager;
 import de.qabel.qabelbox.QabelBoxApplication;
 import de.qabel.qabelbox.R;
@@ -44,7 +45,8 @@ import de.qabel.qabelbox.R;
  * DropMessages. DropMessages are send and received from other applications via a Messenger.
  * Clients can register to receive certain DropMessages by sending a
  * {@link ServiceConstants.MSG_REGISTER_ON_TYPE} Message with the replyTo field pointing to an
- * incoming Messenger of the client.
+ * incoming Messenger of the client. Several clients can register on the same type, clients
+ * that set {@link ServiceConstants#DROP_BATCH_SIZE} receive the messages in batches.
  *
  * The service is started when a client binds to the service and stopped when the last client
  * unbinds.
@@ -53,127 +55,203 @@ public class QabelService extends Service {
 
     private static final int SERVICE_NOTIFICATION_ID = 1;
     private static final String LOG_TAG_QABEL_SERVICE = "Qabel-Service";
-    private static final long DEFAULT_DROP_POLL_INTERVAL = 5000L;
+    /**
+     * The receiver thread of the DropActor only does its initial retrieve,
+     * all further polls are scheduled by the DropPollScheduler.
+     */
+    private static final long DROP_ACTOR_POLL_INTERVAL = Long.MAX_VALUE;
 
     private final IncomingHandlerThread incomingHandlerThread = new IncomingHandlerThread();
-    private final HashMap<String, Messenger> clientMessenger = new HashMap<>();
+    private final HandlerThread deliveryThread = new HandlerThread("DropDeliveryThread");
+    private SubscriptionRegistry subscriptions;
     private final EventEmitter emitter = EventEmitter.getDefault();
 
     private DropActor dropActor;
+    private DropPollScheduler dropPollScheduler;
+    private final DropPollScheduler.DropKeys dropKeys = new DropPollScheduler.DropKeys();
     private ReceiverModule receiverModule;
 
     private ModuleManager moduleManager;
     private NotificationManager mNotificationManager;
-    private ResourceActor resourceActor;
-    private HashMap<String, Identity> identities;
-    private HashMap<String, Contact> contacts;
-    private Thread providerActorThread;
+    private ResourceRegistry resourceRegistry;
 
     class IncomingHandlerThread extends Thread {
 
+        private final CountDownLatch messengerReady = new CountDownLatch(1);
         private Messenger mMessenger;
+        private IncomingHandler mHandler;
 
+        /**
+         * Blocks until the looper of the thread is running
+         */
         public Messenger getmMessenger() {
+            try {
+                messengerReady.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
             return mMessenger;
         }
 
-        @Override
-        public void run() {
-            Looper.prepare();
-
-            mMessenger = new Messenger(new Handler() {
-
+        /**
+         * Processes the queued messages in order and all further messages directly
+         */
+        void onResourcesReady() {
+            getmMessenger();
+            mHandler.post(new Runnable() {
                 @Override
-                public void handleMessage(Message msg) {
-                    // Wait with message processing until resources are initialized
-                    // TODO: Find better solution
-                    while (receiverModule == null) {
-                        try {
-                            Thread.sleep(100L);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
-                    }
-
-                    switch (msg.what) {
-                        case ServiceConstants.MSG_REGISTER_ON_TYPE:
-                            String dropMessageType = msg.getData().getString(ServiceConstants.DROP_MESSAGE_TYPE);
-                            if (dropMessageType != null) {
-                                receiverModule.registerEvent(dropMessageType);
-                                clientMessenger.put(dropMessageType, msg.replyTo);
-                            }
-                            break;
-                        case ServiceConstants.MSG_DROP_MESSAGE:
-                            String dropPayloadType = msg.getData().getString(ServiceConstants.DROP_PAYLOAD_TYPE);
-                            String dropPayload = msg.getData().getString(ServiceConstants.DROP_PAYLOAD);
-                            String dropRecipientId = msg.getData().getString(ServiceConstants.DROP_RECIPIENT_ID);
-                            String dropSenderId = msg.getData().getString(ServiceConstants.DROP_SENDER_ID);
-
-                            Identity sender = identities.get(dropSenderId);
-                            Contact recipient = contacts.get(dropRecipientId);
-
-                            if (sender != null && recipient != null) {
-                                DropMessage dropMessage = new DropMessage(sender, dropPayload, dropPayloadType);
-                                Log.i(LOG_TAG_QABEL_SERVICE, "Sending received DropMessage");
-                                DropActor.send(EventEmitter.getDefault(), dropMessage, recipient);
-                            }
-                            break;
-                        default:
-                            super.handleMessage(msg);
-                    }
+                public void run() {
+                    mHandler.drainPendingMessages();
                 }
             });
+        }
+
+        @Override
+        public void run() {
+            Looper.prepare();
+            mHandler = new IncomingHandler();
+            mMessenger = new Messenger(mHandler);
+            messengerReady.countDown();
             Looper.loop();
         }
     }
 
     /**
-     * Loads qabel resources from ResourceActor
+     * Handles the client messages. Until the service resources are initialized messages are
+     * queued, only accessed from the IncomingHandlerThread.
      */
-    class ProviderActor extends EventActor implements EventListener {
-        public ProviderActor() {
-            on(EventNameConstants.EVENT_CONTACT_ADDED, this);
-            on(EventNameConstants.EVENT_IDENTITY_ADDED, this);
+    class IncomingHandler extends Handler {
 
-            resourceActor.retrieveContacts(this, new Responsible() {
-                @Override
-                public void onResponse(Serializable... data) {
-                    ArrayList<Contact> receivedContacts = new ArrayList<>(Arrays.asList((Contact[]) data));
-                    for (Contact c : receivedContacts) {
-                        contacts.put(c.getKeyIdentifier(), c);
-                    }
-                }
-            });
+        private final List<Message> pendingMessages = new ArrayList<>();
+        private boolean resourcesReady;
 
-            resourceActor.retrieveIdentities(this, new Responsible() {
-                @Override
-                public void onResponse(Serializable... data) {
-                    for (Identity identity : (Identity[]) data) {
-                      identities.put(identity.getKeyIdentifier(), identity);
-                    }
-                }
-            });
+        @Override
+        public void handleMessage(Message msg) {
+            if (!resourcesReady) {
+                pendingMessages.add(Message.obtain(msg));
+                return;
+            }
+            dispatch(msg);
         }
 
-        @Override
-        public void onEvent(String event, MessageInfo info, Object... data) {
-            switch (event) {
-                case EventNameConstants.EVENT_CONTACT_ADDED:
-                    if (data[0] instanceof Contact) {
-                        Contact c = (Contact) data[0];
-                        contacts.put(c.getKeyIdentifier(), c);
+        void drainPendingMessages() {
+            resourcesReady = true;
+            if (!pendingMessages.isEmpty()) {
+                Log.i(LOG_TAG_QABEL_SERVICE, "Processing " + pendingMessages.size() + " queued messages");
+            }
+            for (Message msg : pendingMessages) {
+                dispatch(msg);
+                msg.recycle();
+            }
+            pendingMessages.clear();
+        }
+
+        private void dispatch(Message msg) {
+            switch (msg.what) {
+                case ServiceConstants.MSG_REGISTER_ON_TYPE:
+                    String dropMessageType = msg.getData().getString(ServiceConstants.DROP_MESSAGE_TYPE);
+                    int batchSize = msg.getData().getInt(ServiceConstants.DROP_BATCH_SIZE, 1);
+                    if (dropMessageType != null && msg.replyTo != null
+                            && subscriptions.subscribe(dropMessageType, msg.replyTo, batchSize)) {
+                        receiverModule.registerEvent(dropMessageType);
                     }
+                    dropPollScheduler.onActivity();
                     break;
-                case EventNameConstants.EVENT_IDENTITY_ADDED:
-                    if (data[0] instanceof Identity) {
-                        Identity i = (Identity) data[0];
-                        identities.put(i.getKeyIdentifier(), i);
+                case ServiceConstants.MSG_UNREGISTER_ON_TYPE:
+                    String unregisterType = msg.getData().getString(ServiceConstants.DROP_MESSAGE_TYPE);
+                    if (unregisterType != null && msg.replyTo != null) {
+                        subscriptions.unsubscribe(unregisterType, msg.replyTo);
                     }
                     break;
-                default:
+                case ServiceConstants.MSG_POLL_DROPS:
+                    dropPollScheduler.pollNow();
+                    break;
+                case ServiceConstants.MSG_DROP_MESSAGE:
+                    String dropPayloadType = msg.getData().getString(ServiceConstants.DROP_PAYLOAD_TYPE);
+                    String dropPayload = msg.getData().getString(ServiceConstants.DROP_PAYLOAD);
+                    String dropRecipientId = msg.getData().getString(ServiceConstants.DROP_RECIPIENT_ID);
+                    String dropSenderId = msg.getData().getString(ServiceConstants.DROP_SENDER_ID);
+
+                    Identity sender = resourceRegistry.getIdentity(dropSenderId);
+                    Contact recipient = resourceRegistry.getContact(dropRecipientId);
+
+                    if (sender != null && recipient != null) {
+                        DropMessage dropMessage = new DropMessage(sender, dropPayload, dropPayloadType);
+                        Log.i(LOG_TAG_QABEL_SERVICE, "Sending received DropMessage");
+                        DropActor.send(EventEmitter.getDefault(), dropMessage, recipient);
+                    }
+                    dropPollScheduler.onActivity();
                     break;
+                case ServiceConstants.MSG_DROP_MESSAGE_BATCH:
+                    ArrayList<Bundle> batch = msg.getData().getParcelableArrayList(ServiceConstants.DROP_MESSAGES);
+                    if (batch != null) {
+                        sendDropMessages(batch);
+                    }
+                    dropPollScheduler.onActivity();
+                    break;
+                default:
+                    Log.w(LOG_TAG_QABEL_SERVICE, "Unknown message " + msg.what);
+            }
+        }
+    }
+
+    /**
+     * Sends a batch of DropMessages. Entries with the same sender, type and payload are sent as
+     * one DropMessage to all of their recipients, which are ordered by drop server so that
+     * consecutive uploads go to the same host.
+     */
+    private void sendDropMessages(List<Bundle> batch) {
+        Map<List<String>, ArrayList<Contact>> groups = new LinkedHashMap<>();
+        for (Bundle bundle : batch) {
+            List<String> key = Arrays.asList(
+                    bundle.getString(ServiceConstants.DROP_SENDER_ID),
+                    bundle.getString(ServiceConstants.DROP_PAYLOAD_TYPE),
+                    bundle.getString(ServiceConstants.DROP_PAYLOAD));
+            ArrayList<String> recipientIds = bundle.getStringArrayList(ServiceConstants.DROP_RECIPIENT_IDS);
+            if (recipientIds == null) {
+                recipientIds = new ArrayList<>();
+                recipientIds.add(bundle.getString(ServiceConstants.DROP_RECIPIENT_ID));
+            }
+            ArrayList<Contact> recipients = groups.get(key);
+            if (recipients == null) {
+                recipients = new ArrayList<>();
+                groups.put(key, recipients);
+            }
+            for (String recipientId : recipientIds) {
+                Contact recipient = resourceRegistry.getContact(recipientId);
+                if (recipient != null && !recipients.contains(recipient)) {
+                    recipients.add(recipient);
+                }
+            }
+        }
+        for (Map.Entry<List<String>, ArrayList<Contact>> group : groups.entrySet()) {
+            Identity sender = resourceRegistry.getIdentity(group.getKey().get(0));
+            ArrayList<Contact> recipients = group.getValue();
+            if (sender == null || recipients.isEmpty()) {
+                Log.w(LOG_TAG_QABEL_SERVICE, "Dropping DropMessage with unknown sender or recipients");
+                continue;
+            }
+            Collections.sort(recipients, new Comparator<Contact>() {
+                @Override
+                public int compare(Contact lhs, Contact rhs) {
+                    return dropHost(lhs).compareTo(dropHost(rhs));
+                }
+            });
+            DropMessage dropMessage = new DropMessage(sender, group.getKey().get(2), group.getKey().get(1));
+            Log.i(LOG_TAG_QABEL_SERVICE, "Sending DropMessage to " + recipients.size() + " recipients");
+            DropActor.send(emitter, dropMessage, recipients);
+        }
+    }
+
+    private static String dropHost(Contact contact) {
+        String host = null;
+        for (DropURL dropURL : contact.getDropUrls()) {
+            String candidate = dropURL.getUri().getHost();
+            if (candidate != null && (host == null || candidate.compareTo(host) < 0)) {
+                host = candidate;
             }
         }
+        return host != null ? host : "";
     }
 
     /**
@@ -191,9 +269,10 @@ public class QabelService extends Service {
         super.onCreate();
 
         incomingHandlerThread.start();
+        deliveryThread.start();
+        subscriptions = new SubscriptionRegistry(deliveryThread.getLooper());
 
-        contacts = new HashMap<>();
-        identities = new HashMap<>();
+        resourceRegistry = ResourceRegistry.getInstance();
 
         mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
 
@@ -209,11 +288,15 @@ public class QabelService extends Service {
             LocalBroadcastManager.getInstance(this).registerReceiver(new ResourceReadyReceiver(),
                     new IntentFilter(QabelBoxApplication.RESOURCES_INITIALIZED));
         }
+        QabelBoxApplication.logStartupStage("QabelService created");
     }
 
     @Override
     public IBinder onBind(Intent intent) {
         Log.i(LOG_TAG_QABEL_SERVICE, "Client bound");
+        if (dropPollScheduler != null) {
+            dropPollScheduler.pollNow();
+        }
         return incomingHandlerThread.getmMessenger().getBinder();
     }
 
@@ -221,12 +304,17 @@ public class QabelService extends Service {
     public void onDestroy() {
         super.onDestroy();
 
+        if (dropPollScheduler != null) {
+            dropPollScheduler.stop();
+        }
         if (dropActor != null) {
             dropActor.stop();
         }
         if (moduleManager != null) {
             moduleManager.shutdown();
         }
+        subscriptions.clear();
+        deliveryThread.quit();
 
         mNotificationManager.cancel(SERVICE_NOTIFICATION_ID);
     }
@@ -244,33 +332,29 @@ public class QabelService extends Service {
      */
     private void initServiceResources() {
         Log.i(LOG_TAG_QABEL_SERVICE, "Init resources");
-        resourceActor = QabelBoxApplication.getResourceActor();
-        providerActorThread = new Thread(new ProviderActor());
-        providerActorThread.start();
+        resourceRegistry.start(QabelBoxApplication.getResourceActor());
         dropActor = new DropActor(QabelBoxApplication.getResourceActor(), emitter);
-        dropActor.setInterval(DEFAULT_DROP_POLL_INTERVAL);
+        dropActor.setInterval(DROP_ACTOR_POLL_INTERVAL);
         Thread dropActorThread = new Thread(dropActor, "DropActorThread");
         dropActorThread.start();
+        dropPollScheduler = new DropPollScheduler(new DropPollScheduler.Poller() {
+            @Override
+            public int poll() {
+                return pollDrops();
+            }
+        });
         moduleManager = new ModuleManager(emitter, QabelBoxApplication.getResourceActor());
         try {
             receiverModule = moduleManager.startModule(ReceiverModule.class);
             receiverModule.setMessageReceivedInterface(new ReceiverModule.MessageReceivedInterface() {
                 @Override
                 public void onMessageReceived(DropMessage dropMessage) {
-                    Messenger msgr = clientMessenger.get(dropMessage.getDropPayloadType());
-                    if (msgr != null) {
+                    if (!dropKeys.deliver(DropPollScheduler.key(dropMessage))) {
+                        // already delivered by an earlier poll
+                        return;
+                    }
+                    if (subscriptions.deliver(dropMessage)) {
                         Log.i(LOG_TAG_QABEL_SERVICE, "Delivering received DropMessage");
-                        Message msg = Message.obtain(null, ServiceConstants.MSG_DROP_MESSAGE);
-                        Bundle bundle = new Bundle();
-                        bundle.putString(ServiceConstants.DROP_SENDER_ID, dropMessage.getSenderKeyId());
-                        bundle.putString(ServiceConstants.DROP_PAYLOAD_TYPE, dropMessage.getDropPayloadType());
-                        bundle.putString(ServiceConstants.DROP_PAYLOAD, dropMessage.getDropPayload());
-                        msg.setData(bundle);
-                        try {
-                            msgr.send(msg);
-                        } catch (RemoteException e) {
-                            e.printStackTrace();
-                        }
                     }
                 }
             });
@@ -284,9 +368,49 @@ public class QabelService extends Service {
             e.printStackTrace();
         }
 
+        dropPollScheduler.start();
+        if (receiverModule != null) {
+            incomingHandlerThread.onResourcesReady();
+        } else {
+            Log.e(LOG_TAG_QABEL_SERVICE, "ReceiverModule not started, client messages stay queued");
+        }
+
         setNotification("Qabel Service running");
     }
 
+    /**
+     * Retrieves the drops of all identities and emits the messages that were not seen before
+     *
+     * @return number of new messages
+     */
+    private int pollDrops() {
+        int received = 0;
+        Set<String> polled = new HashSet<>();
+        for (Identity identity : resourceRegistry.getIdentities()) {
+            for (DropURL dropURL : identity.getDropUrls()) {
+                String drop = dropURL.getUri().toString();
+                if (!polled.add(drop)) {
+                    continue;
+                }
+                Map<String, DropMessage> messages = new LinkedHashMap<>();
+                for (DropMessage dropMessage : dropActor.retrieve(dropURL.getUri())) {
+                    messages.put(DropPollScheduler.key(dropMessage), dropMessage);
+                }
+                for (String key : dropKeys.update(drop, messages.keySet())) {
+                    DropMessage dropMessage = messages.get(key);
+                    received++;
+                    emitter.emit(DropActor.EVENT_DROP_MESSAGE_RECEIVED_PREFIX
+                            + dropMessage.getDropPayloadType(), dropMessage);
+                }
+            }
+        }
+        dropKeys.retainDrops(polled);
+        if (received > 0) {
+            Log.i(LOG_TAG_QABEL_SERVICE, "Received " + received + " new DropMessages");
+        }
+        return received;
+    }
+
     private void setNotification(String text) {
         NotificationCompat.Builder mBuilder =
                 new NotificationCompat.Builder(this)
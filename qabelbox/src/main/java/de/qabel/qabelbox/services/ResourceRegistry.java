@@ -0,0 +1,152 @@
+package de.qabel.qabelbox.services;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import de.qabel.ackack.MessageInfo;
+import de.qabel.ackack.Responsible;
+import de.qabel.ackack.event.EventActor;
+import de.qabel.ackack.event.EventListener;
+import de.qabel.core.EventNameConstants;
+import de.qabel.core.config.Contact;
+import de.qabel.core.config.Identity;
+import de.qabel.core.config.ResourceActor;
+
+/**
+ * Process wide registry of the contacts and identities, shared by the QabelService and
+ * the QabelContentProvider.
+ *
+ * The entities are loaded once from the ResourceActor and kept up to date from the
+ * ADDED events. Lookups by key identifier are concurrent map reads, iteration works
+ * on snapshots. Updates and the registration of listeners are serialized, so a new
+ * listener misses no update and never gets a snapshot older than an update.
+ */
+class ResourceRegistry {
+
+    interface Listener {
+        void onContactsChanged(Collection<Contact> changed);
+
+        void onIdentitiesChanged(Collection<Identity> changed);
+    }
+
+    private static ResourceRegistry instance;
+
+    private final Map<String, Contact> contacts = new ConcurrentHashMap<>();
+    private final Map<String, Identity> identities = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private Thread providerActorThread;
+
+    static synchronized ResourceRegistry getInstance() {
+        if (instance == null) {
+            instance = new ResourceRegistry();
+        }
+        return instance;
+    }
+
+    /**
+     * Loads qabel resources from ResourceActor
+     */
+    class ProviderActor extends EventActor implements EventListener {
+        public ProviderActor(ResourceActor resourceActor) {
+            on(EventNameConstants.EVENT_CONTACT_ADDED, this);
+            on(EventNameConstants.EVENT_IDENTITY_ADDED, this);
+
+            resourceActor.retrieveContacts(this, new Responsible() {
+                @Override
+                public void onResponse(Serializable... data) {
+                    putContacts(Arrays.asList((Contact[]) data));
+                }
+            });
+
+            resourceActor.retrieveIdentities(this, new Responsible() {
+                @Override
+                public void onResponse(Serializable... data) {
+                    putIdentities(Arrays.asList((Identity[]) data));
+                }
+            });
+        }
+
+        @Override
+        public void onEvent(String event, MessageInfo info, Object... data) {
+            switch (event) {
+                case EventNameConstants.EVENT_CONTACT_ADDED:
+                    if (data[0] instanceof Contact) {
+                        putContacts(Collections.singletonList((Contact) data[0]));
+                    }
+                    break;
+                case EventNameConstants.EVENT_IDENTITY_ADDED:
+                    if (data[0] instanceof Identity) {
+                        putIdentities(Collections.singletonList((Identity) data[0]));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Starts loading the resources, further calls have no effect
+     */
+    synchronized void start(ResourceActor resourceActor) {
+        if (providerActorThread != null) {
+            return;
+        }
+        providerActorThread = new Thread(new ProviderActor(resourceActor), "ProviderActorThread");
+        providerActorThread.start();
+    }
+
+    /**
+     * Adds the listener and reports the already loaded entities to it
+     */
+    synchronized void addListener(Listener listener) {
+        listener.onContactsChanged(getContacts());
+        listener.onIdentitiesChanged(getIdentities());
+        listeners.add(listener);
+    }
+
+    void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    Contact getContact(String keyIdentifier) {
+        return keyIdentifier != null ? contacts.get(keyIdentifier) : null;
+    }
+
+    Identity getIdentity(String keyIdentifier) {
+        return keyIdentifier != null ? identities.get(keyIdentifier) : null;
+    }
+
+    List<Contact> getContacts() {
+        return new ArrayList<>(contacts.values());
+    }
+
+    List<Identity> getIdentities() {
+        return new ArrayList<>(identities.values());
+    }
+
+    synchronized void putContacts(Collection<Contact> changed) {
+        for (Contact contact : changed) {
+            contacts.put(contact.getKeyIdentifier(), contact);
+        }
+        for (Listener listener : listeners) {
+            listener.onContactsChanged(changed);
+        }
+    }
+
+    synchronized void putIdentities(Collection<Identity> changed) {
+        for (Identity identity : changed) {
+            identities.put(identity.getKeyIdentifier(), identity);
+        }
+        for (Listener listener : listeners) {
+            listener.onIdentitiesChanged(changed);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package de.qabel.qabelbox.services;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copy-on-write snapshot of cursor rows sorted by their name column.
+ *
+ * Readers get an immutable list without locking, updates copy the list and
+ * insert at the sorted position.
+ */
+class SortedRows {
+
+    static final int NAME_COLUMN = 0;
+
+    private final int idColumn;
+    private final Comparator<String[]> comparator = new Comparator<String[]>() {
+        @Override
+        public int compare(String[] lhs, String[] rhs) {
+            int result = name(lhs).compareTo(name(rhs));
+            if (result != 0) {
+                return result;
+            }
+            return id(lhs).compareTo(id(rhs));
+        }
+    };
+
+    private volatile List<String[]> rows = Collections.emptyList();
+
+    SortedRows(int idColumn) {
+        this.idColumn = idColumn;
+    }
+
+    List<String[]> get() {
+        return rows;
+    }
+
+    /**
+     * Adds the row or replaces the row with the same id
+     */
+    synchronized void put(String[] row) {
+        ArrayList<String[]> copy = new ArrayList<>(rows);
+        removeId(copy, id(row));
+        int index = Collections.binarySearch(copy, row, comparator);
+        copy.add(index < 0 ? -index - 1 : index, row);
+        rows = Collections.unmodifiableList(copy);
+    }
+
+    /**
+     * Adds the rows or replaces the rows with the same ids
+     */
+    synchronized void putAll(Collection<String[]> newRows) {
+        Map<String, String[]> byId = new LinkedHashMap<>();
+        for (String[] row : rows) {
+            byId.put(id(row), row);
+        }
+        for (String[] row : newRows) {
+            byId.put(id(row), row);
+        }
+        ArrayList<String[]> copy = new ArrayList<>(byId.values());
+        Collections.sort(copy, comparator);
+        rows = Collections.unmodifiableList(copy);
+    }
+
+    /**
+     * @return the rows with the given id, at most one
+     */
+    List<String[]> selectById(String id) {
+        for (String[] row : rows) {
+            if (id(row).equals(id)) {
+                return Collections.singletonList(row);
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * @return the consecutive range of rows whose name starts with the prefix
+     */
+    List<String[]> selectByNamePrefix(String prefix) {
+        List<String[]> snapshot = rows;
+        int low = 0;
+        int high = snapshot.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (name(snapshot.get(middle)).compareTo(prefix) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        int end = low;
+        while (end < snapshot.size() && name(snapshot.get(end)).startsWith(prefix)) {
+            end++;
+        }
+        return snapshot.subList(low, end);
+    }
+
+    private void removeId(List<String[]> list, String id) {
+        for (int i = 0; i < list.size(); i++) {
+            if (id(list.get(i)).equals(id)) {
+                list.remove(i);
+                return;
+            }
+        }
+    }
+
+    private String id(String[] row) {
+        return row[idColumn] != null ? row[idColumn] : "";
+    }
+
+    private static String name(String[] row) {
+        return row[NAME_COLUMN] != null ? row[NAME_COLUMN] : "";
+    }
+}
@@ -0,0 +1,236 @@
+package de.qabel.qabelbox.services;
+
+import android.os.Bundle;
+import android.os.DeadObjectException;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.os.TransactionTooLargeException;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import de.qabel.ServiceConstants;
+import de.qabel.core.drop.DropMessage;
+
+/**
+ * Clients of the QabelService subscribed to DropMessage types.
+ *
+ * Any number of clients can subscribe to a type. Received messages are queued per client
+ * and sent on the delivery looper, clients that asked for batches get up to their batch
+ * size of messages per IPC message. If a batch is too large for a binder transaction the
+ * batch size of the client is halved. Clients whose process died are removed.
+ *
+ * A client that does not keep up gets at most MAX_PENDING messages queued, the oldest
+ * messages are dropped beyond that.
+ */
+class SubscriptionRegistry {
+
+    private static final String TAG = "SubscriptionRegistry";
+
+    static final int MAX_BATCH_SIZE = 100;
+    static final int MAX_PENDING = 1000;
+
+    private final Map<String, CopyOnWriteArrayList<Subscriber>> subscribers = new ConcurrentHashMap<>();
+    private final Handler deliveryHandler;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private class Subscriber implements IBinder.DeathRecipient {
+        final Messenger messenger;
+        final ArrayDeque<Bundle> pending = new ArrayDeque<>();
+        // messages dropped from pending since the last flush, guarded by pending
+        int dropped;
+        volatile boolean batching;
+        volatile int batchSize;
+
+        Subscriber(Messenger messenger, int batchSize) {
+            this.messenger = messenger;
+            setBatchSize(batchSize);
+        }
+
+        void setBatchSize(int batchSize) {
+            this.batching = batchSize > 1;
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        public void binderDied() {
+            Log.i(TAG, "Client died, removing its subscriptions");
+            remove(messenger);
+        }
+    }
+
+    SubscriptionRegistry(Looper deliveryLooper) {
+        deliveryHandler = new Handler(deliveryLooper);
+    }
+
+    /**
+     * Subscribes the client to the type, a client that is already subscribed only gets
+     * its batch size updated.
+     *
+     * @param batchSize maximum number of messages per delivery, 1 for single messages
+     * @return true if the type was not subscribed to before
+     */
+    synchronized boolean subscribe(String type, Messenger messenger, int batchSize) {
+        batchSize = Math.max(1, Math.min(batchSize, MAX_BATCH_SIZE));
+        CopyOnWriteArrayList<Subscriber> list = subscribers.get(type);
+        boolean newType = list == null;
+        if (newType) {
+            list = new CopyOnWriteArrayList<>();
+            subscribers.put(type, list);
+        }
+        for (Subscriber subscriber : list) {
+            if (subscriber.messenger.equals(messenger)) {
+                subscriber.setBatchSize(batchSize);
+                return false;
+            }
+        }
+        Subscriber subscriber = new Subscriber(messenger, batchSize);
+        try {
+            messenger.getBinder().linkToDeath(subscriber, 0);
+        } catch (RemoteException e) {
+            Log.i(TAG, "Client died before subscribing");
+            return newType;
+        }
+        list.add(subscriber);
+        return newType;
+    }
+
+    synchronized void unsubscribe(String type, Messenger messenger) {
+        List<Subscriber> list = subscribers.get(type);
+        if (list == null) {
+            return;
+        }
+        for (Subscriber subscriber : list) {
+            if (subscriber.messenger.equals(messenger)) {
+                list.remove(subscriber);
+                messenger.getBinder().unlinkToDeath(subscriber, 0);
+            }
+        }
+    }
+
+    /**
+     * Removes all subscriptions of the client
+     */
+    synchronized void remove(Messenger messenger) {
+        for (String type : subscribers.keySet()) {
+            unsubscribe(type, messenger);
+        }
+    }
+
+    /**
+     * Queues the message for all subscribers of its type
+     *
+     * @return false if nobody is subscribed to the type
+     */
+    boolean deliver(DropMessage dropMessage) {
+        List<Subscriber> list = subscribers.get(dropMessage.getDropPayloadType());
+        if (list == null || list.isEmpty()) {
+            return false;
+        }
+        Bundle bundle = toBundle(dropMessage);
+        for (Subscriber subscriber : list) {
+            synchronized (subscriber.pending) {
+                if (subscriber.pending.size() >= MAX_PENDING) {
+                    subscriber.pending.removeFirst();
+                    subscriber.dropped++;
+                }
+                subscriber.pending.addLast(bundle);
+            }
+        }
+        // a burst of messages is collected until the delivery looper gets to the flush
+        deliveryHandler.removeCallbacks(flushTask);
+        deliveryHandler.post(flushTask);
+        return true;
+    }
+
+    private void flush() {
+        for (List<Subscriber> list : subscribers.values()) {
+            for (Subscriber subscriber : list) {
+                ArrayList<Bundle> messages;
+                synchronized (subscriber.pending) {
+                    if (subscriber.pending.isEmpty()) {
+                        continue;
+                    }
+                    if (subscriber.dropped > 0) {
+                        Log.w(TAG, "Client does not keep up, dropped " + subscriber.dropped
+                                + " DropMessages");
+                        subscriber.dropped = 0;
+                    }
+                    messages = new ArrayList<>(subscriber.pending);
+                    subscriber.pending.clear();
+                }
+                send(subscriber, messages);
+            }
+        }
+    }
+
+    private void send(Subscriber subscriber, ArrayList<Bundle> messages) {
+        int offset = 0;
+        while (offset < messages.size()) {
+            int count = Math.min(subscriber.batchSize, messages.size() - offset);
+            Message msg;
+            if (!subscriber.batching) {
+                msg = Message.obtain(null, ServiceConstants.MSG_DROP_MESSAGE);
+                msg.setData(messages.get(offset));
+            } else {
+                msg = Message.obtain(null, ServiceConstants.MSG_DROP_MESSAGE_BATCH);
+                Bundle data = new Bundle();
+                data.putParcelableArrayList(ServiceConstants.DROP_MESSAGES,
+                        new ArrayList<>(messages.subList(offset, offset + count)));
+                msg.setData(data);
+            }
+            try {
+                subscriber.messenger.send(msg);
+                offset += count;
+            } catch (TransactionTooLargeException e) {
+                if (count == 1) {
+                    Log.e(TAG, "DropMessage too large for delivery, dropping it", e);
+                    offset++;
+                } else {
+                    subscriber.batchSize = Math.max(1, count / 2);
+                    Log.w(TAG, "Batch too large, reducing batch size to " + subscriber.batchSize);
+                }
+            } catch (DeadObjectException e) {
+                Log.i(TAG, "Client died, removing its subscriptions");
+                remove(subscriber.messenger);
+                return;
+            } catch (RemoteException e) {
+                Log.e(TAG, "Could not deliver DropMessages", e);
+                return;
+            }
+        }
+    }
+
+    synchronized void clear() {
+        for (List<Subscriber> list : subscribers.values()) {
+            for (Subscriber subscriber : list) {
+                subscriber.messenger.getBinder().unlinkToDeath(subscriber, 0);
+            }
+        }
+        subscribers.clear();
+        deliveryHandler.removeCallbacks(flushTask);
+    }
+
+    static Bundle toBundle(DropMessage dropMessage) {
+        Bundle bundle = new Bundle();
+        bundle.putString(ServiceConstants.DROP_SENDER_ID, dropMessage.getSenderKeyId());
+        bundle.putString(ServiceConstants.DROP_PAYLOAD_TYPE, dropMessage.getDropPayloadType());
+        bundle.putString(ServiceConstants.DROP_PAYLOAD, dropMessage.getDropPayload());
+        return bundle;
+    }
+}
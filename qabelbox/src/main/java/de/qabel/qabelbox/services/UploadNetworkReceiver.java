@@ -0,0 +1,28 @@
+package de.qabel.qabelbox.services;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+/**
+ * Starts the UploadService when the device gets online while uploads are waiting.
+ * Disabled in the manifest, the UploadService enables it when it leaves uploads behind.
+ */
+public class UploadNetworkReceiver extends BroadcastReceiver {
+
+    private static final String TAG = "UploadNetworkReceiver";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo network = connectivityManager.getActiveNetworkInfo();
+        if (network != null && network.isConnected()) {
+            Log.d(TAG, "Network available, resuming uploads");
+            UploadService.start(context);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package de.qabel.qabelbox.services;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.support.v7.app.NotificationCompat;
+import android.util.Log;
+
+import java.io.FileNotFoundException;
+
+import de.qabel.qabelbox.QabelBoxApplication;
+import de.qabel.qabelbox.R;
+import de.qabel.qabelbox.exceptions.QblStorageException;
+import de.qabel.qabelbox.providers.BoxProvider;
+import de.qabel.qabelbox.providers.UploadQueue;
+import de.qabel.qabelbox.storage.TransferManager;
+
+/**
+ * Works off the UploadQueue
+ *
+ * Due uploads are processed one after another while the device is online. Uploads larger
+ * than {@link UploadQueue#LARGE_UPLOAD_SIZE} wait for an unmetered network. Failed uploads
+ * are retried by an alarm at the time the queue schedules them. Without a suitable network
+ * the UploadNetworkReceiver starts the service again when the connectivity changes.
+ */
+public class UploadService extends IntentService {
+
+    private static final String TAG = "UploadService";
+    private static final int NOTIFICATION_ID = 4;
+
+    private NotificationManager notificationManager;
+    private ConnectivityManager connectivityManager;
+
+    public UploadService() {
+        super(TAG);
+    }
+
+    public static void start(Context context) {
+        context.startService(new Intent(context, UploadService.class));
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        connectivityManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        UploadQueue queue = UploadQueue.getInstance(this);
+        // the intents are handled one at a time, so nothing can still be running here,
+        // uploads that are still written are left alone
+        queue.resume();
+        BoxProvider provider = QabelBoxApplication.boxProvider;
+
+        boolean unmetered = false;
+        while (true) {
+            NetworkInfo network = connectivityManager.getActiveNetworkInfo();
+            if (network == null || !network.isConnected()) {
+                Log.d(TAG, "Offline, waiting for a network");
+                break;
+            }
+            unmetered = !connectivityManager.isActiveNetworkMetered();
+            UploadQueue.Upload upload = queue.take(System.currentTimeMillis(), unmetered);
+            if (upload == null) {
+                break;
+            }
+            upload(provider, queue, upload);
+        }
+
+        long size = queue.size();
+        setNetworkReceiverEnabled(this, size > 0);
+        long nextAttempt = queue.nextAttempt(unmetered);
+        if (nextAttempt > System.currentTimeMillis()) {
+            scheduleAt(nextAttempt);
+        }
+        Log.d(TAG, size + " uploads left in the queue");
+    }
+
+    private void upload(BoxProvider provider, UploadQueue queue, UploadQueue.Upload upload) {
+        String name = upload.documentId.substring(upload.documentId.lastIndexOf('/') + 1);
+        final NotificationCompat.Builder builder = new NotificationCompat.Builder(this);
+        builder.setContentTitle("Uploading " + name)
+                .setContentText("Upload in progress")
+                .setSmallIcon(R.drawable.notification_template_icon_bg)
+                .setProgress(100, 0, false);
+        notificationManager.notify(NOTIFICATION_ID, builder.build());
+        try {
+            provider.uploadFile(upload.documentId, upload.file, new TransferManager.BoxTransferListener() {
+                @Override
+                public void onProgressChanged(long bytesCurrent, long bytesTotal) {
+                    if (bytesTotal > 0) {
+                        builder.setProgress(100, (int) (100 * bytesCurrent / bytesTotal), false);
+                        notificationManager.notify(NOTIFICATION_ID, builder.build());
+                    }
+                }
+
+                @Override
+                public void onFinished() {
+                }
+            });
+            queue.remove(upload);
+            builder.setContentText("Upload complete").setProgress(100, 100, false);
+        } catch (FileNotFoundException e) {
+            // the content or the document id is gone, another attempt would not change that
+            Log.e(TAG, "Dropping upload of " + upload.documentId, e);
+            queue.remove(upload);
+            builder.setContentText("Upload failed").setProgress(0, 0, false);
+        } catch (QblStorageException | RuntimeException e) {
+            // runtime exceptions of the AWS SDK are retried as well, but only until the
+            // attempts are used up, so a broken upload does not stay in the queue forever
+            long nextAttempt = queue.retry(upload, System.currentTimeMillis());
+            Log.w(TAG, "Upload of " + upload.documentId + " failed, next attempt at " + nextAttempt, e);
+            builder.setContentText(nextAttempt < 0 ? "Upload failed" : "Upload failed, will retry")
+                    .setProgress(0, 0, false);
+        }
+        notificationManager.notify(NOTIFICATION_ID, builder.build());
+    }
+
+    private void scheduleAt(long time) {
+        Log.d(TAG, "Next upload attempt at " + time);
+        PendingIntent pendingIntent = PendingIntent.getService(this, 0,
+                new Intent(this, UploadService.class), PendingIntent.FLAG_UPDATE_CURRENT);
+        AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        alarmManager.set(AlarmManager.RTC_WAKEUP, time, pendingIntent);
+    }
+
+    /**
+     * The receiver is only enabled while uploads wait, so the connectivity changes do not
+     * start the process otherwise
+     */
+    static void setNetworkReceiverEnabled(Context context, boolean enabled) {
+        context.getPackageManager().setComponentEnabledSetting(
+                new ComponentName(context, UploadNetworkReceiver.class),
+                enabled ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED
+                        : PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
+                PackageManager.DONT_KILL_APP);
+    }
+}
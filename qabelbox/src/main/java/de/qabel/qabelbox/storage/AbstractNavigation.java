@@ -11,6 +11,7 @@ import de.qabel.qabelbox.exceptions.QblStorageNameConflict;
 import de.qabel.qabelbox.exceptions.QblStorageNotFound;
 import de.qabel.qabelbox.providers.BoxProvider;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.NotImplementedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,6 +39,8 @@ public abstract class AbstractNavigation implements BoxNavigation {
 	private final Set<String> deleteQueue = new HashSet<>();
 	private final Set<FileUpdate> updatedFiles = new HashSet<>();
 	private Stack<BoxFolder> parentBoxFolders;
+	private boolean offlineFirst;
+	private boolean stale;
 
 	protected String currentPath;
 
@@ -97,9 +100,12 @@ public abstract class AbstractNavigation implements BoxNavigation {
 	}
 
 	protected Long blockingUpload(String name,
-								  File file, @Nullable TransferManager.BoxTransferListener boxTransferListener) {
+								  File file, @Nullable TransferManager.BoxTransferListener boxTransferListener)
+			throws QblStorageException {
 		int id = transferManager.upload(name, file, boxTransferListener);
-		transferManager.waitFor(id);
+		if (!transferManager.waitFor(id)) {
+			throw new QblStorageException("Upload of " + name + " failed");
+		}
 		return currentSecondsFromEpoch();
 	}
 
@@ -107,6 +113,29 @@ public abstract class AbstractNavigation implements BoxNavigation {
 		return System.currentTimeMillis() / 1000;
 	}
 
+	@Override
+	public void setOfflineFirst(boolean offlineFirst) {
+		this.offlineFirst = offlineFirst;
+	}
+
+	@Override
+	public boolean isStale() {
+		return stale;
+	}
+
+	void setStale(boolean stale) {
+		this.stale = stale;
+	}
+
+	/**
+	 * Stores the current metadata, which has just been downloaded or uploaded, as last
+	 * known version of the folder
+	 */
+	protected void onMetadataLoaded() {
+		boxVolume.getMetadataCache().put(dm, dmKey);
+		stale = false;
+	}
+
 	@Override
 	public boolean hasParent() {
 		return parentBoxFolders.size() >= 1;
@@ -129,14 +158,7 @@ public abstract class AbstractNavigation implements BoxNavigation {
      */
 	@Override
 	public void navigate(BoxFolder target) throws QblStorageException {
-        boolean isSubfolder = false;
-        for (BoxFolder boxFolder : listFolders()) {
-            if (boxFolder.ref.equals(target.ref)) {
-                isSubfolder = true;
-                break;
-            }
-        }
-        if (!isSubfolder) {
+        if (!isSubfolder(target)) {
             throw new QblStorageNotFound(target.name + " is not a direct subfolder of " + currentPath);
         }
 		try {
@@ -146,6 +168,20 @@ public abstract class AbstractNavigation implements BoxNavigation {
 		}
 	}
 
+	private boolean isSubfolder(BoxFolder target) throws QblStorageException {
+		// looked up by name first, a full scan is only needed for outdated folder objects
+		BoxFolder boxFolder = dm.getFolder(target.name);
+		if (boxFolder != null && boxFolder.ref.equals(target.ref)) {
+			return true;
+		}
+		for (BoxFolder folder : listFolders()) {
+			if (folder.ref.equals(target.ref)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	private void doNavigate(BoxFolder target, boolean isChild) throws QblStorageException {
 		// Push current BoxFolder to parentBoxFolders if navigating to a child and set currentPath
 		if (isChild) {
@@ -157,18 +193,29 @@ public abstract class AbstractNavigation implements BoxNavigation {
 		try {
 			// Target is root, using DirectoryMetadata from BoxVolume
 			if (target.key == null && target.name.equals("")) {
-				dm = boxVolume.getDirectoryMetadata();
+				DirectoryMetadata cached = offlineFirst ? boxVolume.getCachedDirectoryMetadata() : null;
+				dm = cached != null ? cached : boxVolume.getDirectoryMetadata();
 				dmKey = null;
-			} else {
-				File indexDl = blockingDownload(target.ref, null);
-				File tmp = File.createTempFile("dir", "db", dm.getTempDir());
-				KeyParameter keyParameter = new KeyParameter(target.key);
-				if (cryptoUtils.decryptFileAuthenticatedSymmetricAndValidateTag(
-						new FileInputStream(indexDl), tmp, keyParameter)) {
-					dm = DirectoryMetadata.openDatabase(
-							tmp, deviceId, target.ref, this.dm.getTempDir());
-					dmKey = target.key;
-				}
+				stale = cached != null;
+				return;
+			}
+			DirectoryMetadata cached = offlineFirst
+					? boxVolume.getMetadataCache().get(target.ref, target.key, deviceId, dm.getTempDir()) : null;
+			if (cached != null) {
+				dm = cached;
+				dmKey = target.key;
+				stale = true;
+				return;
+			}
+			File indexDl = blockingDownload(target.ref, null);
+			File tmp = File.createTempFile("dir", "db", dm.getTempDir());
+			KeyParameter keyParameter = new KeyParameter(target.key);
+			if (cryptoUtils.decryptFileAuthenticatedSymmetricAndValidateTag(
+					new FileInputStream(indexDl), tmp, keyParameter)) {
+				dm = DirectoryMetadata.openDatabase(
+						tmp, deviceId, target.ref, this.dm.getTempDir());
+				dmKey = target.key;
+				onMetadataLoaded();
 			}
 		} catch(IOException | InvalidKeyException e){
 			throw new QblStorageException(e);
@@ -197,8 +244,10 @@ public abstract class AbstractNavigation implements BoxNavigation {
 			dm.commit();
 		}
 		uploadDirectoryMetadata();
+		onMetadataLoaded();
 		for (String ref: deleteQueue) {
 			blockingDelete(ref);
+			boxVolume.getMetadataCache().remove(ref);
 		}
 		// TODO: make a test fail without these
 		deleteQueue.clear();
@@ -213,6 +262,15 @@ public abstract class AbstractNavigation implements BoxNavigation {
 	}
 
 	private void handleConflict(FileUpdate update) throws QblStorageException {
+		if (update.updated == null) {
+			BoxFile remote = dm.getFile(update.old.name);
+			if (update.old.equals(remote)) {
+				dm.deleteFile(remote);
+			} else {
+				logger.info("Keeping the remotely changed file " + update.old.name);
+			}
+			return;
+		}
 		BoxFile local = update.updated;
 		BoxFile newFile = dm.getFile(local.name);
 		if (newFile == null) {
@@ -224,8 +282,11 @@ public abstract class AbstractNavigation implements BoxNavigation {
 				// try again until we get no name clash
 				handleConflict(update);
 			}
-		} else if (newFile.equals(update.old)) {
+		} else if (newFile.equals(update.old) || newFile.equals(local)) {
 			logger.info("No conflict for the file " + local.name);
+			// the remote version still has the file we changed
+			dm.deleteFile(newFile);
+			dm.insertFile(local);
 		} else {
 			logger.info("Inserting conflict marked file");
 			local.name = conflictName(local);
@@ -264,33 +325,111 @@ public abstract class AbstractNavigation implements BoxNavigation {
 		return dm.listExternals();
 	}
 
+	@Override
+	public List<BoxFile> listFiles(@Nullable String afterName, int limit) throws QblStorageException {
+		return dm.listFiles(afterName, limit);
+	}
+
+	@Override
+	public List<BoxFolder> listFolders(@Nullable String afterName, int limit) throws QblStorageException {
+		return dm.listFolders(afterName, limit);
+	}
+
+	@Override
+	public BoxFile getFile(String name) throws QblStorageException {
+		return dm.getFile(name);
+	}
+
+	@Override
+	public BoxFolder getFolder(String name) throws QblStorageException {
+		return dm.getFolder(name);
+	}
+
+	@Override
+	public byte[] getVersion() throws QblStorageException {
+		return dm.getVersion();
+	}
+
 	@Override
 	public BoxFile upload(String name, InputStream content,
 						  @Nullable TransferManager.BoxTransferListener boxTransferListener) throws QblStorageException {
-		KeyParameter key = cryptoUtils.generateSymmetricKey();
+		return upload(name, content, boxTransferListener, false);
+	}
+
+	@Override
+	public BoxFile uploadSeekable(String name, InputStream content,
+						  @Nullable TransferManager.BoxTransferListener boxTransferListener) throws QblStorageException {
+		return upload(name, content, boxTransferListener, true);
+	}
+
+	private BoxFile upload(String name, InputStream content,
+						   @Nullable TransferManager.BoxTransferListener boxTransferListener,
+						   boolean segmented) throws QblStorageException {
+		BoxFile boxFile = uploadBlock(name, content, null, boxTransferListener, segmented, cryptoUtils);
+		insertUploaded(boxFile);
+		return boxFile;
+	}
+
+	@Override
+	public BoxFile uploadDetached(String name, InputStream content, @Nullable InputStream thumbnail,
+								  boolean seekable,
+								  @Nullable TransferManager.BoxTransferListener boxTransferListener) throws QblStorageException {
+		// CryptoUtils keeps its cipher state, concurrent uploads need their own instance
+		return uploadBlock(name, content, thumbnail, boxTransferListener, seekable, new CryptoUtils());
+	}
+
+	private BoxFile uploadBlock(String name, InputStream content, @Nullable InputStream thumbnail,
+								@Nullable TransferManager.BoxTransferListener boxTransferListener,
+								boolean segmented, CryptoUtils crypto) throws QblStorageException {
+		KeyParameter key = crypto.generateSymmetricKey();
 		String block = UUID.randomUUID().toString();
 		BoxFile boxFile = new BoxFile(block, name, null, 0L, key.getKey());
-		SimpleEntry<Long, Long> mtimeAndSize = uploadEncrypted(content, key, "blocks/" + block, boxTransferListener);
+		SimpleEntry<Long, Long> mtimeAndSize = uploadEncrypted(content, key, "blocks/" + block,
+				boxTransferListener, segmented, crypto);
 		boxFile.mtime = mtimeAndSize.getKey();
 		boxFile.size = mtimeAndSize.getValue();
+		if (segmented) {
+			boxFile.segmentSize = SegmentedBlock.DEFAULT_SEGMENT_SIZE;
+		}
+		if (thumbnail != null) {
+			String thumbnailBlock = UUID.randomUUID().toString();
+			uploadEncrypted(thumbnail, key, "blocks/" + thumbnailBlock, null, false, crypto);
+			boxFile.thumbnail = thumbnailBlock;
+		}
+		return boxFile;
+	}
+
+	@Override
+	public void insertUploaded(BoxFile boxFile) throws QblStorageException {
 		// Overwrite = delete old file, upload new file
-		BoxFile oldFile = dm.getFile(name);
+		BoxFile oldFile = dm.getFile(boxFile.name);
 		if (oldFile != null) {
 			deleteQueue.add(oldFile.block);
+			if (oldFile.thumbnail != null) {
+				deleteQueue.add("blocks/" + oldFile.thumbnail);
+			}
 			dm.deleteFile(oldFile);
 		}
 		updatedFiles.add(new FileUpdate(oldFile, boxFile));
 		dm.insertFile(boxFile);
-		return boxFile;
 	}
 
 	protected SimpleEntry<Long, Long> uploadEncrypted(
 			InputStream content, KeyParameter key, String block,
 			@Nullable TransferManager.BoxTransferListener boxTransferListener) throws QblStorageException {
+		return uploadEncrypted(content, key, block, boxTransferListener, false, cryptoUtils);
+	}
+
+	private SimpleEntry<Long, Long> uploadEncrypted(
+			InputStream content, KeyParameter key, String block,
+			@Nullable TransferManager.BoxTransferListener boxTransferListener,
+			boolean segmented, CryptoUtils crypto) throws QblStorageException {
 		try {
 			File tempFile = File.createTempFile("upload", "up", dm.getTempDir());
 			OutputStream outputStream = new FileOutputStream(tempFile);
-			if (!cryptoUtils.encryptStreamAuthenticatedSymmetric(content, outputStream, key, null)) {
+			if (segmented) {
+				SegmentedBlock.encrypt(content, outputStream, key, SegmentedBlock.DEFAULT_SEGMENT_SIZE);
+			} else if (!crypto.encryptStreamAuthenticatedSymmetric(content, outputStream, key, null)) {
 				throw new QblStorageException("Encryption failed");
 			}
 			outputStream.flush();
@@ -318,6 +457,135 @@ public abstract class AbstractNavigation implements BoxNavigation {
 		}
 	}
 
+	@Override
+	public boolean prefetch(BoxFile boxFile) throws QblStorageException {
+		File cached = cache.get(boxFile);
+		cache.close();
+		if (cached != null) {
+			return false;
+		}
+		refreshCache(boxFile, null);
+		return true;
+	}
+
+	@Override
+	public InputStream downloadStream(BoxFile boxFile) throws QblStorageException {
+		File cached = cache.get(boxFile);
+		cache.close();
+		try {
+			if (cached != null) {
+				try {
+					return decryptingStream(boxFile, new FileInputStream(cached));
+				} catch (IOException e) {
+					logger.warn("Could not read cached file " + boxFile.block, e);
+					dropFromCache(boxFile);
+				}
+			}
+			return decryptingStream(boxFile, new CachingInputStream(
+					transferManager.openStream("blocks/" + boxFile.block),
+					transferManager.createTempFile(), boxFile, cache));
+		} catch (IOException e) {
+			throw new QblStorageException(e);
+		}
+	}
+
+	private InputStream decryptingStream(final BoxFile boxFile, InputStream encrypted)
+			throws IOException {
+		KeyParameter key = new KeyParameter(boxFile.key);
+		BufferedInputStream buffered = new BufferedInputStream(encrypted);
+		InputStream decrypted = isSegmented(buffered)
+				? SegmentedBlock.decryptingStream(buffered, key)
+				: DecryptingInputStream.open(buffered, key);
+		return new FilterInputStream(decrypted) {
+			@Override
+			public int read() throws IOException {
+				try {
+					return super.read();
+				} catch (IOException e) {
+					dropFromCache(boxFile);
+					throw e;
+				}
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int count) throws IOException {
+				try {
+					return super.read(buffer, offset, count);
+				} catch (IOException e) {
+					dropFromCache(boxFile);
+					throw e;
+				}
+			}
+		};
+	}
+
+	private static boolean isSegmented(BufferedInputStream in) throws IOException {
+		byte[] head = new byte[SegmentedBlock.MAGIC.length];
+		in.mark(head.length);
+		int length = 0;
+		while (length < head.length) {
+			int read = in.read(head, length, head.length - length);
+			if (read == -1) {
+				break;
+			}
+			length += read;
+		}
+		in.reset();
+		return SegmentedBlock.isSegmented(Arrays.copyOf(head, length));
+	}
+
+	@Override
+	public SegmentedBlock.Reader openSeekable(final BoxFile boxFile) throws QblStorageException {
+		final File cached = cache.get(boxFile);
+		cache.close();
+		SegmentedBlock.RangeSource source = new SegmentedBlock.RangeSource() {
+			@Override
+			public InputStream open(long offset, long length) throws IOException {
+				if (offset < 0 || length < 0 || offset + length > boxFile.size) {
+					throw new IOException("Range " + offset + "+" + length
+							+ " outside of block " + boxFile.block + " of size " + boxFile.size);
+				}
+				// a cached copy of a different length is incomplete, skip would pass its end
+				if (cached != null && cached.length() == boxFile.size) {
+					FileInputStream in = new FileInputStream(cached);
+					try {
+						skipFully(in, offset);
+					} catch (IOException e) {
+						in.close();
+						throw e;
+					}
+					return in;
+				}
+				try {
+					return transferManager.openRange("blocks/" + boxFile.block, offset, length);
+				} catch (QblStorageNotFound e) {
+					throw new IOException(e);
+				}
+			}
+		};
+		try {
+			return new SegmentedBlock.Reader(source, boxFile.size, new KeyParameter(boxFile.key));
+		} catch (IOException e) {
+			throw new QblStorageException(e);
+		}
+	}
+
+	private static void skipFully(InputStream in, long count) throws IOException {
+		while (count > 0) {
+			long skipped = in.skip(count);
+			if (skipped <= 0) {
+				throw new EOFException("Could not skip " + count + " bytes");
+			}
+			count -= skipped;
+		}
+	}
+
+	private void dropFromCache(BoxFile boxFile) {
+		// the cached copy may be broken, download it again next time
+		cache.remove(boxFile);
+		cache.close();
+	}
+
 	private File refreshCache(BoxFile boxFile, @Nullable TransferManager.BoxTransferListener boxTransferListener) throws QblStorageNotFound {
 		logger.info("Refreshing cache: "+ boxFile.block);
 		File download = blockingDownload("blocks/" + boxFile.block, boxTransferListener);
@@ -331,6 +599,17 @@ public abstract class AbstractNavigation implements BoxNavigation {
 		KeyParameter key = new KeyParameter(boxFile.key);
 		try {
 			File temp = File.createTempFile("upload", "down", dm.getTempDir());
+			BufferedInputStream head = new BufferedInputStream(new FileInputStream(file));
+			boolean segmented;
+			try {
+				segmented = isSegmented(head);
+			} finally {
+				head.close();
+			}
+			if (segmented) {
+				decryptSegmented(file, temp, key);
+				return new FileInputStream(temp);
+			}
 			if (!cryptoUtils.decryptFileAuthenticatedSymmetricAndValidateTag(
 					new FileInputStream(file), temp, key)
 					|| checkFile(temp)) {
@@ -342,6 +621,21 @@ public abstract class AbstractNavigation implements BoxNavigation {
 		}
 	}
 
+	private void decryptSegmented(File file, File temp, KeyParameter key) throws QblStorageException {
+		InputStream in = null;
+		OutputStream out = null;
+		try {
+			in = SegmentedBlock.decryptingStream(new FileInputStream(file), key);
+			out = new FileOutputStream(temp);
+			IOUtils.copy(in, out);
+		} catch (IOException e) {
+			throw new QblStorageException("Decryption failed");
+		} finally {
+			IOUtils.closeQuietly(in);
+			IOUtils.closeQuietly(out);
+		}
+	}
+
 	private boolean checkFile(File file) {
 		// because the decrypt method does not raise an exception if it fails.
 		return file.length() == 0;
@@ -378,20 +672,85 @@ public abstract class AbstractNavigation implements BoxNavigation {
 		cache.remove(file);
 		cache.close();
 		deleteQueue.add("blocks/" + file.block);
+		if (file.thumbnail != null) {
+			deleteQueue.add("blocks/" + file.thumbnail);
+		}
 	}
 
 	@Override
-	public void delete(BoxFolder folder) throws QblStorageException {
-        navigate(folder);
-		for (BoxFile file: listFiles()) {
-			logger.info("Deleting file " + file.name);
-            delete(file);
+	public BoxFile uploadThumbnail(BoxFile file, InputStream thumbnail) throws QblStorageException {
+		String block = UUID.randomUUID().toString();
+		uploadEncrypted(thumbnail, new KeyParameter(file.key), "blocks/" + block, null);
+		if (file.thumbnail != null) {
+			deleteQueue.add("blocks/" + file.thumbnail);
+		}
+		BoxFile oldFile = new BoxFile(file.block, file.name, file.size, file.mtime, file.key);
+		oldFile.thumbnail = file.thumbnail;
+		oldFile.segmentSize = file.segmentSize;
+		dm.deleteFile(file);
+		file.thumbnail = block;
+		trackUpdate(oldFile, file);
+		dm.insertFile(file);
+		return file;
+	}
+
+	/**
+	 * Records the update of the file for the conflict handling in commit. An earlier
+	 * update of the same file that is not committed yet is replaced, so the file is
+	 * compared with the version before both.
+	 */
+	private void trackUpdate(BoxFile old, BoxFile updated) {
+		for (Iterator<FileUpdate> iterator = updatedFiles.iterator(); iterator.hasNext(); ) {
+			FileUpdate update = iterator.next();
+			if (update.updated != null && update.updated.name.equals(updated.name)) {
+				iterator.remove();
+				old = update.old;
+			}
+		}
+		updatedFiles.add(new FileUpdate(old, updated));
+	}
+
+	@Override
+	public InputStream downloadThumbnail(BoxFile file) throws QblStorageException {
+		if (file.thumbnail == null) {
+			throw new QblStorageNotFound("No thumbnail for " + file.name);
+		}
+		File download = blockingDownload("blocks/" + file.thumbnail, null);
+		try {
+			InputStream in = DecryptingInputStream.open(
+					new FileInputStream(download), new KeyParameter(file.key));
+			// thumbnails are small, read them completely to check the authentication
+			byte[] thumbnail = IOUtils.toByteArray(in);
+			in.close();
+			return new ByteArrayInputStream(thumbnail);
+		} catch (IOException e) {
+			throw new QblStorageException(e);
+		} finally {
+			if (!download.delete()) {
+				logger.warn("Could not delete " + download);
+			}
 		}
-		for (BoxFolder subFolder: listFolders()) {
-			logger.info("Deleting folder " + folder.name);
-            delete(subFolder);
+	}
+
+	@Override
+	public void delete(BoxFolder folder) throws QblStorageException {
+		// a stale copy of the folder could miss blocks that have to be deleted
+		boolean wasOfflineFirst = offlineFirst;
+		offlineFirst = false;
+		try {
+			navigate(folder);
+			for (BoxFile file: listFiles()) {
+				logger.info("Deleting file " + file.name);
+				delete(file);
+			}
+			for (BoxFolder subFolder: listFolders()) {
+				logger.info("Deleting folder " + folder.name);
+				delete(subFolder);
+			}
+			navigateToParent();
+		} finally {
+			offlineFirst = wasOfflineFirst;
 		}
-		navigateToParent();
 		commit();
 		dm.deleteFolder(folder);
 		deleteQueue.add(folder.ref);
@@ -426,6 +785,108 @@ public abstract class AbstractNavigation implements BoxNavigation {
 		return external;
 	}
 
+	@Override
+	public BoxFile move(BoxFile file, BoxFolder target, String targetPath) throws QblStorageException {
+		if (target.ref.equals(dm.getFileName())) {
+			throw new QblStorageException(file.name + " is already in the target folder");
+		}
+		BoxFile moved = new BoxFile(file.block, file.name, file.size, file.mtime, file.key);
+		moved.thumbnail = file.thumbnail;
+		moved.segmentSize = file.segmentSize;
+		AbstractNavigation targetNavigation = navigationFor(target, targetPath);
+		targetNavigation.insertTransferredFile(moved);
+		targetNavigation.commit();
+		// the block is still referenced by the target folder, so it is not deleted
+		dm.deleteFile(file);
+		trackRemoval(file);
+		return moved;
+	}
+
+	/**
+	 * Records the removal of the file, so it is also removed from a conflicting version
+	 * of the metadata in commit. An upload of the file that is not committed yet is
+	 * dropped and the file it replaced is removed instead.
+	 */
+	private void trackRemoval(BoxFile file) {
+		BoxFile old = file;
+		for (Iterator<FileUpdate> iterator = updatedFiles.iterator(); iterator.hasNext(); ) {
+			FileUpdate update = iterator.next();
+			if (file.equals(update.updated)) {
+				iterator.remove();
+				old = update.old;
+			}
+		}
+		if (old != null) {
+			updatedFiles.add(new FileUpdate(old, null));
+		}
+	}
+
+	@Override
+	public BoxFile copy(BoxFile file, BoxFolder target, String targetPath) throws QblStorageException {
+		String block = UUID.randomUUID().toString();
+		if (!transferManager.copy("blocks/" + file.block, "blocks/" + block)) {
+			throw new QblStorageException("Copy failed");
+		}
+		BoxFile copy = new BoxFile(block, file.name, file.size, currentSecondsFromEpoch(), file.key);
+		copy.segmentSize = file.segmentSize;
+		if (file.thumbnail != null) {
+			String thumbnail = UUID.randomUUID().toString();
+			if (transferManager.copy("blocks/" + file.thumbnail, "blocks/" + thumbnail)) {
+				copy.thumbnail = thumbnail;
+			}
+		}
+		AbstractNavigation targetNavigation = navigationFor(target, targetPath);
+		try {
+			targetNavigation.insertTransferredFile(copy);
+		} catch (QblStorageException e) {
+			transferManager.delete("blocks/" + block);
+			if (copy.thumbnail != null) {
+				transferManager.delete("blocks/" + copy.thumbnail);
+			}
+			throw e;
+		}
+		targetNavigation.commit();
+		return copy;
+	}
+
+	private void insertTransferredFile(BoxFile file) throws QblStorageException {
+		if (dm.getFile(file.name) != null) {
+			throw new QblStorageNameConflict(file.name);
+		}
+		updatedFiles.add(new FileUpdate(null, file));
+		dm.insertFile(file);
+	}
+
+	/**
+	 * Opens a separate navigation for the target folder without changing the
+	 * state of this navigation.
+	 */
+	private AbstractNavigation navigationFor(BoxFolder target, String targetPath)
+			throws QblStorageException {
+		// Target is root, using DirectoryMetadata from BoxVolume
+		if (targetPath.equals(BoxProvider.PATH_SEP)) {
+			return (AbstractNavigation) boxVolume.navigate();
+		}
+		DirectoryMetadata targetDm = downloadDirectoryMetadata(target);
+		return new FolderNavigation(targetDm, keyPair, target.key, deviceId, transferManager,
+				boxVolume, targetPath, null, context);
+	}
+
+	private DirectoryMetadata downloadDirectoryMetadata(BoxFolder target) throws QblStorageException {
+		try {
+			File indexDl = blockingDownload(target.ref, null);
+			File tmp = File.createTempFile("dir", "db", dm.getTempDir());
+			KeyParameter keyParameter = new KeyParameter(target.key);
+			if (cryptoUtils.decryptFileAuthenticatedSymmetricAndValidateTag(
+					new FileInputStream(indexDl), tmp, keyParameter)) {
+				return DirectoryMetadata.openDatabase(tmp, deviceId, target.ref, dm.getTempDir());
+			}
+		} catch (IOException | InvalidKeyException e) {
+			throw new QblStorageException(e);
+		}
+		throw new QblStorageNotFound("Invalid key");
+	}
+
 	private static class FileUpdate {
 		final BoxFile old;
 		final BoxFile updated;
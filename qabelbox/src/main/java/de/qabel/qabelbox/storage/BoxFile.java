@@ -7,6 +7,19 @@ public class BoxFile extends BoxObject {
 	public Long size;
 	public Long mtime;
 	public byte[] key;
+	/**
+	 * Block of the encrypted thumbnail, null if the file has none
+	 */
+	public String thumbnail;
+	/**
+	 * Segment size of a block in the segmented format, null for a plain block
+	 */
+	public Integer segmentSize;
+
+	/**
+	 * Nonce and tag that the plain encryption adds to the content
+	 */
+	static final int PLAIN_OVERHEAD = 12 + 16;
 
 	@Override
 	public boolean equals(Object o) {
@@ -19,6 +32,8 @@ public class BoxFile extends BoxObject {
 		if (name != null ? !name.equals(boxFile.name) : boxFile.name != null) return false;
 		if (size != null ? !size.equals(boxFile.size) : boxFile.size != null) return false;
 		if (mtime != null ? !mtime.equals(boxFile.mtime) : boxFile.mtime != null) return false;
+		if (thumbnail != null ? !thumbnail.equals(boxFile.thumbnail) : boxFile.thumbnail != null) return false;
+		if (segmentSize != null ? !segmentSize.equals(boxFile.segmentSize) : boxFile.segmentSize != null) return false;
 		return Arrays.equals(key, boxFile.key);
 
 	}
@@ -30,9 +45,24 @@ public class BoxFile extends BoxObject {
 		result = 31 * result + (size != null ? size.hashCode() : 0);
 		result = 31 * result + (mtime != null ? mtime.hashCode() : 0);
 		result = 31 * result + (key != null ? Arrays.hashCode(key) : 0);
+		result = 31 * result + (thumbnail != null ? thumbnail.hashCode() : 0);
+		result = 31 * result + (segmentSize != null ? segmentSize.hashCode() : 0);
 		return result;
 	}
 
+	/**
+	 * Size of the content, size is the length of the encrypted block
+	 */
+	public long getPlaintextSize() {
+		if (size == null) {
+			return 0;
+		}
+		if (segmentSize != null) {
+			return Math.max(0, SegmentedBlock.plaintextSize(size, segmentSize));
+		}
+		return Math.max(0, size - PLAIN_OVERHEAD);
+	}
+
 	public BoxFile(String block, String name, Long size, Long mtime, byte[] key) {
 		super(name);
 		this.block = block;
@@ -18,6 +18,20 @@ public interface BoxNavigation {
 	 */
 	void commit() throws QblStorageException;
 
+	/**
+	 * Enables offline first navigation. Navigating to a folder then opens the locally
+	 * stored copy of its last known metadata instead of downloading it, if there is a copy.
+	 *
+	 * The navigation is stale until it is reloaded, changes should only be made after the reload.
+	 */
+	void setOfflineFirst(boolean offlineFirst);
+
+	/**
+	 * @return true if the current folder is shown from the locally stored metadata and
+	 * has not been reloaded since
+	 */
+	boolean isStale();
+
 	boolean hasParent();
 	void navigateToParent() throws QblStorageException;
 	void navigate(BoxFolder target) throws QblStorageException;
@@ -27,9 +41,105 @@ public interface BoxNavigation {
 	List<BoxFolder> listFolders() throws QblStorageException;
 	List<BoxExternal> listExternals() throws QblStorageException;
 
+	/**
+	 * Lists a page of the files ordered by name. Pages continue after the name of the last
+	 * file of the previous page, so they stay consistent while files are added or removed.
+	 * @param afterName name of the last file of the previous page or null for the first page
+	 * @throws QblStorageException
+	 */
+	List<BoxFile> listFiles(@Nullable String afterName, int limit) throws QblStorageException;
+
+	/**
+	 * Lists a page of the folders ordered by name
+	 * @param afterName name of the last folder of the previous page or null for the first page
+	 * @throws QblStorageException
+	 * @see #listFiles(String, int)
+	 */
+	List<BoxFolder> listFolders(@Nullable String afterName, int limit) throws QblStorageException;
+
+	/**
+	 * Looks up a single file by its name
+	 * @return the file or null if there is no file with this name
+	 * @throws QblStorageException
+	 */
+	BoxFile getFile(String name) throws QblStorageException;
+
+	/**
+	 * Looks up a single folder by its name
+	 * @return the folder or null if there is no folder with this name
+	 * @throws QblStorageException
+	 */
+	BoxFolder getFolder(String name) throws QblStorageException;
+
+	/**
+	 * Version of the currently loaded metadata of this folder. It changes with
+	 * every commit, so two listings with the same version are identical.
+	 * @throws QblStorageException
+	 */
+	byte[] getVersion() throws QblStorageException;
+
 	BoxFile upload(String name, InputStream content, @Nullable TransferManager.BoxTransferListener boxTransferListener) throws QblStorageException;
+
+	/**
+	 * Uploads the file in the segmented format, which allows random access with openSeekable
+	 * @throws QblStorageException
+	 */
+	BoxFile uploadSeekable(String name, InputStream content, @Nullable TransferManager.BoxTransferListener boxTransferListener) throws QblStorageException;
+
+	/**
+	 * Encrypts and uploads the content and the optional thumbnail without changing the
+	 * folder. Unlike the other methods it can be called from several threads at once.
+	 * The returned file is added to the folder with insertUploaded.
+	 * @param seekable upload in the segmented format like uploadSeekable
+	 * @throws QblStorageException
+	 */
+	BoxFile uploadDetached(String name, InputStream content, @Nullable InputStream thumbnail, boolean seekable,
+						   @Nullable TransferManager.BoxTransferListener boxTransferListener) throws QblStorageException;
+
+	/**
+	 * Adds a file returned by uploadDetached to the folder, a file with the same name
+	 * is replaced. Has to be committed.
+	 * @throws QblStorageException
+	 */
+	void insertUploaded(BoxFile boxFile) throws QblStorageException;
 	InputStream download(BoxFile file, @Nullable TransferManager.BoxTransferListener boxTransferListener) throws QblStorageException;
 
+	/**
+	 * Downloads the encrypted file into the file cache unless it is cached already
+	 * @return true if the file was downloaded
+	 * @throws QblStorageException
+	 */
+	boolean prefetch(BoxFile file) throws QblStorageException;
+
+	/**
+	 * Opens the file for reading while it is downloaded and decrypted.
+	 *
+	 * In contrast to download, the plaintext is not verified before it is returned. A file
+	 * that fails the authentication results in an IOException at the end of the stream.
+	 * @throws QblStorageException
+	 */
+	InputStream downloadStream(BoxFile file) throws QblStorageException;
+
+	/**
+	 * Opens a file uploaded with uploadSeekable for random access. Only the segments of
+	 * the ranges that are read are downloaded.
+	 * @throws QblStorageException if the file is not in the segmented format
+	 */
+	SegmentedBlock.Reader openSeekable(BoxFile file) throws QblStorageException;
+
+	/**
+	 * Uploads a thumbnail for the file, encrypted with the key of the file.
+	 * A previous thumbnail is replaced. Has to be committed.
+	 * @throws QblStorageException
+	 */
+	BoxFile uploadThumbnail(BoxFile file, InputStream thumbnail) throws QblStorageException;
+
+	/**
+	 * Downloads and decrypts the thumbnail of the file
+	 * @throws QblStorageException QblStorageNotFound if the file has no thumbnail
+	 */
+	InputStream downloadThumbnail(BoxFile file) throws QblStorageException;
+
 	void delete(BoxObject boxObject) throws QblStorageException;
 	void delete(BoxFile boxFile) throws QblStorageException;
 	void delete(BoxFolder boxFolder) throws QblStorageException;
@@ -41,6 +151,26 @@ public interface BoxNavigation {
 	BoxFolder rename(BoxFolder folder, String name) throws QblStorageException;
 	BoxExternal rename(BoxExternal external, String name) throws QblStorageException;
 
+	/**
+	 * Moves the file to the target folder by rewriting the metadata of both folders.
+	 * The file content is not transferred.
+	 *
+	 * The target folder is committed immediately, the current folder has to be committed
+	 * by the caller.
+	 * @param targetPath absolute path of the target folder, like the one of getPath
+	 * @throws QblStorageException
+	 */
+	BoxFile move(BoxFile file, BoxFolder target, String targetPath) throws QblStorageException;
+
+	/**
+	 * Copies the file to the target folder using a server side copy of the block.
+	 *
+	 * The target folder is committed immediately.
+	 * @param targetPath absolute path of the target folder, like the one of getPath
+	 * @throws QblStorageException
+	 */
+	BoxFile copy(BoxFile file, BoxFolder target, String targetPath) throws QblStorageException;
+
 	void reload() throws QblStorageException;
 
 	String getPath();
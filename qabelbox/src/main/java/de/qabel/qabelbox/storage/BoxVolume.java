@@ -40,20 +40,32 @@ public class BoxVolume {
 	private CryptoUtils cryptoUtils;
 	private File tempDir;
 	private final TransferManager transferManager;
+	private final DirectoryMetadataCache metadataCache;
 
 	public BoxVolume(TransferUtility transferUtility, AWSCredentials credentials,
 	                 QblECKeyPair keyPair, String bucket, String prefix,
 	                 byte[] deviceId, Context context) {
+		this(transferUtility, new AmazonS3Client(credentials), keyPair, bucket, prefix,
+				deviceId, context);
+	}
+
+	/**
+	 * Creates a volume on top of an existing S3 client, so that several volumes
+	 * can share its connection pool.
+	 */
+	public BoxVolume(TransferUtility transferUtility, AmazonS3Client awsClient,
+	                 QblECKeyPair keyPair, String bucket, String prefix,
+	                 byte[] deviceId, Context context) {
 		this.transferUtility = transferUtility;
 		this.keyPair = keyPair;
 		this.deviceId = deviceId;
 		this.context = context;
 		cryptoUtils = new CryptoUtils();
 		tempDir = context.getCacheDir();
-		AmazonS3Client awsClient = new AmazonS3Client(credentials);
 		this.rootId = new DocumentIdParser().buildId(
 				keyPair.getPub().getReadableKeyIdentifier(), bucket, prefix, null);
 		transferManager = new TransferManager(transferUtility, awsClient, bucket, prefix, tempDir);
+		metadataCache = new DirectoryMetadataCache(context, keyPair);
 	}
 
 	public String getRootId() {
@@ -98,6 +110,37 @@ public class BoxVolume {
 				this, PATH_ROOT, null, context);
 	}
 
+	/**
+	 * Navigates to the root with offline first navigation enabled. The locally stored
+	 * root metadata is used if there is a copy, the navigation is stale until it is reloaded.
+	 *
+	 * @see BoxNavigation#setOfflineFirst(boolean)
+	 */
+	public BoxNavigation navigateOfflineFirst() throws QblStorageException {
+		DirectoryMetadata cached = getCachedDirectoryMetadata();
+		FolderNavigation navigation = new FolderNavigation(
+				cached != null ? cached : getDirectoryMetadata(), keyPair, null, deviceId,
+				transferManager, this, PATH_ROOT, null, context);
+		navigation.setOfflineFirst(true);
+		navigation.setStale(cached != null);
+		return navigation;
+	}
+
+	DirectoryMetadataCache getMetadataCache() {
+		return metadataCache;
+	}
+
+	TransferManager getTransferManager() {
+		return transferManager;
+	}
+
+	/**
+	 * @return the locally stored root metadata or null if there is none
+	 */
+	DirectoryMetadata getCachedDirectoryMetadata() throws QblStorageException {
+		return metadataCache.get(getRootRef(), null, deviceId, tempDir);
+	}
+
 	DirectoryMetadata getDirectoryMetadata() throws QblStorageException {
 		String rootRef = getRootRef();
 		logger.info("Navigating to " + rootRef);
@@ -108,7 +151,11 @@ public class BoxVolume {
 			if (encrypted.length == 0) {
 				throw new QblStorageException("Empty file");
 			}
-			DecryptedPlaintext plaintext = cryptoUtils.readBox(keyPair, encrypted);
+			DecryptedPlaintext plaintext;
+			// The volume may be shared between threads, CryptoUtils is not
+			synchronized (cryptoUtils) {
+				plaintext = cryptoUtils.readBox(keyPair, encrypted);
+			}
 			// Should work fine for the small metafiles
 			tmp = File.createTempFile("dir", "db", tempDir);
 			OutputStream out = new FileOutputStream(tmp);
@@ -117,7 +164,9 @@ public class BoxVolume {
 		} catch (IOException | InvalidCipherTextException | InvalidKeyException e) {
 			throw new QblStorageException(e);
 		}
-		return DirectoryMetadata.openDatabase(tmp, deviceId, rootRef, tempDir);
+		DirectoryMetadata dm = DirectoryMetadata.openDatabase(tmp, deviceId, rootRef, tempDir);
+		metadataCache.put(dm, null);
+		return dm;
 	}
 
 	public String getRootRef() throws QblStorageException {
@@ -144,7 +193,10 @@ public class BoxVolume {
 		DirectoryMetadata dm = DirectoryMetadata.newDatabase(root, deviceId, tempDir);
 		try {
 			byte[] plaintext = IOUtils.toByteArray(new FileInputStream(dm.path));
-			byte[] encrypted = cryptoUtils.createBox(keyPair, keyPair.getPub(), plaintext, 0);
+			byte[] encrypted;
+			synchronized (cryptoUtils) {
+				encrypted = cryptoUtils.createBox(keyPair, keyPair.getPub(), plaintext, 0);
+			}
 			blockingUpload(rootRef, new ByteArrayInputStream(encrypted));
 		} catch (IOException e) {
 			throw new QblStorageException(e);
@@ -0,0 +1,94 @@
+package de.qabel.qabelbox.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Copies the downloaded ciphertext of a block into a file while it is read
+ * and adds the file to the FileCache once the block has been read completely.
+ */
+class CachingInputStream extends FilterInputStream {
+
+	private static final Logger logger = LoggerFactory.getLogger(CachingInputStream.class.getName());
+
+	private final File file;
+	private final BoxFile boxFile;
+	private final FileCache cache;
+	private OutputStream out;
+
+	CachingInputStream(InputStream in, File file, BoxFile boxFile, FileCache cache)
+			throws IOException {
+		super(in);
+		this.file = file;
+		this.boxFile = boxFile;
+		this.cache = cache;
+		out = new FileOutputStream(file);
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b == -1) {
+			finish();
+		} else if (out != null) {
+			out.write(b);
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int count) throws IOException {
+		int read = super.read(buffer, offset, count);
+		if (read == -1) {
+			finish();
+		} else if (out != null) {
+			out.write(buffer, offset, read);
+		}
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		// skipped bytes would be missing in the cached copy
+		abort();
+		return super.skip(n);
+	}
+
+	@Override
+	public void close() throws IOException {
+		abort();
+		super.close();
+	}
+
+	private void finish() throws IOException {
+		if (out == null) {
+			return;
+		}
+		out.close();
+		out = null;
+		cache.put(boxFile, file);
+		cache.close();
+	}
+
+	private void abort() {
+		if (out == null) {
+			return;
+		}
+		try {
+			out.close();
+		} catch (IOException e) {
+			logger.warn("Could not close cache file", e);
+		}
+		out = null;
+		if (!file.delete()) {
+			logger.warn("Could not delete incomplete cache file " + file);
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package de.qabel.qabelbox.storage;
+
+import org.spongycastle.crypto.engines.AESEngine;
+import org.spongycastle.crypto.io.CipherInputStream;
+import org.spongycastle.crypto.modes.GCMBlockCipher;
+import org.spongycastle.crypto.params.AEADParameters;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decrypts a block encrypted with CryptoUtils.encryptStreamAuthenticatedSymmetric
+ * while it is read.
+ *
+ * The block starts with the nonce, followed by the AES-GCM ciphertext and tag.
+ * Plaintext is returned before the tag has been checked, a modified block is
+ * reported by an IOException from the last read.
+ */
+class DecryptingInputStream extends CipherInputStream {
+
+	private static final int NONCE_SIZE = 12;
+	private static final int MAC_SIZE = 128;
+
+	private DecryptingInputStream(InputStream in, GCMBlockCipher cipher) {
+		super(in, cipher);
+	}
+
+	static DecryptingInputStream open(InputStream encrypted, KeyParameter key) throws IOException {
+		byte[] nonce = new byte[NONCE_SIZE];
+		try {
+			new DataInputStream(encrypted).readFully(nonce);
+		} catch (IOException e) {
+			encrypted.close();
+			throw e;
+		}
+		GCMBlockCipher cipher = new GCMBlockCipher(new AESEngine());
+		cipher.init(false, new AEADParameters(key, MAC_SIZE, nonce, null));
+		return new DecryptingInputStream(encrypted, cipher);
+	}
+}
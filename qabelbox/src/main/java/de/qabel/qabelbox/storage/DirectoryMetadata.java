@@ -53,7 +53,9 @@ class DirectoryMetadata {
 					" name VARCHAR(255) NULL PRIMARY KEY," +
 					" size LONG NOT NULL," +
 					" mtime LONG NOT NULL," +
-					" key BLOB NOT NULL )",
+					" key BLOB NOT NULL," +
+					" thumbnail VARCHAR(255) NULL," +
+					" segment_size INTEGER NULL )",
 			"CREATE TABLE folders (" +
 					" ref VARCHAR(255)NOT NULL," +
 					" name VARCHAR(255)NOT NULL PRIMARY KEY," +
@@ -124,7 +126,40 @@ class DirectoryMetadata {
 		} catch (ClassNotFoundException e) {
 			throw new QblStorageException(e);
 		}
-		return new DirectoryMetadata(connection, deviceId, path, fileName, tempDir);
+		DirectoryMetadata dm = new DirectoryMetadata(connection, deviceId, path, fileName, tempDir);
+		dm.addMissingColumns();
+		return dm;
+	}
+
+	/**
+	 * Metadata files of older clients have no thumbnail and segment size columns
+	 */
+	private void addMissingColumns() throws QblStorageException {
+		Statement statement = null;
+		try {
+			statement = connection.createStatement();
+			try {
+				statement.executeQuery("SELECT thumbnail FROM files LIMIT 0").close();
+			} catch (SQLException e) {
+				logger.info("Adding thumbnail column to " + fileName);
+				statement.executeUpdate("ALTER TABLE files ADD COLUMN thumbnail VARCHAR(255) NULL");
+			}
+			try {
+				statement.executeQuery("SELECT segment_size FROM files LIMIT 0").close();
+			} catch (SQLException e) {
+				logger.info("Adding segment size column to " + fileName);
+				statement.executeUpdate("ALTER TABLE files ADD COLUMN segment_size INTEGER NULL");
+			}
+		} catch (SQLException e) {
+			throw new QblStorageException(e);
+		} finally {
+			try {
+				if (statement != null) {
+					statement.close();
+				}
+			} catch (SQLException e) {
+			}
+		}
 	}
 
 	public File getPath() {
@@ -340,11 +375,10 @@ class DirectoryMetadata {
 		try {
 			statement = connection.createStatement();
 			ResultSet rs = statement.executeQuery(
-					"SELECT block, name, size, mtime, key FROM files");
+					"SELECT block, name, size, mtime, key, thumbnail, segment_size FROM files");
 			List<BoxFile> files = new ArrayList<>();
 			while (rs.next()) {
-				files.add(new BoxFile(rs.getString(1),
-						rs.getString(2), rs.getLong(3), rs.getLong(4), rs.getBytes(5)));
+				files.add(readFile(rs));
 			}
 			return files;
 		} catch (SQLException e) {
@@ -359,6 +393,54 @@ class DirectoryMetadata {
 		}
 	}
 
+	/**
+	 * Lists up to limit files ordered by name, using the name index
+	 * @param afterName name of the last file of the previous page or null for the first page
+	 */
+	List<BoxFile> listFiles(String afterName, int limit) throws QblStorageException {
+		PreparedStatement statement = null;
+		try {
+			statement = prepareListPage(
+					"SELECT block, name, size, mtime, key, thumbnail, segment_size FROM files", afterName, limit);
+			ResultSet rs = statement.executeQuery();
+			List<BoxFile> files = new ArrayList<>();
+			while (rs.next()) {
+				files.add(readFile(rs));
+			}
+			return files;
+		} catch (SQLException e) {
+			throw new QblStorageException(e);
+		} finally {
+			try {
+				if (statement != null) {
+					statement.close();
+				}
+			} catch (SQLException e) {
+			}
+		}
+	}
+
+	private PreparedStatement prepareListPage(String select, String afterName, int limit) throws SQLException {
+		PreparedStatement statement;
+		if (afterName == null) {
+			statement = connection.prepareStatement(select + " ORDER BY name LIMIT ?");
+			statement.setInt(1, limit);
+		} else {
+			statement = connection.prepareStatement(select + " WHERE name > ? ORDER BY name LIMIT ?");
+			statement.setString(1, afterName);
+			statement.setInt(2, limit);
+		}
+		return statement;
+	}
+
+	private static BoxFile readFile(ResultSet rs) throws SQLException {
+		BoxFile file = new BoxFile(rs.getString(1),
+				rs.getString(2), rs.getLong(3), rs.getLong(4), rs.getBytes(5));
+		file.thumbnail = rs.getString(6);
+		int segmentSize = rs.getInt(7);
+		file.segmentSize = rs.wasNull() ? null : segmentSize;
+		return file;
+	}
 
 	void insertFile(BoxFile file) throws QblStorageException {
 		int type = isA(file.name);
@@ -369,12 +451,22 @@ class DirectoryMetadata {
 		PreparedStatement st = null;
 		try {
 			st = connection.prepareStatement(
-					"INSERT INTO files (block, name, size, mtime, key) VALUES(?, ?, ?, ?, ?)");
+					"INSERT INTO files (block, name, size, mtime, key, thumbnail, segment_size) VALUES(?, ?, ?, ?, ?, ?, ?)");
 			st.setString(1, file.block);
 			st.setString(2, file.name);
 			st.setLong(3, file.size);
 			st.setLong(4, file.mtime);
 			st.setBytes(5, file.key);
+			if (file.thumbnail != null) {
+				st.setString(6, file.thumbnail);
+			} else {
+				st.setNull(6, Types.VARCHAR);
+			}
+			if (file.segmentSize != null) {
+				st.setInt(7, file.segmentSize);
+			} else {
+				st.setNull(7, Types.INTEGER);
+			}
 			if (st.executeUpdate() != 1) {
 				throw new QblStorageException("Failed to insert file");
 			}
@@ -471,6 +563,32 @@ class DirectoryMetadata {
 		}
 	}
 
+	/**
+	 * Lists up to limit folders ordered by name, using the name index
+	 * @param afterName name of the last folder of the previous page or null for the first page
+	 */
+	List<BoxFolder> listFolders(String afterName, int limit) throws QblStorageException {
+		PreparedStatement statement = null;
+		try {
+			statement = prepareListPage("SELECT ref, name, key FROM folders", afterName, limit);
+			ResultSet rs = statement.executeQuery();
+			List<BoxFolder> folders = new ArrayList<>();
+			while (rs.next()) {
+				folders.add(new BoxFolder(rs.getString(1), rs.getString(2), rs.getBytes(3)));
+			}
+			return folders;
+		} catch (SQLException e) {
+			throw new QblStorageException(e);
+		} finally {
+			try {
+				if (statement != null) {
+					statement.close();
+				}
+			} catch (SQLException e) {
+			}
+		}
+	}
+
 	void insertExternal(BoxExternal external) throws QblStorageException {
 		int type = isA(external.name);
 		if ((type != TYPE_NONE) && (type != TYPE_EXTERNAL)) {
@@ -550,12 +668,34 @@ class DirectoryMetadata {
 		PreparedStatement statement = null;
 		try {
 			statement = connection.prepareStatement(
-					"SELECT block, name, size, mtime, key FROM files WHERE name=?");
+					"SELECT block, name, size, mtime, key, thumbnail, segment_size FROM files WHERE name=?");
+			statement.setString(1, name);
+			ResultSet rs = statement.executeQuery();
+			if (rs.next()) {
+				return readFile(rs);
+			}
+			return null;
+		} catch (SQLException e) {
+			throw new QblStorageException(e);
+		} finally {
+			try {
+				if (statement != null) {
+					statement.close();
+				}
+			} catch (SQLException e) {
+			}
+		}
+	}
+
+	BoxFolder getFolder(String name) throws QblStorageException {
+		PreparedStatement statement = null;
+		try {
+			statement = connection.prepareStatement(
+					"SELECT ref, name, key FROM folders WHERE name=?");
 			statement.setString(1, name);
 			ResultSet rs = statement.executeQuery();
 			if (rs.next()) {
-				return new BoxFile(rs.getString(1),
-						rs.getString(2), rs.getLong(3), rs.getLong(4), rs.getBytes(5));
+				return new BoxFolder(rs.getString(1), rs.getString(2), rs.getBytes(3));
 			}
 			return null;
 		} catch (SQLException e) {
@@ -0,0 +1,205 @@
+package de.qabel.qabelbox.storage;
+
+import android.content.Context;
+import android.support.annotation.Nullable;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.spongycastle.crypto.InvalidCipherTextException;
+import org.spongycastle.crypto.params.KeyParameter;
+import org.spongycastle.util.encoders.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.InvalidKeyException;
+
+import de.qabel.core.crypto.CryptoUtils;
+import de.qabel.core.crypto.QblECKeyPair;
+import de.qabel.qabelbox.exceptions.QblStorageException;
+
+/**
+ * Persisted copies of the last known directory metadata of the folders.
+ *
+ * The metadata databases are stored by the ref of their folder in the private files
+ * directory, encrypted like the remote metadata: with the key of the folder, or in a box
+ * for the key pair of the volume for the root folder. Navigations work on a decrypted
+ * temporary copy, so a cached file is only ever replaced as a whole.
+ */
+class DirectoryMetadataCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(DirectoryMetadataCache.class.getName());
+	private static final String DIRECTORY = "metadata";
+	private static final String SYNC_STATE_SUFFIX = ".sync";
+	// marks a directory whose copies are all encrypted
+	private static final String ENCRYPTED_MARKER = ".encrypted";
+
+	private final File directory;
+	private final QblECKeyPair keyPair;
+	private final CryptoUtils cryptoUtils = new CryptoUtils();
+
+	DirectoryMetadataCache(Context context, QblECKeyPair keyPair) {
+		this(new File(context.getFilesDir(), DIRECTORY), keyPair);
+	}
+
+	DirectoryMetadataCache(File directory, QblECKeyPair keyPair) {
+		this.directory = directory;
+		this.keyPair = keyPair;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			logger.error("Could not create metadata cache " + directory);
+		}
+		File marker = new File(directory, ENCRYPTED_MARKER);
+		if (!marker.exists()) {
+			// older versions stored the decrypted copies
+			try {
+				FileUtils.cleanDirectory(directory);
+				marker.createNewFile();
+			} catch (IOException e) {
+				logger.error("Could not clear metadata cache " + directory, e);
+			}
+		}
+	}
+
+	/**
+	 * Stores an encrypted copy of the metadata, replacing the previous copy of the folder
+	 *
+	 * @param key key of the folder, null for the root folder
+	 */
+	synchronized void put(DirectoryMetadata dm, @Nullable byte[] key) {
+		File file = new File(directory, dm.getFileName());
+		File tmp = null;
+		try {
+			tmp = File.createTempFile(dm.getFileName(), null, directory);
+			encrypt(dm.getPath(), tmp, key);
+			if (!tmp.renameTo(file)) {
+				logger.warn("Could not store metadata of " + dm.getFileName());
+			}
+		} catch (IOException | InvalidKeyException e) {
+			logger.warn("Could not store metadata of " + dm.getFileName(), e);
+		} finally {
+			if (tmp != null && tmp.exists()) {
+				tmp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Opens a decrypted working copy of the stored metadata
+	 *
+	 * @param key key of the folder, null for the root folder
+	 * @return the metadata or null if there is no copy of the folder
+	 */
+	synchronized DirectoryMetadata get(String ref, @Nullable byte[] key, byte[] deviceId,
+									   File tempDir) throws QblStorageException {
+		File file = new File(directory, ref);
+		if (!file.exists()) {
+			return null;
+		}
+		File tmp;
+		try {
+			tmp = File.createTempFile("dir", "db", tempDir);
+		} catch (IOException e) {
+			throw new QblStorageException(e);
+		}
+		try {
+			if (!decrypt(file, tmp, key)) {
+				throw new InvalidCipherTextException("Invalid tag");
+			}
+		} catch (IOException | InvalidKeyException | InvalidCipherTextException e) {
+			// unreadable, e.g. stored unencrypted by an older version, it is replaced
+			// with the next download
+			logger.warn("Dropping unreadable metadata of " + ref, e);
+			tmp.delete();
+			remove(ref);
+			return null;
+		}
+		return DirectoryMetadata.openDatabase(tmp, deviceId, ref, tempDir);
+	}
+
+	private void encrypt(File plain, File encrypted, @Nullable byte[] key)
+			throws IOException, InvalidKeyException {
+		if (key == null) {
+			byte[] box = cryptoUtils.createBox(keyPair, keyPair.getPub(),
+					FileUtils.readFileToByteArray(plain), 0);
+			FileUtils.writeByteArrayToFile(encrypted, box);
+			return;
+		}
+		InputStream in = new FileInputStream(plain);
+		OutputStream out = new FileOutputStream(encrypted);
+		try {
+			if (!cryptoUtils.encryptStreamAuthenticatedSymmetric(in, out, new KeyParameter(key), null)) {
+				throw new IOException("Encryption failed");
+			}
+		} finally {
+			IOUtils.closeQuietly(in);
+			IOUtils.closeQuietly(out);
+		}
+	}
+
+	private boolean decrypt(File encrypted, File plain, @Nullable byte[] key)
+			throws IOException, InvalidKeyException, InvalidCipherTextException {
+		if (key == null) {
+			byte[] plaintext = cryptoUtils.readBox(keyPair,
+					FileUtils.readFileToByteArray(encrypted)).getPlaintext();
+			FileUtils.writeByteArrayToFile(plain, plaintext);
+			return true;
+		}
+		InputStream in = new FileInputStream(encrypted);
+		try {
+			return cryptoUtils.decryptFileAuthenticatedSymmetricAndValidateTag(
+					in, plain, new KeyParameter(key)) && plain.length() > 0;
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	synchronized boolean contains(String ref) {
+		return new File(directory, ref).exists();
+	}
+
+	synchronized void remove(String ref) {
+		File file = new File(directory, ref);
+		if (file.exists() && !file.delete()) {
+			logger.warn("Could not remove metadata of " + ref);
+		}
+		File syncState = new File(directory, ref + SYNC_STATE_SUFFIX);
+		if (syncState.exists() && !syncState.delete()) {
+			logger.warn("Could not remove sync state of " + ref);
+		}
+	}
+
+	/**
+	 * Stores the ETag and the version of the remote metadata seen by the last sync
+	 */
+	synchronized void putSyncState(String ref, String eTag, byte[] version) {
+		try {
+			FileUtils.writeStringToFile(new File(directory, ref + SYNC_STATE_SUFFIX),
+					eTag + '\n' + Hex.toHexString(version), "UTF-8");
+		} catch (IOException e) {
+			logger.warn("Could not store sync state of " + ref, e);
+		}
+	}
+
+	/**
+	 * @return the ETag and the hex encoded version of the last sync, null if the folder
+	 * was not synced before
+	 */
+	synchronized String[] getSyncState(String ref) {
+		File file = new File(directory, ref + SYNC_STATE_SUFFIX);
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			String[] state = FileUtils.readFileToString(file, "UTF-8").split("\n");
+			return state.length == 2 ? state : null;
+		} catch (IOException e) {
+			logger.warn("Could not read sync state of " + ref, e);
+			return null;
+		}
+	}
+}
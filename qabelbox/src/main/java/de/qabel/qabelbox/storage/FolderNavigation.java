@@ -116,5 +116,6 @@ public class FolderNavigation extends AbstractNavigation {
 	@Override
 	public void reload() throws QblStorageException {
 		dm = reloadMetadata();
+		onMetadataLoaded();
 	}
 }
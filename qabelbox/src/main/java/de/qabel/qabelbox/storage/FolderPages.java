@@ -0,0 +1,58 @@
+package de.qabel.qabelbox.storage;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import de.qabel.qabelbox.exceptions.QblStorageException;
+
+/**
+ * Pages through the listing of a folder in the order of {@link BoxObject#compareTo}: folders
+ * and externals by name, followed by the files by name. The FilesDiff of two listings relies
+ * on that order.
+ *
+ * A page continues after the last object of the previous page, so only the rows of the
+ * requested page are read from the DirectoryMetadata. Externals are rare and listed as a whole.
+ */
+public class FolderPages {
+
+	private FolderPages() {
+	}
+
+	/**
+	 * @param after last object of the previous page or null for the first page
+	 * @param limit maximum number of objects of the page
+	 * @return the page, it is only shorter than the limit at the end of the listing
+	 */
+	public static List<BoxObject> next(BoxNavigation navigation, @Nullable BoxObject after, int limit)
+			throws QblStorageException {
+		List<BoxObject> page = new ArrayList<>();
+		if (!(after instanceof BoxFile)) {
+			List<BoxFolder> folders = navigation.listFolders(after != null ? after.name : null, limit);
+			List<BoxExternal> externals = new ArrayList<>();
+			for (BoxExternal external : navigation.listExternals()) {
+				if (after == null || after.compareTo(external) < 0) {
+					externals.add(external);
+				}
+			}
+			Collections.sort(externals);
+			int folder = 0;
+			int external = 0;
+			while (page.size() < limit && (folder < folders.size() || external < externals.size())) {
+				if (external == externals.size() || (folder < folders.size()
+						&& folders.get(folder).compareTo(externals.get(external)) < 0)) {
+					page.add(folders.get(folder++));
+				} else {
+					page.add(externals.get(external++));
+				}
+			}
+		}
+		if (page.size() < limit) {
+			String afterName = after instanceof BoxFile ? after.name : null;
+			page.addAll(navigation.listFiles(afterName, limit - page.size()));
+		}
+		return page;
+	}
+}
@@ -0,0 +1,47 @@
+package de.qabel.qabelbox.storage;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Document ids of the files that are kept available offline. The sync prefetches them
+ * into the file cache.
+ */
+public class PinnedFiles {
+
+	private static final String PREFERENCES = "PinnedFiles";
+	private static final String KEY_DOCUMENT_IDS = "documentIds";
+
+	private final SharedPreferences preferences;
+
+	public PinnedFiles(Context context) {
+		preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+	}
+
+	public synchronized void pin(String documentId) {
+		Set<String> documentIds = getAll();
+		documentIds.add(documentId);
+		preferences.edit().putStringSet(KEY_DOCUMENT_IDS, documentIds).apply();
+	}
+
+	public synchronized void unpin(String documentId) {
+		Set<String> documentIds = getAll();
+		documentIds.remove(documentId);
+		preferences.edit().putStringSet(KEY_DOCUMENT_IDS, documentIds).apply();
+	}
+
+	public boolean isPinned(String documentId) {
+		return preferences.getStringSet(KEY_DOCUMENT_IDS, new HashSet<String>()).contains(documentId);
+	}
+
+	/**
+	 * @return a modifiable copy of the pinned document ids
+	 */
+	public Set<String> getAll() {
+		// the set of the preferences itself must not be modified
+		return new HashSet<>(preferences.getStringSet(KEY_DOCUMENT_IDS, new HashSet<String>()));
+	}
+}
@@ -0,0 +1,340 @@
+package de.qabel.qabelbox.storage;
+
+import org.spongycastle.crypto.InvalidCipherTextException;
+import org.spongycastle.crypto.engines.AESEngine;
+import org.spongycastle.crypto.modes.GCMBlockCipher;
+import org.spongycastle.crypto.params.AEADParameters;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Segmented encryption format for blocks that need random access.
+ *
+ * The block starts with a header of the magic bytes, the segment size and a random nonce
+ * prefix. It is followed by the plaintext split into segments of the segment size, each
+ * encrypted with AES-GCM on its own. The nonce of a segment is the nonce prefix followed
+ * by the index of the segment, the header and a flag for the last segment are used as
+ * additional authenticated data. Reordered, truncated or modified segments fail the
+ * authentication.
+ */
+public class SegmentedBlock {
+
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+
+	static final byte[] MAGIC = "QBLSEG01".getBytes(Charset.forName("US-ASCII"));
+	static final int HEADER_SIZE = MAGIC.length + 4 + 8;
+	static final int MAC_SIZE = 16;
+	private static final int NONCE_PREFIX_SIZE = 8;
+
+	private final byte[] header;
+	private final int segmentSize;
+	private final byte[] noncePrefix;
+	private final KeyParameter key;
+	private final GCMBlockCipher cipher = new GCMBlockCipher(new AESEngine());
+
+	private SegmentedBlock(byte[] header, KeyParameter key) throws IOException {
+		if (!isSegmented(header)) {
+			throw new IOException("Not a segmented block");
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(header);
+		buffer.position(MAGIC.length);
+		segmentSize = buffer.getInt();
+		if (segmentSize <= 0) {
+			throw new IOException("Invalid segment size " + segmentSize);
+		}
+		noncePrefix = new byte[NONCE_PREFIX_SIZE];
+		buffer.get(noncePrefix);
+		this.header = header;
+		this.key = key;
+	}
+
+	/**
+	 * Checks the magic bytes at the start of a block
+	 */
+	static boolean isSegmented(byte[] head) {
+		return head.length >= MAGIC.length
+				&& Arrays.equals(Arrays.copyOf(head, MAGIC.length), MAGIC);
+	}
+
+	static void encrypt(InputStream plaintext, OutputStream out, KeyParameter key,
+						int segmentSize) throws IOException {
+		byte[] noncePrefix = new byte[NONCE_PREFIX_SIZE];
+		new SecureRandom().nextBytes(noncePrefix);
+		byte[] header = ByteBuffer.allocate(HEADER_SIZE)
+				.put(MAGIC).putInt(segmentSize).put(noncePrefix).array();
+		SegmentedBlock block = new SegmentedBlock(header, key);
+		out.write(header);
+
+		// one segment read ahead to know which one is the last
+		byte[] current = new byte[segmentSize];
+		byte[] next = new byte[segmentSize];
+		int currentLength = readFully(plaintext, current, segmentSize);
+		for (int index = 0; ; index++) {
+			int nextLength = currentLength < segmentSize ? 0 : readFully(plaintext, next, segmentSize);
+			boolean last = nextLength == 0;
+			out.write(block.process(true, index, last, current, currentLength));
+			if (last) {
+				return;
+			}
+			byte[] swap = current;
+			current = next;
+			next = swap;
+			currentLength = nextLength;
+		}
+	}
+
+	/**
+	 * Size of the plaintext of a segmented block, computed from the segment layout
+	 * @return the size or -1 if no block with the segment size has the encrypted size
+	 */
+	static long plaintextSize(long encryptedSize, int segmentSize) {
+		long body = encryptedSize - HEADER_SIZE;
+		long encryptedSegmentSize = segmentSize + MAC_SIZE;
+		long remainder = body % encryptedSegmentSize;
+		if (body < MAC_SIZE || (remainder > 0 && remainder < MAC_SIZE)) {
+			return -1;
+		}
+		long size = body / encryptedSegmentSize * segmentSize;
+		return remainder == 0 ? size : size + remainder - MAC_SIZE;
+	}
+
+	/**
+	 * Decrypts a complete segmented block while it is read
+	 */
+	static InputStream decryptingStream(InputStream encrypted, KeyParameter key) throws IOException {
+		byte[] header = new byte[HEADER_SIZE];
+		new DataInputStream(encrypted).readFully(header);
+		return new SegmentInputStream(encrypted, new SegmentedBlock(header, key), 0);
+	}
+
+	private byte[] process(boolean encrypt, long index, boolean last, byte[] data, int length)
+			throws IOException {
+		if (index > Integer.MAX_VALUE) {
+			throw new IOException("Too many segments");
+		}
+		byte[] nonce = ByteBuffer.allocate(NONCE_PREFIX_SIZE + 4)
+				.put(noncePrefix).putInt((int) index).array();
+		byte[] aad = Arrays.copyOf(header, HEADER_SIZE + 1);
+		aad[HEADER_SIZE] = (byte) (last ? 1 : 0);
+		cipher.init(encrypt, new AEADParameters(key, MAC_SIZE * 8, nonce, aad));
+		byte[] result = new byte[cipher.getOutputSize(length)];
+		int processed = cipher.processBytes(data, 0, length, result, 0);
+		try {
+			processed += cipher.doFinal(result, processed);
+		} catch (InvalidCipherTextException e) {
+			throw new IOException("Segment " + index + " failed the authentication", e);
+		}
+		return processed == result.length ? result : Arrays.copyOf(result, processed);
+	}
+
+	private static int readFully(InputStream in, byte[] buffer, int length) throws IOException {
+		int total = 0;
+		while (total < length) {
+			int read = in.read(buffer, total, length - total);
+			if (read == -1) {
+				break;
+			}
+			total += read;
+		}
+		return total;
+	}
+
+	private static class SegmentInputStream extends InputStream {
+		private final PushbackInputStream in;
+		private final SegmentedBlock block;
+		private final byte[] encrypted;
+		private byte[] plaintext = new byte[0];
+		private int position;
+		private long index;
+		private boolean finished;
+
+		SegmentInputStream(InputStream in, SegmentedBlock block, long index) {
+			this.in = new PushbackInputStream(in);
+			this.block = block;
+			this.index = index;
+			encrypted = new byte[block.segmentSize + MAC_SIZE];
+		}
+
+		private boolean fill() throws IOException {
+			while (position == plaintext.length) {
+				if (finished) {
+					return false;
+				}
+				int length = readFully(in, encrypted, encrypted.length);
+				boolean last = length < encrypted.length;
+				if (!last) {
+					int peek = in.read();
+					if (peek == -1) {
+						last = true;
+					} else {
+						in.unread(peek);
+					}
+				}
+				if (length < MAC_SIZE) {
+					throw new EOFException("Truncated segment " + index);
+				}
+				plaintext = block.process(false, index++, last, encrypted, length);
+				position = 0;
+				finished = last;
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!fill()) {
+				return -1;
+			}
+			return plaintext[position++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			if (count == 0) {
+				return 0;
+			}
+			if (!fill()) {
+				return -1;
+			}
+			int length = Math.min(count, plaintext.length - position);
+			System.arraycopy(plaintext, position, buffer, offset, length);
+			position += length;
+			return length;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * Source of byte ranges of an encrypted block
+	 */
+	public interface RangeSource {
+		/**
+		 * Opens the range starting at offset with the given length
+		 */
+		InputStream open(long offset, long length) throws IOException;
+	}
+
+	/**
+	 * Random access to the plaintext of a segmented block. Only the segments that
+	 * contain the requested range are fetched and decrypted.
+	 *
+	 * Not thread-safe.
+	 */
+	public static class Reader {
+		private final RangeSource source;
+		private final SegmentedBlock block;
+		private final long segmentCount;
+		private final long encryptedSize;
+		private final long size;
+		private long cachedIndex = -1;
+		private byte[] cachedSegment;
+
+		Reader(RangeSource source, long encryptedSize, KeyParameter key) throws IOException {
+			this.source = source;
+			byte[] header = new byte[HEADER_SIZE];
+			InputStream in = source.open(0, HEADER_SIZE);
+			try {
+				new DataInputStream(in).readFully(header);
+			} finally {
+				in.close();
+			}
+			block = new SegmentedBlock(header, key);
+			this.encryptedSize = encryptedSize;
+			size = plaintextSize(encryptedSize, block.segmentSize);
+			if (size < 0) {
+				throw new IOException("Invalid size of segmented block: " + encryptedSize);
+			}
+			long encryptedSegmentSize = block.segmentSize + MAC_SIZE;
+			segmentCount = (encryptedSize - HEADER_SIZE + encryptedSegmentSize - 1) / encryptedSegmentSize;
+		}
+
+		/**
+		 * Size of the plaintext
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * Reads up to count bytes of plaintext starting at position
+		 * @return number of bytes read or -1 if position is at or after the end
+		 * @throws IOException if the range could not be fetched or failed the authentication
+		 */
+		public int read(long position, byte[] buffer, int offset, int count) throws IOException {
+			if (position >= size) {
+				return -1;
+			}
+			int total = 0;
+			while (total < count && position < size) {
+				long index = position / block.segmentSize;
+				byte[] segment = segment(index);
+				int segmentOffset = (int) (position - index * block.segmentSize);
+				int length = Math.min(count - total, segment.length - segmentOffset);
+				System.arraycopy(segment, segmentOffset, buffer, offset + total, length);
+				total += length;
+				position += length;
+			}
+			return total;
+		}
+
+		/**
+		 * Streams the plaintext from position to the end with a single range request,
+		 * every segment is still authenticated on its own
+		 * @throws IOException if the position is after the end or the range could not be fetched
+		 */
+		public InputStream openStream(long position) throws IOException {
+			if (position < 0 || position > size) {
+				throw new IOException("Position " + position + " outside of plaintext of size " + size);
+			}
+			long index = Math.min(position / block.segmentSize, segmentCount - 1);
+			long offset = HEADER_SIZE + index * (block.segmentSize + MAC_SIZE);
+			InputStream in = new SegmentInputStream(
+					source.open(offset, encryptedSize - offset), block, index);
+			long skip = position - index * block.segmentSize;
+			while (skip > 0) {
+				long skipped = in.skip(skip);
+				if (skipped <= 0) {
+					in.close();
+					throw new EOFException("Could not skip to " + position);
+				}
+				skip -= skipped;
+			}
+			return in;
+		}
+
+		private byte[] segment(long index) throws IOException {
+			if (index == cachedIndex) {
+				return cachedSegment;
+			}
+			long encryptedSegmentSize = block.segmentSize + MAC_SIZE;
+			boolean last = index == segmentCount - 1;
+			int length = (int) (last
+					? size - index * block.segmentSize + MAC_SIZE
+					: encryptedSegmentSize);
+			byte[] encrypted = new byte[length];
+			InputStream in = source.open(HEADER_SIZE + index * encryptedSegmentSize, length);
+			try {
+				new DataInputStream(in).readFully(encrypted);
+			} finally {
+				in.close();
+			}
+			cachedSegment = block.process(false, index, last, encrypted, length);
+			cachedIndex = index;
+			return cachedSegment;
+		}
+	}
+}
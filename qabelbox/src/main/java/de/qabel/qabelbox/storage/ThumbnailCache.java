@@ -0,0 +1,103 @@
+package de.qabel.qabelbox.storage;
+
+import android.content.Context;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Size bounded cache of decrypted thumbnails in the private cache directory.
+ *
+ * Thumbnails are stored by the block of the thumbnail, the least recently used
+ * ones are removed if the cache grows over its maximum size.
+ */
+public class ThumbnailCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(ThumbnailCache.class.getName());
+	private static final long DEFAULT_MAX_SIZE = 10 * 1024 * 1024;
+	private static final String DIRECTORY = "thumbnails";
+
+	private final File directory;
+	private final long maxSize;
+
+	public ThumbnailCache(Context context) {
+		this(new File(context.getCacheDir(), DIRECTORY), DEFAULT_MAX_SIZE);
+	}
+
+	ThumbnailCache(File directory, long maxSize) {
+		this.directory = directory;
+		this.maxSize = maxSize;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			logger.error("Could not create thumbnail cache " + directory);
+		}
+	}
+
+	/**
+	 * @return the cached thumbnail or null if it is not in the cache
+	 */
+	public synchronized File get(String thumbnail) {
+		File file = new File(directory, thumbnail);
+		if (!file.exists()) {
+			return null;
+		}
+		file.setLastModified(System.currentTimeMillis());
+		return file;
+	}
+
+	public synchronized File put(String thumbnail, InputStream content) throws IOException {
+		File file = new File(directory, thumbnail);
+		File tmp = File.createTempFile(thumbnail, null, directory);
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			IOUtils.copy(content, out);
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Could not store thumbnail " + thumbnail);
+		}
+		trim();
+		return file;
+	}
+
+	private void trim() {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		long size = 0;
+		for (File file : files) {
+			size += file.length();
+		}
+		if (size <= maxSize) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File lhs, File rhs) {
+				long left = lhs.lastModified();
+				long right = rhs.lastModified();
+				return left < right ? -1 : (left == right ? 0 : 1);
+			}
+		});
+		for (File file : files) {
+			if (size <= maxSize) {
+				break;
+			}
+			long length = file.length();
+			if (file.delete()) {
+				size -= length;
+			}
+		}
+	}
+}
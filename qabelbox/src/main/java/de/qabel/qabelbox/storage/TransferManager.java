@@ -2,15 +2,21 @@ package de.qabel.qabelbox.storage;
 
 import android.support.annotation.Nullable;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.mobileconnectors.s3.transferutility.*;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+
+import de.qabel.qabelbox.exceptions.QblStorageException;
+import de.qabel.qabelbox.exceptions.QblStorageNotFound;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.InputStream;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
@@ -25,9 +31,40 @@ public class TransferManager implements TransferListener {
     private File tempDir;
     private final TransferUtility transferUtility;
 
-    private final Map<Integer, Semaphore> semaphores;
-    private final Map<Integer, Exception> errors;
-    private final Map<Integer, BoxTransferListener> transferListeners;
+    /**
+     * Running transfers by id, a transfer is removed when it has been waited for
+     */
+    private final Map<Integer, Transfer> transfers;
+
+    private static class Transfer {
+        final TransferObserver observer;
+        final Semaphore done = new Semaphore(0);
+        @Nullable
+        final BoxTransferListener listener;
+        boolean finished;
+        Exception error;
+
+        Transfer(TransferObserver observer, @Nullable BoxTransferListener listener) {
+            this.observer = observer;
+            this.listener = listener;
+        }
+
+        /**
+         * Releases the waiter, only the first terminal state of a transfer counts
+         */
+        synchronized void finish(@Nullable Exception error) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            this.error = error;
+            done.release();
+        }
+
+        synchronized boolean failed() {
+            return error != null;
+        }
+    }
 
     public TransferManager(TransferUtility transferUtility, AmazonS3Client awsClient,
                            String bucket, String prefix, File tempDir) {
@@ -36,9 +73,7 @@ public class TransferManager implements TransferListener {
         this.bucket = bucket;
         this.prefix = prefix;
         this.tempDir = tempDir;
-        semaphores = new ConcurrentHashMap<>();
-        errors = new HashMap<>();
-        transferListeners = new ConcurrentHashMap<>();
+        transfers = new ConcurrentHashMap<>();
     }
 
     public interface BoxTransferListener {
@@ -63,37 +98,89 @@ public class TransferManager implements TransferListener {
         TransferObserver upload = transferUtility.upload(bucket, getKey(name), file);
         int id = upload.getId();
         logger.info("Uploading " + name + " id " + id);
-        semaphores.put(id, new Semaphore(0));
-        if (boxTransferListener != null) {
-            transferListeners.put(id, boxTransferListener);
-        }
+        transfers.put(id, new Transfer(upload, boxTransferListener));
         upload.setTransferListener(this);
-        return upload.getId();
+        return id;
     }
 
     public int download(String name, File file, @Nullable BoxTransferListener boxTransferListener) {
         TransferObserver download = transferUtility.download(bucket, getKey(name), file);
         int id = download.getId();
         logger.info("Downloading " + name + " id " + id);
-        semaphores.put(id, new Semaphore(0));
-        if (boxTransferListener != null) {
-            transferListeners.put(id, boxTransferListener);
-        }
+        transfers.put(id, new Transfer(download, boxTransferListener));
         download.setTransferListener(this);
         return id;
     }
 
+    /**
+     * Opens the content of an object for reading without downloading it first
+     * @throws QblStorageNotFound if the object could not be requested
+     */
+    public InputStream openStream(String name) throws QblStorageNotFound {
+        logger.info("Streaming " + name);
+        try {
+            return awsClient.getObject(bucket, getKey(name)).getObjectContent();
+        } catch (AmazonClientException e) {
+            logger.error("Could not open " + name, e);
+            throw new QblStorageNotFound("Download failed");
+        }
+    }
+
+    /**
+     * Opens a byte range of an object
+     * @throws QblStorageNotFound if the range could not be requested
+     */
+    public InputStream openRange(String name, long offset, long length) throws QblStorageNotFound {
+        GetObjectRequest request = new GetObjectRequest(bucket, getKey(name));
+        request.setRange(offset, offset + length - 1);
+        try {
+            return awsClient.getObject(request).getObjectContent();
+        } catch (AmazonClientException e) {
+            logger.error("Could not open range of " + name, e);
+            throw new QblStorageNotFound("Download failed");
+        }
+    }
+
+    /**
+     * Requests only the metadata of an object
+     * @return the ETag of the object, which changes with every upload of it
+     * @throws QblStorageNotFound if the object does not exist
+     */
+    public String getETag(String name) throws QblStorageException {
+        try {
+            return awsClient.getObjectMetadata(bucket, getKey(name)).getETag();
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() == 404) {
+                throw new QblStorageNotFound(name + " not found");
+            }
+            throw new QblStorageException(e);
+        } catch (AmazonClientException e) {
+            logger.error("Could not request metadata of " + name, e);
+            throw new QblStorageException(e);
+        }
+    }
+
+    /**
+     * Blocks until the transfer is finished, a transfer can only be waited for once
+     *
+     * @return true if the transfer completed
+     */
     public boolean waitFor(int id) {
         logger.info("Waiting for " + id);
+        Transfer transfer = transfers.get(id);
+        if (transfer == null) {
+            logger.error("Unknown transfer " + id);
+            return false;
+        }
         try {
-            semaphores.get(id).acquire();
-            Exception e = errors.get(id);
-            if (e != null) {
-                return false;
-            }
-            return true;
+            transfer.done.acquire();
+            return !transfer.failed();
         } catch (InterruptedException e) {
             return false;
+        } finally {
+            // the TransferManager lives as long as the process, nothing may pile up
+            transfers.remove(id);
+            transfer.observer.cleanTransferListener();
         }
     }
 
@@ -104,32 +191,55 @@ public class TransferManager implements TransferListener {
     @Override
     public void onStateChanged(int id, TransferState state) {
         logger.info("State changed " + id + ": " + state);
+        Transfer transfer = transfers.get(id);
+        if (transfer == null) {
+            return;
+        }
         if (state == TransferState.COMPLETED) {
-            semaphores.get(id).release();
-            BoxTransferListener boxTransferListener = transferListeners.get(id);
-            if (boxTransferListener != null) {
-                boxTransferListener.onFinished();
+            if (transfer.listener != null) {
+                transfer.listener.onFinished();
             }
+            transfer.finish(null);
+        } else if (state == TransferState.FAILED || state == TransferState.CANCELED) {
+            // not every failure is reported with onError, waitFor would block forever
+            transfer.finish(new IOException("Transfer " + state));
         }
     }
 
     @Override
     public void onProgressChanged(int id, long bytesCurrent, long bytesTotal) {
-        BoxTransferListener boxTransferListener = transferListeners.get(id);
-        if (boxTransferListener != null) {
-            boxTransferListener.onProgressChanged(bytesCurrent, bytesTotal);
+        Transfer transfer = transfers.get(id);
+        if (transfer != null && transfer.listener != null) {
+            transfer.listener.onProgressChanged(bytesCurrent, bytesTotal);
         }
     }
 
     @Override
     public void onError(int id, Exception ex) {
         logger.error("Error for id " + id, ex);
-        errors.put(id, ex);
-        semaphores.get(id).release();
+        Transfer transfer = transfers.get(id);
+        if (transfer != null) {
+            transfer.finish(ex);
+        }
     }
 
 
     public void delete(String ref) {
         awsClient.deleteObject(bucket, getKey(ref));
     }
+
+    /**
+     * Copies an object on the server without transferring its content
+     * @return true if the copy succeeded
+     */
+    public boolean copy(String sourceRef, String targetRef) {
+        logger.info("Copying " + sourceRef + " to " + targetRef);
+        try {
+            awsClient.copyObject(bucket, getKey(sourceRef), bucket, getKey(targetRef));
+            return true;
+        } catch (AmazonClientException e) {
+            logger.error("Copying " + sourceRef + " failed", e);
+            return false;
+        }
+    }
 }
@@ -0,0 +1,134 @@
+package de.qabel.qabelbox.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.util.encoders.Hex;
+
+import de.qabel.qabelbox.exceptions.QblStorageException;
+import de.qabel.qabelbox.exceptions.QblStorageNotFound;
+
+/**
+ * Incremental sync of the folder tree of a volume into the local metadata and file cache.
+ *
+ * The metadata of a folder does not change with its subfolders, so every folder is
+ * checked, but a check is only a request of the ETag of its metadata. The metadata is
+ * downloaded if the ETag differs from the last sync, the stored copy is used to walk on
+ * otherwise. A downloaded folder counts as changed if its version differs from the
+ * version of the last sync. Pinned files that are not in the file cache are downloaded.
+ */
+public class VolumeSync {
+
+	private static final Logger logger = LoggerFactory.getLogger(VolumeSync.class.getName());
+
+	public interface Callback {
+		boolean isCancelled();
+
+		/**
+		 * @param path path of the file in the volume
+		 */
+		boolean isPinned(String path);
+
+		/**
+		 * @param path path of the folder in the volume
+		 */
+		void onFolderChanged(String path);
+	}
+
+	public static class Stats {
+		public int foldersChecked;
+		public int foldersChanged;
+		public int filesPrefetched;
+		public int errors;
+	}
+
+	private final BoxVolume volume;
+	private final DirectoryMetadataCache cache;
+	private final TransferManager transferManager;
+
+	public VolumeSync(BoxVolume volume) {
+		this.volume = volume;
+		cache = volume.getMetadataCache();
+		transferManager = volume.getTransferManager();
+	}
+
+	/**
+	 * Syncs the complete volume
+	 *
+	 * @param stats is updated while the sync runs, so it is complete up to a failure
+	 * @throws QblStorageException if a folder could not be synced, the sync is aborted then
+	 */
+	public void sync(Callback callback, Stats stats) throws QblStorageException {
+		String rootRef = volume.getRootRef();
+		String eTag = transferManager.getETag(rootRef);
+		stats.foldersChecked++;
+		BoxNavigation navigation;
+		if (isUnchanged(rootRef, eTag)) {
+			navigation = volume.navigateOfflineFirst();
+		} else {
+			navigation = volume.navigate();
+			onDownloaded(rootRef, eTag, navigation, callback, stats);
+		}
+		syncFolder(navigation, callback, stats);
+	}
+
+	private void syncFolder(BoxNavigation navigation, Callback callback, Stats stats)
+			throws QblStorageException {
+		for (BoxFile file : navigation.listFiles()) {
+			if (callback.isCancelled()) {
+				return;
+			}
+			if (!callback.isPinned(navigation.getPath(file))) {
+				continue;
+			}
+			try {
+				if (navigation.prefetch(file)) {
+					stats.filesPrefetched++;
+				}
+			} catch (QblStorageException e) {
+				logger.warn("Could not prefetch " + navigation.getPath(file), e);
+				stats.errors++;
+			}
+		}
+		for (BoxFolder folder : navigation.listFolders()) {
+			if (callback.isCancelled()) {
+				return;
+			}
+			String eTag;
+			try {
+				eTag = transferManager.getETag(folder.ref);
+			} catch (QblStorageNotFound e) {
+				// deleted since the listing, the next sync of the parent drops it
+				logger.info("Folder " + folder.name + " is gone, skipping it");
+				continue;
+			}
+			stats.foldersChecked++;
+			boolean unchanged = isUnchanged(folder.ref, eTag);
+			navigation.setOfflineFirst(unchanged);
+			navigation.navigate(folder);
+			if (!unchanged) {
+				onDownloaded(folder.ref, eTag, navigation, callback, stats);
+			}
+			syncFolder(navigation, callback, stats);
+			// the parent has just been synced, its stored copy is current
+			navigation.setOfflineFirst(true);
+			navigation.navigateToParent();
+		}
+	}
+
+	private boolean isUnchanged(String ref, String eTag) {
+		String[] syncState = cache.getSyncState(ref);
+		return syncState != null && syncState[0].equals(eTag) && cache.contains(ref);
+	}
+
+	private void onDownloaded(String ref, String eTag, BoxNavigation navigation,
+							  Callback callback, Stats stats) throws QblStorageException {
+		String[] syncState = cache.getSyncState(ref);
+		String version = Hex.toHexString(navigation.getVersion());
+		if (syncState == null || !syncState[1].equals(version)) {
+			logger.info("Folder " + navigation.getPath() + " changed");
+			stats.foldersChanged++;
+			callback.onFolderChanged(navigation.getPath());
+		}
+		cache.putSyncState(ref, eTag, navigation.getVersion());
+	}
+}